@@ -6,12 +6,18 @@ import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import io.opentraffic.engine.data.SpatialDataItem;
 import io.opentraffic.engine.data.TimeConverter;
+import io.opentraffic.engine.data.pbf.ExchangeFormat;
+import io.opentraffic.engine.data.stats.SummaryStatistics;
+import io.opentraffic.engine.data.stores.CongestionListener;
 import io.opentraffic.engine.geom.*;
 import io.opentraffic.engine.osm.OSMArea;
 import io.opentraffic.engine.osm.OSMDataStore;
+import io.opentraffic.engine.routing.ODValidation;
+import io.opentraffic.engine.routing.Route;
 import io.opentraffic.engine.vehicles.VehicleStates;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
@@ -88,6 +94,10 @@ public class TrafficEngine {
 		return osmData.getStreetSegments(env);
 	}
 
+	public Stream<SpatialDataItem> streamStreetSegments(Envelope env) {
+		return osmData.streamStreetSegments(env);
+	}
+
 	public List<Long> getStreetSegmentIds(Envelope env) {
 		return osmData.getStreetSegmentIds(env);
 	}
@@ -96,10 +106,46 @@ public class TrafficEngine {
 		return osmData.getGeometryById(id);
 	}
 
+	public byte[] getVectorTile(int z, int x, int y) {
+		return osmData.getVectorTile(z, x, y);
+	}
+
 	public int getStreetTypeById(long id) {
 		return osmData.streetSegments.getSegmentTypeById(id);
 	}
 
+	public long[] getOutgoingSegmentIds(long nodeId) {
+		return osmData.roadGraph.getOutgoingSegmentIds(nodeId);
+	}
+
+	public boolean isSegmentReachable(long fromSegmentId, long toSegmentId, int maxSegments) {
+		return osmData.roadGraph.isReachable(fromSegmentId, toSegmentId, maxSegments);
+	}
+
+	public Route getRoute(long startNodeId, long endNodeId, long time) {
+		return osmData.routingEngine.routeAtTime(startNodeId, endNodeId, time);
+	}
+
+	public List<ODValidation> validateODPairs(List<ExchangeFormat.ODValidationPairs> pairs) {
+		return osmData.routingEngine.validate(pairs);
+	}
+
+	public SummaryStatistics getClusterSummaryStatistics(Long clusterId, Set<Integer> streetTypes, Boolean normalize, Set<Integer> weeks, Set<Integer> hours) {
+		return osmData.collectClusterSummaryStatistics(clusterId, streetTypes, normalize, weeks, hours);
+	}
+
+	public SummaryStatistics getMonthlySummaryStatistics(Set<Long> segmentIds, Boolean normalize, Set<Integer> months, Set<Integer> hours) {
+		return osmData.statsDataStore.collectMonthlySummaryStatistics(segmentIds, normalize, months, hours);
+	}
+
+	public double getVehicleCount(Long segmentId, Set<Integer> weeks, Set<Integer> hours) {
+		return osmData.statsDataStore.getVehicleCount(segmentId, weeks, hours);
+	}
+
+	public SummaryStatistics getSummaryStatistics(Set<Long> segmentIds, Boolean normalize, Set<Integer> weeks, Set<Integer> hours, double minVehicles) {
+		return osmData.statsDataStore.collectSummaryStatistics(segmentIds, normalize, weeks, hours, minVehicles);
+	}
+
 	public List<SpatialDataItem> getOffMapTraces(Envelope env) {
 		return osmData.getOffMapTraces(env);
 	}
@@ -148,6 +194,34 @@ public class TrafficEngine {
 		}
 	}
 
+	public void writeCurrentStatistics(File statsFile, Envelope env, int minutes, double percentChangeThreshold) {
+
+		try {
+			FileOutputStream fileOut = new FileOutputStream(statsFile);
+			osmData.collectCurrentStatistics(fileOut, env, minutes, percentChangeThreshold);
+
+			fileOut.close();
+
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Mean speed (m/s) on a segment over the last minutes, up to an hour, NaN without samples.
+	 */
+	public double getCurrentSpeed(long segmentId, int minutes) {
+		return osmData.statsDataStore.getCurrentConditions().getSpeed(segmentId, minutes);
+	}
+
+	public void addCongestionListener(CongestionListener listener) {
+		osmData.statsDataStore.addCongestionListener(listener);
+	}
+
+	public void removeCongestionListener(CongestionListener listener) {
+		osmData.statsDataStore.removeCongestionListener(listener);
+	}
+
 	public List<Crossing> getDebugCrossings() {
 		return this.vehicleState.debugCrossings;
 	}
@@ -54,6 +54,13 @@ public abstract class  SpatialDataItem implements Serializable {
 		}
 	}
 
+	public SpatialDataItem(Long id, double[] lons, double[] lats) {
+		this.id = id;
+
+		this.lons = lons;
+		this.lats = lats;
+	}
+
 	public SpatialDataItem(Long id, Coordinate[] coords) {
 		this.id = id;
 
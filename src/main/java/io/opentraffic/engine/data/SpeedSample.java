@@ -11,10 +11,18 @@ import java.io.Serializable;
 	 final long time;
 	 final double speed;
 
+	 // 0 when the vehicle isn't known
+	 final long vehicleId;
+
 	 public SpeedSample(long time, double speed, long segmentId) {
+		 this(time, speed, segmentId, 0);
+	 }
+
+	 public SpeedSample(long time, double speed, long segmentId, long vehicleId) {
 		 this.segmentId = segmentId;
 		 this.time = time;
 		 this.speed = speed;
+		 this.vehicleId = vehicleId;
 	 }
 
 	 public String toString() {
@@ -32,4 +40,8 @@ import java.io.Serializable;
 	 public double getSpeed() {
 		return this.speed;
 	 }
+
+	 public long getVehicleId() {
+		return this.vehicleId;
+	 }
 }
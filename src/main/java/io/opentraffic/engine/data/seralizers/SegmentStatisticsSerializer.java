@@ -1,6 +1,5 @@
 package io.opentraffic.engine.data.seralizers;
 
-import com.carrotsearch.hppc.cursors.ShortLongCursor;
 import io.opentraffic.engine.data.stats.SegmentStatistics;
 import org.mapdb.Serializer;
 
@@ -10,79 +9,80 @@ public class SegmentStatisticsSerializer implements Serializer<SegmentStatistics
 
     private static final long serialVersionUID = 1l;
 
+    // legacy records start with a short bin count, whose high byte can't be 0xFF since there are fewer than
+    // 0x7FFF bins
+    public static final byte RUN_LENGTH_FORMAT = (byte)0xFF;
+
+    /**
+     * Writes the non-zero bins in ascending order as runs of adjacent bins. Each run is the gap from the end of the
+     * previous run, the run length and then a varint count per bin, so a busy hour costs about a byte per bin.
+     */
     @Override
     public void serialize(DataOutput out, SegmentStatistics stats) throws IOException {
-        /*for(int h = 0; h < SegmentStatistics.HOURS_IN_WEEK; h++) {
-            if (stats.hourSpeedBins[h] == null)
-                out.writeByte(0);
-            else {
-                out.writeByte(1);
-                int s = 0;
-                while (s < SegmentStatistics.NUM_SPEED_BINS) {
-                    int startRange = -1;
-                    int endRange = -1;
-                    for (int si = s; si < SegmentStatistics.NUM_SPEED_BINS; si++) {
-                        if (startRange < 0 && stats.hourSpeedBins[h][si] > 0)
-                            startRange = si;
-                        if (endRange <= si && stats.hourSpeedBins[h][si] > 0)
-                            endRange = si;
-                        if (startRange >= 0 && endRange < si && stats.hourSpeedBins[h][si] == 0)
-                            break;
-                    }
-                    if(startRange > -1 && endRange > -1) {
-                        out.writeByte(startRange);
-                        out.writeByte(endRange);
-                        for (int si = startRange; si <= endRange; si++) {
-                            out.writeInt(stats.hourSpeedBins[h][si]);
-                        }
-                        s = endRange + 1;
-                    }
-                    else
-                        break;
-                }
-
-                out.writeByte(SegmentStatistics.NUM_SPEED_BINS + 1);
-                out.writeByte(SegmentStatistics.NUM_SPEED_BINS + 1);
 
+        int size = stats.getHistogram().size();
+        int[] bins = new int[size];
+        long[] counts = new long[size];
+
+        int[] index = new int[1];
+        stats.getHistogram().forEach((bin, count) -> {
+            bins[index[0]] = bin;
+            counts[index[0]] = count;
+            index[0]++;
+        });
+
+        out.writeByte(RUN_LENGTH_FORMAT);
+        SerializerUtils.writeVarInt(out, size);
+
+        int nextBin = 0;
+        int i = 0;
+        while(i < size) {
+            int runStart = i;
+            while(i + 1 < size && bins[i + 1] == bins[i] + 1)
+                i++;
+            i++;
+
+            SerializerUtils.writeVarInt(out, bins[runStart] - nextBin);
+            SerializerUtils.writeVarInt(out, i - runStart);
+            for(int j = runStart; j < i; j++) {
+                SerializerUtils.writeVarLong(out, counts[j]);
             }
-        }*/
-
 
-        out.writeShort(stats.hourSpeedMap.size());
-        for(ShortLongCursor cursor : stats.hourSpeedMap) {
-            out.writeShort(cursor.key);
-            out.writeInt((int)cursor.value);
+            nextBin = bins[i - 1] + 1;
         }
     }
 
 
     @Override
     public SegmentStatistics deserialize(DataInput in, int available) throws IOException {
-        SegmentStatistics stats = new SegmentStatistics();
-
-        /*for(int h = 0; h < SegmentStatistics.HOURS_IN_WEEK; h++) {
-            if(in.readByte() == 0)
-                continue;
-
-            stats.hourSpeedBins[h] = new int[SegmentStatistics.NUM_SPEED_BINS];
-
-            int s = 0;
-            while (s < SegmentStatistics.NUM_SPEED_BINS) {
-                int startRange = in.readByte();
-                int endRange = in.readByte();
-
-                if(startRange == SegmentStatistics.NUM_SPEED_BINS + 1 && endRange == SegmentStatistics.NUM_SPEED_BINS + 1) {
-                    break;
-                }
-                else {
-                    for (int si = startRange; si <= endRange; si++) {
-                        stats.hourSpeedBins[h][si] = in.readInt();
-                    }
-                }
+
+        byte format = in.readByte();
+        if(format != RUN_LENGTH_FORMAT)
+            return deserializeLegacy(in, format);
+
+        int size = SerializerUtils.readVarInt(in);
+        SegmentStatistics stats = new SegmentStatistics(size);
+
+        int bin = 0;
+        int read = 0;
+        while(read < size) {
+            bin += SerializerUtils.readVarInt(in);
+            int runLength = SerializerUtils.readVarInt(in);
+
+            for(int j = 0; j < runLength; j++) {
+                stats.addSpeed(bin++, SerializerUtils.readVarLong(in));
             }
-        }*/
+            read += runLength;
+        }
+
+        return stats;
+    }
+
+    private SegmentStatistics deserializeLegacy(DataInput in, byte sizeHighByte) throws IOException {
+
+        short size = (short)((sizeHighByte << 8) | in.readUnsignedByte());
+        SegmentStatistics stats = new SegmentStatistics(size);
 
-        short size = in.readShort();
         for(int i = 0; i < size; i++) {
             short bin = in.readShort();
             int count = in.readInt();
@@ -96,4 +96,4 @@ public class SegmentStatisticsSerializer implements Serializer<SegmentStatistics
         return -1;
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,120 @@
+package io.opentraffic.engine.data.seralizers;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Varint, zig-zag and fixed-point helpers shared by the compact serializers.
+ */
+public class SerializerUtils {
+
+    // coordinates are stored as degrees * 10^7 (about 1cm), which fits lon/lat in an int
+    public static final double FIXED_POINT_SCALE = 1e7;
+
+    public static int toFixed(double degrees) {
+        return (int)Math.round(degrees * FIXED_POINT_SCALE);
+    }
+
+    public static double fromFixed(int fixed) {
+        return fixed / FIXED_POINT_SCALE;
+    }
+
+    public static long zigZagEncode(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long zigZagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Writes an unsigned LEB128 varint, 7 bits per byte with the high bit set on all but the last byte.
+     */
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+        while((value & ~0x7FL) != 0) {
+            out.writeByte((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+
+    public static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long)(b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        writeVarLong(out, value & 0xFFFFFFFFL);
+    }
+
+    public static int readVarInt(DataInput in) throws IOException {
+        return (int)readVarLong(in);
+    }
+
+    public static void writeSignedVarLong(DataOutput out, long value) throws IOException {
+        writeVarLong(out, zigZagEncode(value));
+    }
+
+    public static long readSignedVarLong(DataInput in) throws IOException {
+        return zigZagDecode(readVarLong(in));
+    }
+
+    /**
+     * Writes a vertex count followed by fixed-point coordinates, the first vertex absolute and the rest as
+     * zig-zag deltas from the previous vertex.
+     */
+    public static void writeCoordinates(DataOutput out, double[] lons, double[] lats) throws IOException {
+        writeVarInt(out, lats.length);
+
+        int lastLon = 0, lastLat = 0;
+        for(int i = 0; i < lats.length; i++) {
+            int lon = toFixed(lons[i]);
+            int lat = toFixed(lats[i]);
+
+            writeSignedVarLong(out, (long)lon - lastLon);
+            writeSignedVarLong(out, (long)lat - lastLat);
+
+            lastLon = lon;
+            lastLat = lat;
+        }
+    }
+
+    /**
+     * Reads coordinates written by writeCoordinates, returned as {lons, lats}.
+     */
+    public static double[][] readCoordinates(DataInput in) throws IOException {
+        int size = readVarInt(in);
+
+        double[] lons = new double[size];
+        double[] lats = new double[size];
+
+        int lon = 0, lat = 0;
+        for(int i = 0; i < size; i++) {
+            lon += (int)readSignedVarLong(in);
+            lat += (int)readSignedVarLong(in);
+
+            lons[i] = fromFixed(lon);
+            lats[i] = fromFixed(lat);
+        }
+
+        return new double[][] {lons, lats};
+    }
+
+    /**
+     * Legacy records start with an 8 byte id whose high byte is always zero. Reads the remaining 7 bytes once
+     * that first byte has been consumed as a format version.
+     */
+    public static long readLegacyId(DataInput in) throws IOException {
+        return ((long)in.readUnsignedByte() << 48)
+                | ((long)in.readUnsignedShort() << 32)
+                | (in.readInt() & 0xFFFFFFFFL);
+    }
+
+}
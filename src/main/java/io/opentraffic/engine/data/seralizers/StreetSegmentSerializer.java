@@ -14,27 +14,49 @@ public class StreetSegmentSerializer implements Serializer<StreetSegment>, Seria
 
     private static final long serialVersionUID = 1l;
 
+    // legacy records start with the high byte of a long id, which is always zero
+    public static final byte LEGACY_FORMAT = 0;
+    // fixed-point delta geometry with varint ids
+    public static final byte COMPACT_FORMAT = 1;
+
     @Override
     public void serialize(DataOutput out, StreetSegment item) throws IOException {
-        out.writeLong(item.id);
-        out.writeInt(item.lats.length);
-
-        for(int i = 0; i < item.lats.length; i++) {
-            out.writeDouble(item.lons[i]);
-            out.writeDouble(item.lats[i]);
-        }
+        out.writeByte(COMPACT_FORMAT);
+        SerializerUtils.writeVarLong(out, item.id);
+        SerializerUtils.writeCoordinates(out, item.lons, item.lats);
 
-        out.writeInt(item.streetType);
+        SerializerUtils.writeVarInt(out, item.streetType);
         out.writeBoolean(item.oneway);
-        out.writeLong(item.wayId);
-        out.writeLong(item.startNodeId);
-        out.writeLong(item.endNodeId);
+        SerializerUtils.writeVarLong(out, item.wayId);
+        SerializerUtils.writeVarLong(out, item.startNodeId);
+        SerializerUtils.writeVarLong(out, item.endNodeId);
         out.writeDouble(item.length);
     }
 
     @Override
     public StreetSegment deserialize(DataInput in, int available) throws IOException {
-        long id = in.readLong();
+        byte format = in.readByte();
+
+        if(format == LEGACY_FORMAT)
+            return deserializeLegacy(in);
+        else if(format != COMPACT_FORMAT)
+            throw new IOException("Unknown street segment format " + format);
+
+        long id = SerializerUtils.readVarLong(in);
+        double[][] coords = SerializerUtils.readCoordinates(in);
+
+        int streetType = SerializerUtils.readVarInt(in);
+        boolean oneway = in.readBoolean();
+        long wayId = SerializerUtils.readVarLong(in);
+        long startNodeId = SerializerUtils.readVarLong(in);
+        long endNodeId = SerializerUtils.readVarLong(in);
+        double length = in.readDouble();
+
+        return new StreetSegment(id, streetType, oneway, wayId, startNodeId, endNodeId, coords[0], coords[1], length);
+    }
+
+    private StreetSegment deserializeLegacy(DataInput in) throws IOException {
+        long id = SerializerUtils.readLegacyId(in);
         int geomSize = in.readInt();
 
         Coordinate coords[] = new Coordinate[geomSize];
@@ -60,4 +82,4 @@ public class StreetSegmentSerializer implements Serializer<StreetSegment>, Seria
         return -1;
     }
 
-}
\ No newline at end of file
+}
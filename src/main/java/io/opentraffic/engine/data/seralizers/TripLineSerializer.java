@@ -14,24 +14,43 @@ public class TripLineSerializer implements Serializer<TripLine>, Serializable {
 
     private static final long serialVersionUID = 1l;
 
+    // legacy records start with the high byte of a long id, which is always zero
+    public static final byte LEGACY_FORMAT = 0;
+    // fixed-point delta geometry with varint ids
+    public static final byte COMPACT_FORMAT = 1;
+
     @Override
     public void serialize(DataOutput out, TripLine item) throws IOException {
-        out.writeLong(item.id);
-        out.writeInt(item.lats.length);
-
-        for(int i = 0; i < item.lats.length; i++) {
-            out.writeDouble(item.lons[i]);
-            out.writeDouble(item.lats[i]);
-        }
+        out.writeByte(COMPACT_FORMAT);
+        SerializerUtils.writeVarLong(out, item.id);
+        SerializerUtils.writeCoordinates(out, item.lons, item.lats);
 
-        out.writeLong(item.segmentId);
-        out.writeInt(item.tripLineIndex);
+        SerializerUtils.writeVarLong(out, item.segmentId);
+        SerializerUtils.writeVarInt(out, item.tripLineIndex);
         out.writeDouble(item.dist);
     }
 
     @Override
     public TripLine deserialize(DataInput in, int available) throws IOException {
-        long id = in.readLong();
+        byte format = in.readByte();
+
+        if(format == LEGACY_FORMAT)
+            return deserializeLegacy(in);
+        else if(format != COMPACT_FORMAT)
+            throw new IOException("Unknown tripline format " + format);
+
+        long id = SerializerUtils.readVarLong(in);
+        double[][] coords = SerializerUtils.readCoordinates(in);
+
+        long segmentId = SerializerUtils.readVarLong(in);
+        int tripLineIndex = SerializerUtils.readVarInt(in);
+        double dist = in.readDouble();
+
+        return new TripLine(id, coords[0], coords[1], segmentId, tripLineIndex, dist);
+    }
+
+    private TripLine deserializeLegacy(DataInput in) throws IOException {
+        long id = SerializerUtils.readLegacyId(in);
         int geomSize = in.readInt();
 
         Coordinate coords[] = new Coordinate[geomSize];
@@ -54,4 +73,4 @@ public class TripLineSerializer implements Serializer<TripLine>, Serializable {
         return -1;
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,54 @@
+package io.opentraffic.engine.data.seralizers;
+
+import io.opentraffic.engine.data.stats.SegmentStatistics;
+import io.opentraffic.engine.data.stats.VehicleSketch;
+import org.mapdb.Serializer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+public class VehicleSketchSerializer implements Serializer<VehicleSketch>, Serializable {
+
+    private static final long serialVersionUID = 1l;
+
+    /**
+     * Writes the number of hours with registers, then each hour followed by its registers.
+     */
+    @Override
+    public void serialize(DataOutput out, VehicleSketch sketch) throws IOException {
+        SerializerUtils.writeVarInt(out, sketch.getHourCount());
+
+        for(int hour = 0; hour < SegmentStatistics.HOURS_IN_WEEK; hour++) {
+            byte[] registers = sketch.getRegisters(hour);
+            if(registers == null)
+                continue;
+
+            out.writeByte(hour);
+            out.write(registers);
+        }
+    }
+
+    @Override
+    public VehicleSketch deserialize(DataInput in, int available) throws IOException {
+        VehicleSketch sketch = new VehicleSketch();
+
+        int hours = SerializerUtils.readVarInt(in);
+        byte[] registers = new byte[VehicleSketch.REGISTERS];
+
+        for(int i = 0; i < hours; i++) {
+            int hour = in.readUnsignedByte();
+            in.readFully(registers);
+            sketch.merge(hour, registers);
+        }
+
+        return sketch;
+    }
+
+    @Override
+    public int fixedSize()  {
+        return -1;
+    }
+
+}
@@ -0,0 +1,67 @@
+package io.opentraffic.engine.data.stats;
+
+/**
+ * Histogram for busy segments, a block of speed bin counts for each hour of the week that has observations. Adding
+ * a sample is two array indexes.
+ */
+public class DenseSpeedHistogram implements SpeedHistogram {
+
+	// [hour][speedBin], rows are allocated when an hour sees its first sample
+	final long[][] counts = new long[SegmentStatistics.HOURS_IN_WEEK][];
+
+	int size;
+
+	public DenseSpeedHistogram() {
+
+	}
+
+	public DenseSpeedHistogram(SpeedHistogram histogram) {
+		histogram.forEach(this::add);
+	}
+
+	@Override
+	public long get(int bin) {
+		long[] row = counts[SegmentStatistics.getHourFromBin(bin)];
+		return row == null ? 0 : row[getSpeedBin(bin)];
+	}
+
+	@Override
+	public void add(int bin, long count) {
+		int hour = SegmentStatistics.getHourFromBin(bin);
+		long[] row = counts[hour];
+
+		if(row == null) {
+			row = new long[SegmentStatistics.NUM_SPEED_BINS];
+			counts[hour] = row;
+		}
+
+		int speedBin = getSpeedBin(bin);
+		if(row[speedBin] == 0 && count != 0)
+			size++;
+
+		row[speedBin] += count;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void forEach(BinConsumer consumer) {
+		for(int hour = 0; hour < SegmentStatistics.HOURS_IN_WEEK; hour++) {
+			long[] row = counts[hour];
+			if(row == null)
+				continue;
+
+			for(int speedBin = 0; speedBin < row.length; speedBin++) {
+				if(row[speedBin] != 0)
+					consumer.accept(SegmentStatistics.getHourSpeedBin(hour, speedBin), row[speedBin]);
+			}
+		}
+	}
+
+	private static int getSpeedBin(int bin) {
+		return Math.min(SegmentStatistics.getSpeedBinFromBin(bin), SegmentStatistics.NUM_SPEED_BINS - 1);
+	}
+}
@@ -1,13 +1,11 @@
 package io.opentraffic.engine.data.stats;
 
-import com.carrotsearch.hppc.ShortLongHashMap;
-import com.carrotsearch.hppc.ShortLongMap;
-import com.carrotsearch.hppc.cursors.ShortLongCursor;
 import io.opentraffic.engine.data.SpeedSample;
 import java.io.Serializable;
-import java.time.*;
-import java.time.temporal.ChronoField;
-import java.time.temporal.ChronoUnit;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
 
 
 public class SegmentStatistics implements Serializable {
@@ -16,32 +14,48 @@ public class SegmentStatistics implements Serializable {
 
 	public final static int HOURS_IN_WEEK = 7 * 24;
 	public final static long WEEK_OFFSET = 24 * 60 * 60 * 1000 * 4; // Jan 1, 1970 is a Thursday. Need to offset to Monday
+	public final static long HOUR_MS = 60 * 60 * 1000;
+	public final static long WEEK_MS = HOURS_IN_WEEK * HOUR_MS;
 	public final static double SPEED_BIN_SIZE = 1.0; // km/h
 	public final static double MAX_TRACKED_SPEED = 120.0; // km/h
 	public final static int NUM_SPEED_BINS = (int)Math.ceil(MAX_TRACKED_SPEED / SPEED_BIN_SIZE);
 
-	private int count;
-	public ShortLongMap hourSpeedMap = new ShortLongHashMap();
+	// a sparse histogram is switched to dense blocks once it has this many non-zero bins
+	public final static int DENSE_HISTOGRAM_BINS = 1024;
 
-	public int getCount() {
-		return count;
+	private long count;
+	private SpeedHistogram histogram;
+
+	public SegmentStatistics() {
+		histogram = new SparseSpeedHistogram();
 	}
 
-	public void addSpeed(int hour, int speedBin, int observationCount) {
-		count += observationCount;
+	/**
+	 * Starts with the histogram representation suited to the number of bins about to be added.
+	 */
+	public SegmentStatistics(int expectedBins) {
+		histogram = expectedBins > DENSE_HISTOGRAM_BINS ? new DenseSpeedHistogram() : new SparseSpeedHistogram(expectedBins);
+	}
 
-		int bin = getHourSpeedBin(hour, speedBin);
+	public long getCount() {
+		return count;
+	}
+
+	public SpeedHistogram getHistogram() {
+		return histogram;
+	}
 
-		addSpeed(bin, observationCount);
+	public void addSpeed(int hour, int speedBin, long observationCount) {
+		addSpeed(getHourSpeedBin(hour, speedBin), observationCount);
 	}
 
-	public void addSpeed(int bin, int observationCount) {
+	public void addSpeed(int bin, long observationCount) {
 		count += observationCount;
 
-		if(bin > Short.MAX_VALUE)
-			System.err.println("Bin " + bin + " exceeds max value, skipping sample.");
-		else
-			hourSpeedMap.putOrAdd((short)bin, observationCount, observationCount);
+		histogram.add(bin, observationCount);
+
+		if(histogram.size() > DENSE_HISTOGRAM_BINS && histogram instanceof SparseSpeedHistogram)
+			histogram = new DenseSpeedHistogram(histogram);
 	}
 
 	public void addSample(SpeedSample ss) {
@@ -53,20 +67,18 @@ public class SegmentStatistics implements Serializable {
 	}
 
 	public void addStats(SegmentStatistics stats) {
-		for(ShortLongCursor cursor : stats.hourSpeedMap) {
-			hourSpeedMap.addTo(cursor.key, cursor.value);
-		}
+		stats.histogram.forEach(this::addSpeed);
 	}
 
 	public static  double getBinMean(int speedBin) {
 		return ((speedBin * SPEED_BIN_SIZE) - (SPEED_BIN_SIZE / 2)) / 3.6;
 	}
 
-	public static int getSpeedBinFromBin(short bin) {
+	public static int getSpeedBinFromBin(int bin) {
 		return bin % HOURS_IN_WEEK;
 	}
 
-	public static int getHourFromBin(short bin) {
+	public static int getHourFromBin(int bin) {
 		return (bin - (bin % HOURS_IN_WEEK)) / HOURS_IN_WEEK;
 	}
 
@@ -76,13 +88,8 @@ public class SegmentStatistics implements Serializable {
 		if(time < 15000000000l)
 			time = time * 1000;
 
-
-		Instant currentTime = Instant.ofEpochMilli(time);
-		ZonedDateTime zonedDateTime = ZonedDateTime.ofInstant(currentTime, ZoneId.of("UTC"));
-		int dayOfWeek = zonedDateTime.get(ChronoField.DAY_OF_WEEK) - 1;
-		int hourOfDay = zonedDateTime.get(ChronoField.HOUR_OF_DAY);
-
-		return (dayOfWeek * 24) + hourOfDay;
+		// WEEK_OFFSET is a Monday at midnight UTC, so the offset into the week gives Monday 00:00 as hour 0
+		return (int)(Math.floorMod(time - WEEK_OFFSET, WEEK_MS) / HOUR_MS);
 	}
 
 	public static int getHourSpeedBin(int hour, int speedBin) {
@@ -111,23 +118,23 @@ public class SegmentStatistics implements Serializable {
 		if(time < 15000000000l)
 			time = time * 1000;
 
-		Instant epoch = Instant.ofEpochMilli(WEEK_OFFSET);
-		Instant currentTime = Instant.ofEpochMilli(time);
-
-		LocalDateTime startDate = LocalDateTime.ofInstant(epoch, ZoneId.of("UTC"));
-		LocalDateTime endDate = LocalDateTime.ofInstant(currentTime, ZoneId.of("UTC"));
-
-		return (int)ChronoUnit.WEEKS.between(startDate, endDate);
+		// whole weeks since WEEK_OFFSET, truncated toward zero like ChronoUnit.WEEKS.between
+		return (int)((time - WEEK_OFFSET) / WEEK_MS);
 	}
 
 	public static long getTimeForWeek(long week) {
+		return WEEK_OFFSET + (week * WEEK_MS);
+	}
 
-		Instant epoch = Instant.ofEpochMilli(WEEK_OFFSET);
-
-		LocalDateTime startDate = LocalDateTime.ofInstant(epoch, ZoneId.of("UTC"));
-		LocalDateTime offsetTime = startDate.plusWeeks(week);
+	// months since January 1970 for a timestamp in ms, UTC like the weeks
+	public static int getMonthSinceEpoch(long time) {
+		ZonedDateTime dateTime = Instant.ofEpochMilli(time).atZone(ZoneOffset.UTC);
+		return ((dateTime.getYear() - 1970) * 12) + dateTime.getMonthValue() - 1;
+	}
 
-		return offsetTime.toEpochSecond(ZoneOffset.UTC) * 1000;
+	public static long getTimeForMonth(int month) {
+		return LocalDate.of(1970 + Math.floorDiv(month, 12), Math.floorMod(month, 12) + 1, 1)
+				.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
 	}
 
 }
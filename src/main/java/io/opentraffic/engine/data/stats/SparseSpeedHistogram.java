@@ -0,0 +1,54 @@
+package io.opentraffic.engine.data.stats;
+
+import com.carrotsearch.hppc.ShortLongHashMap;
+import com.carrotsearch.hppc.cursors.ShortLongCursor;
+
+import java.util.Arrays;
+
+/**
+ * Histogram for segments with few observations, only bins with counts take space.
+ */
+public class SparseSpeedHistogram implements SpeedHistogram {
+
+	final ShortLongHashMap counts;
+
+	public SparseSpeedHistogram() {
+		counts = new ShortLongHashMap();
+	}
+
+	public SparseSpeedHistogram(int expectedBins) {
+		counts = new ShortLongHashMap(expectedBins);
+	}
+
+	@Override
+	public long get(int bin) {
+		return counts.get((short)bin);
+	}
+
+	@Override
+	public void add(int bin, long count) {
+		if(bin > Short.MAX_VALUE)
+			System.err.println("Bin " + bin + " exceeds max value, skipping sample.");
+		else
+			counts.addTo((short)bin, count);
+	}
+
+	@Override
+	public int size() {
+		return counts.size();
+	}
+
+	@Override
+	public void forEach(BinConsumer consumer) {
+		short[] bins = new short[counts.size()];
+		int i = 0;
+		for(ShortLongCursor cursor : counts) {
+			bins[i++] = cursor.key;
+		}
+		Arrays.sort(bins);
+
+		for(short bin : bins) {
+			consumer.accept(bin, counts.get(bin));
+		}
+	}
+}
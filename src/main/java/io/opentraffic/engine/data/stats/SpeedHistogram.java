@@ -0,0 +1,26 @@
+package io.opentraffic.engine.data.stats;
+
+/**
+ * Observation counts by hour of week and speed bin. Bins are addressed by the packed index from
+ * SegmentStatistics.getHourSpeedBin.
+ */
+public interface SpeedHistogram {
+
+	interface BinConsumer {
+		void accept(int bin, long count);
+	}
+
+	long get(int bin);
+
+	void add(int bin, long count);
+
+	/**
+	 * Number of bins with a non-zero count.
+	 */
+	int size();
+
+	/**
+	 * Visits every non-zero bin in ascending bin order.
+	 */
+	void forEach(BinConsumer consumer);
+}
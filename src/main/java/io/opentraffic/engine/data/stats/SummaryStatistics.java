@@ -1,25 +1,43 @@
 package io.opentraffic.engine.data.stats;
 
-import com.carrotsearch.hppc.*;
-import com.carrotsearch.hppc.cursors.ShortDoubleCursor;
-import com.carrotsearch.hppc.cursors.ShortLongCursor;
-
 import java.util.Set;
 
 
+/**
+ * Speed observations summed by hour of week. Counts, sums and sums of squares are kept in arrays indexed by hour, so
+ * means and deviations for every hour come from one pass over 168 entries. When normalizing, each record's bins are
+ * weighted by the record's share of observations, the weights drive the deviations and quantiles while means use
+ * the raw counts.
+ */
 public class SummaryStatistics {
 
+	// quantiles reported in baseline exports
+	public static final double P15 = 0.15;
+	public static final double BOTTOM_QUARTILE = 0.25;
+	public static final double MEDIAN = 0.5;
+	public static final double TOP_QUARTILE = 0.75;
+	public static final double P85 = 0.85;
+
     public boolean inferred = false;
 	public boolean normalize;
 	public double count;
 	public double sum;
 
-	public Double stdDevCache;
-	public IntDoubleMap hourStdDevCache;
+	// raw observation counts and speed sums by hour
+	public final double[] hourCount = new double[SegmentStatistics.HOURS_IN_WEEK];
+	public final double[] hourSum = new double[SegmentStatistics.HOURS_IN_WEEK];
+
+	// (normalized) weights and weighted speed sums and sums of squares by hour
+	final double[] hourWeight = new double[SegmentStatistics.HOURS_IN_WEEK];
+	final double[] hourWeightedSum = new double[SegmentStatistics.HOURS_IN_WEEK];
+	final double[] hourWeightedSumSq = new double[SegmentStatistics.HOURS_IN_WEEK];
+
+	// weights as [hour][speedBin] for quantiles, rows are allocated when an hour sees its first observation
+	final double[][] hourBinWeights = new double[SegmentStatistics.HOURS_IN_WEEK][];
 
-	public IntDoubleMap hourCount = new IntDoubleHashMap();
-	public IntDoubleMap hourSum = new IntDoubleHashMap();
-	public ShortDoubleMap hourSpeedMap = new ShortDoubleHashMap();
+	// computed on first use and dropped by add
+	Double stdDevCache;
+	double[] hourStdDevCache;
 
 	Set<Integer> hours;
 
@@ -29,41 +47,99 @@ public class SummaryStatistics {
 			this.hours = hours;
 	}
 
+	/**
+	 * A deep copy, including computed deviations.
+	 */
+	public SummaryStatistics copy() {
+		SummaryStatistics copy = new SummaryStatistics(normalize, hours);
+		copy.inferred = inferred;
+		copy.count = count;
+		copy.sum = sum;
+
+		System.arraycopy(hourCount, 0, copy.hourCount, 0, hourCount.length);
+		System.arraycopy(hourSum, 0, copy.hourSum, 0, hourSum.length);
+		System.arraycopy(hourWeight, 0, copy.hourWeight, 0, hourWeight.length);
+		System.arraycopy(hourWeightedSum, 0, copy.hourWeightedSum, 0, hourWeightedSum.length);
+		System.arraycopy(hourWeightedSumSq, 0, copy.hourWeightedSumSq, 0, hourWeightedSumSq.length);
+
+		for(int hour = 0; hour < hourBinWeights.length; hour++) {
+			if(hourBinWeights[hour] != null)
+				copy.hourBinWeights[hour] = hourBinWeights[hour].clone();
+		}
+
+		copy.stdDevCache = stdDevCache;
+		copy.hourStdDevCache = hourStdDevCache != null ? hourStdDevCache.clone() : null;
+
+		return copy;
+	}
+
 	public void add(SegmentStatistics segmentStatistics, Long segmentId) {
-			stdDevCache = null;
+		stdDevCache = null;
 		hourStdDevCache = null;
 
-		double segmentCount = 0;
-		double segmentSum = 0;
+		double recordCount = segmentStatistics.getCount();
 
-		for(ShortLongCursor cursor : segmentStatistics.hourSpeedMap) {
-			short bin = cursor.key;
+		segmentStatistics.getHistogram().forEach((bin, binCount) -> {
 			int hour = SegmentStatistics.getHourFromBin(bin);
 
 			if(hours != null && !hours.contains(hour))
-				continue;
+				return;
 
-			long binCount = cursor.value;
+			int speedBin = Math.min(SegmentStatistics.getSpeedBinFromBin(bin), SegmentStatistics.NUM_SPEED_BINS - 1);
+			double speed = SegmentStatistics.getBinMean(speedBin);
 
-			if(normalize)
-				hourSpeedMap.putOrAdd(bin, (double)binCount / (double)segmentStatistics.getCount(), (double)binCount / (double)segmentStatistics.getCount());
-			else
-				hourSpeedMap.putOrAdd(bin, (double)binCount, (double)binCount);
+			double weight = normalize ? (double)binCount / recordCount : (double)binCount;
 
+			hourCount[hour] += binCount;
+			hourSum[hour] += speed * binCount;
 
-			int speedBin = SegmentStatistics.getSpeedBinFromBin(bin);
-			double speed = SegmentStatistics.getBinMean(speedBin);
+			hourWeight[hour] += weight;
+			hourWeightedSum[hour] += speed * weight;
+			hourWeightedSumSq[hour] += speed * speed * weight;
 
-			hourCount.putOrAdd(hour, (double)binCount, (double)binCount);
-			hourSum.putOrAdd(hour, speed * (double)binCount, speed * (double)binCount);
+			double[] row = hourBinWeights[hour];
+			if(row == null) {
+				row = new double[SegmentStatistics.NUM_SPEED_BINS];
+				hourBinWeights[hour] = row;
+			}
+			row[speedBin] += weight;
 
 			count += binCount;
 			sum += speed * binCount;
+		});
 
-			segmentCount += binCount;
-			segmentSum += speed * binCount;
+	}
+
+	/**
+	 * Adds another summary's observations, as if its records had been added to this one. Both must use the same
+	 * normalize and hours settings. Lets partial summaries built on separate threads be merged.
+	 */
+	public void combine(SummaryStatistics other) {
+		stdDevCache = null;
+		hourStdDevCache = null;
+
+		for(int hour = 0; hour < SegmentStatistics.HOURS_IN_WEEK; hour++) {
+			hourCount[hour] += other.hourCount[hour];
+			hourSum[hour] += other.hourSum[hour];
+
+			hourWeight[hour] += other.hourWeight[hour];
+			hourWeightedSum[hour] += other.hourWeightedSum[hour];
+			hourWeightedSumSq[hour] += other.hourWeightedSumSq[hour];
+
+			double[] otherRow = other.hourBinWeights[hour];
+			if(otherRow == null)
+				continue;
+
+			if(hourBinWeights[hour] == null)
+				hourBinWeights[hour] = new double[SegmentStatistics.NUM_SPEED_BINS];
+
+			for(int speedBin = 0; speedBin < otherRow.length; speedBin++) {
+				hourBinWeights[hour][speedBin] += otherRow[speedBin];
+			}
 		}
 
+		count += other.count;
+		sum += other.sum;
 	}
 
 	public double getMean() {
@@ -75,13 +151,25 @@ public class SummaryStatistics {
 	}
 
 	public double getMean(int hour) {
-		if(hourCount.get(hour) > 0) {
-			return hourSum.get(hour) / hourCount.get(hour);
+		if(hourCount[hour] > 0) {
+			return hourSum[hour] / hourCount[hour];
 		}
 		else
 			return Double.NaN;
 	}
 
+	/**
+	 * Mean speed (m/s) for every hour of the week, NaN for hours without observations.
+	 */
+	public double[] getHourlyMeans() {
+		double[] means = new double[SegmentStatistics.HOURS_IN_WEEK];
+		for(int hour = 0; hour < means.length; hour++) {
+			means[hour] = getMean(hour);
+		}
+
+		return means;
+	}
+
 	public double getStdDev() {
 
 		if(stdDevCache != null)
@@ -90,74 +178,123 @@ public class SummaryStatistics {
 		if(count == 0)
 			return Double.NaN;
 
-		final double mean = getMean();
-
-		double squaredSum = 0.0;
-
-		for(ShortDoubleCursor cursor : hourSpeedMap) {
-			short bin = cursor.key;
-			double count = cursor.value;
-
-			int speedBin = SegmentStatistics.getSpeedBinFromBin(bin);
-			double speed = SegmentStatistics.getBinMean(speedBin);
-
-
-			double difference = speed - mean;
-			squaredSum += ((difference * difference) * count);
+		double weight = 0.0, weightedSum = 0.0, weightedSumSq = 0.0;
+		for(int hour = 0; hour < SegmentStatistics.HOURS_IN_WEEK; hour++) {
+			weight += hourWeight[hour];
+			weightedSum += hourWeightedSum[hour];
+			weightedSumSq += hourWeightedSumSq[hour];
 		}
 
-		double meanSquaredSum = squaredSum / count;
-
-		stdDevCache =  Math.sqrt(meanSquaredSum);
+		stdDevCache = getStdDev(getMean(), count, weight, weightedSum, weightedSumSq);
 
 		return stdDevCache;
 	}
 
 	public double getStdDev(int hour) {
+		return getHourlyStdDevs()[hour];
+	}
 
-		if(hourStdDevCache != null && hourStdDevCache.containsKey(hour))
-			return hourStdDevCache.get(hour);
+	/**
+	 * Standard deviation for every hour of the week, NaN for hours without observations. Computed for all hours at
+	 * once and cached until the next add.
+	 */
+	public double[] getHourlyStdDevs() {
 
-		if(hourCount.get(hour) == 0)
-			return Double.NaN;
+		if(hourStdDevCache != null)
+			return hourStdDevCache;
+
+		double[] stdDevs = new double[SegmentStatistics.HOURS_IN_WEEK];
+		for(int hour = 0; hour < stdDevs.length; hour++) {
+			if(hourCount[hour] == 0)
+				stdDevs[hour] = Double.NaN;
+			else
+				stdDevs[hour] = getStdDev(getMean(hour), hourCount[hour], hourWeight[hour], hourWeightedSum[hour], hourWeightedSumSq[hour]);
+		}
 
-		final double mean = getMean(hour);
+		hourStdDevCache = stdDevs;
 
-		double squaredSum = 0.0;
+		return stdDevs;
+	}
 
-		double binCount = hourCount.get(hour);
-		double tmpBinCount = 0.0;
+	/**
+	 * Weighted squared deviations from the (raw) mean, sum(w * (x - mean)^2) expanded over the running sums,
+	 * divided by the raw count.
+	 */
+	private static double getStdDev(double mean, double count, double weight, double weightedSum, double weightedSumSq) {
+		double squaredSum = weightedSumSq - (2 * mean * weightedSum) + (mean * mean * weight);
 
-		for(ShortDoubleCursor cursor : hourSpeedMap) {
+		// rounding can leave a tiny negative value when every observation is in one bin
+		return Math.sqrt(Math.max(0.0, squaredSum) / count);
+	}
 
-			short bin = cursor.key;
-			int binHour = SegmentStatistics.getHourFromBin(bin);
+	/**
+	 * Approximate heap bytes held by the hourly arrays and allocated speed bin rows.
+	 */
+	public long getSizeInBytes() {
+		long size = 5l * 8 * SegmentStatistics.HOURS_IN_WEEK;
+		for(double[] row : hourBinWeights) {
+			if(row != null)
+				size += 8 * row.length;
+		}
+		return size;
+	}
 
-			if(binHour != hour)
+	/**
+	 * Speed (m/s) below which the given fraction of observations fall, to the speed bin.
+	 */
+	public double getQuantile(double quantile) {
+		double[] weights = new double[SegmentStatistics.NUM_SPEED_BINS];
+		for(double[] row : hourBinWeights) {
+			if(row == null)
 				continue;
 
-			double count = cursor.value;
-			tmpBinCount += count;
+			for(int speedBin = 0; speedBin < weights.length; speedBin++) {
+				weights[speedBin] += row[speedBin];
+			}
+		}
 
-			int speedBin = SegmentStatistics.getSpeedBinFromBin(bin);
-			double speed = SegmentStatistics.getBinMean(speedBin);
+		return getQuantile(weights, quantile);
+	}
 
-			double difference = speed - mean;
-			squaredSum += ((difference * difference) * count);
+	public double getQuantile(int hour, double quantile) {
+		return getQuantile(hourBinWeights[hour], quantile);
+	}
 
-			if(binCount == tmpBinCount)
-				break;
+	/**
+	 * A quantile for every hour of the week, NaN for hours without observations.
+	 */
+	public double[] getHourlyQuantiles(double quantile) {
+		double[] quantiles = new double[SegmentStatistics.HOURS_IN_WEEK];
+		for(int hour = 0; hour < quantiles.length; hour++) {
+			quantiles[hour] = getQuantile(hourBinWeights[hour], quantile);
 		}
 
-		double meanSquaredSum = squaredSum / hourCount.get(hour);
+		return quantiles;
+	}
+
+	/**
+	 * Cumulative scan over a row of speed bin weights.
+	 */
+	private static double getQuantile(double[] weights, double quantile) {
+		if(weights == null)
+			return Double.NaN;
 
-		if(hourStdDevCache == null)
-			hourStdDevCache = new IntDoubleHashMap();
+		double total = 0.0;
+		for(double weight : weights) {
+			total += weight;
+		}
 
-		double stdDev = Math.sqrt(meanSquaredSum);
+		if(total == 0)
+			return Double.NaN;
 
-		hourStdDevCache.put(hour, stdDev);
+		double target = quantile * total;
+		double cumulative = 0.0;
+		for(int speedBin = 0; speedBin < weights.length; speedBin++) {
+			cumulative += weights[speedBin];
+			if(weights[speedBin] > 0 && cumulative >= target)
+				return SegmentStatistics.getBinMean(speedBin);
+		}
 
-		return stdDev;
+		return SegmentStatistics.getBinMean(weights.length - 1);
 	}
 }
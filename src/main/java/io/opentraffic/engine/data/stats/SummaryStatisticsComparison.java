@@ -77,7 +77,7 @@ public class SummaryStatisticsComparison {
 	}
 
 	public double getMeanSize(int hour) {
-		return (stats1.hourCount.get(hour) + stats1.hourCount.get(hour)) / 2;
+		return (stats1.hourCount[hour] + stats1.hourCount[hour]) / 2;
 	}
 
 	public double difference() {
@@ -127,14 +127,14 @@ public class SummaryStatisticsComparison {
 
 	public double combinedStdDev(int hour) {
 
-		if(stats1.hourCount.get(hour) == 0 || stats2.hourCount.get(hour) == 0)
+		if(stats1.hourCount[hour] == 0 || stats2.hourCount[hour] == 0)
 			return Double.NaN;
 
 		double stdDev1 = stats1.getStdDev(hour);
 		double stdDev2 = stats1.getStdDev(hour);
 
-		double stdDevSample1 = Math.pow(stdDev1, 2) / stats1.hourCount.get(hour);
-		double stdDevSample2 = Math.pow(stdDev2, 2) / stats2.hourCount.get(hour);
+		double stdDevSample1 = Math.pow(stdDev1, 2) / stats1.hourCount[hour];
+		double stdDevSample2 = Math.pow(stdDev2, 2) / stats2.hourCount[hour];
 
 		double combinedStdDevSample = stdDevSample1 + stdDevSample2;
 
@@ -158,63 +158,31 @@ public class SummaryStatisticsComparison {
 	}
 
 	public double tCrit() {
-
-		// Satterthwaite Formula from
-		// https://onlinecourses.science.psu.edu/stat200/node/60
-
-		if(stats1.count == 0 || stats2.count == 0)
-			return Double.NaN;
-		else if(stats1.count > 35 &&  stats2.count > 35)
-			return T_CRIT[34][pValue];
-
-		double count1 = stats1.count;
-		double count2 = stats2.count;
-
-		double stdDevSqr1 = Math.pow(stats1.getStdDev(), 2);
-		double stdDevSqr2 = Math.pow(stats2.getStdDev(), 2);
-
-		double stdDevSample1 = stdDevSqr1 / count1;
-		double stdDevSample2 = stdDevSqr2 / count2;
-
-		double term1 = Math.pow((stdDevSample1 + stdDevSample2), 2);
-
-		double term2 = 	(1 /(count1 - 1)) * Math.pow(stdDevSample1, 2) +
-						(1 /(count2 - 1)) * Math.pow(stdDevSample2, 2);
-
-		int df = (int)Math.round(term1 / term2) - 1;
-
-		if(df > 34)
-			df = 34;
-		else if(df < 0)
-			df = 0;
-
-		return T_CRIT[df][pValue];
-
+		return tCrit(stats1.count, Math.pow(stats1.getStdDev(), 2), stats2.count, Math.pow(stats2.getStdDev(), 2), pValue);
 	}
 
 	public double tCrit(int hour) {
+		return tCrit(stats1.hourCount[hour], Math.pow(stats1.getStdDev(hour), 2), stats2.hourCount[hour], Math.pow(stats2.getStdDev(hour), 2), pValue);
+	}
 
-		// Satterthwaite Formula for DF calc
-		// https://onlinecourses.science.psu.edu/stat200/node/60
+	/**
+	 * Critical t value for comparing two samples given their sizes and variances, with degrees of freedom from the
+	 * Satterthwaite formula, https://onlinecourses.science.psu.edu/stat200/node/60
+	 */
+	public static double tCrit(double count1, double variance1, double count2, double variance2, int pValue) {
 
-		if(stats1.hourCount.get(hour) == 0 || stats2.hourCount.get(hour) == 0)
+		if(count1 == 0 || count2 == 0)
 			return Double.NaN;
-		else if(stats1.hourCount.get(hour) > 35 &&  stats2.hourCount.get(hour) > 35)
+		else if(count1 > 35 &&  count2 > 35)
 			return T_CRIT[34][pValue];
 
-		double count1 = stats1.hourCount.get(hour);
-		double count2 = stats2.hourCount.get(hour);
-
-		double stdDevSqr1 = Math.pow(stats1.getStdDev(hour), 2);
-		double stdDevSqr2 = Math.pow(stats2.getStdDev(hour), 2);
-
-		double stdDevSample1 = stdDevSqr1 / count1;
-		double stdDevSample2 = stdDevSqr2 / count2;
+		double stdDevSample1 = variance1 / count1;
+		double stdDevSample2 = variance2 / count2;
 
 		double term1 = Math.pow((stdDevSample1 + stdDevSample2), 2);
 
 		double term2 = 	(1 /(count1 - 1)) * Math.pow(stdDevSample1, 2) +
-				(1 /(count2 - 1)) * Math.pow(stdDevSample2, 2);
+						(1 /(count2 - 1)) * Math.pow(stdDevSample2, 2);
 
 		int df = (int)Math.round(term1 / term2) - 1;
 
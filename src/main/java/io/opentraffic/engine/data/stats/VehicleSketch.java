@@ -0,0 +1,136 @@
+package io.opentraffic.engine.data.stats;
+
+import java.io.Serializable;
+import java.util.Set;
+
+/**
+ * Approximate distinct vehicle counts by hour of week, a 64 register HyperLogLog sketch per hour with observations.
+ * Each hour costs 64 bytes whatever the traffic and estimates are within about 13%. Sketches merge by taking the
+ * larger register, so weeks and hours can be combined at query time without counting a vehicle twice.
+ */
+public class VehicleSketch implements Serializable {
+
+	private static final long serialVersionUID = 1l;
+
+	public static final int REGISTER_BITS = 6;
+	public static final int REGISTERS = 1 << REGISTER_BITS;
+
+	// bias correction for 64 registers
+	private static final double ALPHA = 0.709;
+
+	// registers by hour of week, allocated when an hour sees its first vehicle
+	private final byte[][] hourRegisters = new byte[SegmentStatistics.HOURS_IN_WEEK][];
+
+	public void add(int hour, long vehicleId) {
+		add(getOrCreateRegisters(hour), vehicleId);
+	}
+
+	/**
+	 * Registers for the hour, null if no vehicle was seen in it.
+	 */
+	public byte[] getRegisters(int hour) {
+		return hourRegisters[hour];
+	}
+
+	public void merge(int hour, byte[] registers) {
+		merge(getOrCreateRegisters(hour), registers);
+	}
+
+	public void merge(VehicleSketch other) {
+		for(int hour = 0; hour < SegmentStatistics.HOURS_IN_WEEK; hour++) {
+			if(other.hourRegisters[hour] != null)
+				merge(hour, other.hourRegisters[hour]);
+		}
+	}
+
+	/**
+	 * Number of hours with observations.
+	 */
+	public int getHourCount() {
+		int count = 0;
+		for(byte[] registers : hourRegisters) {
+			if(registers != null)
+				count++;
+		}
+		return count;
+	}
+
+	public double estimate(int hour) {
+		return hourRegisters[hour] != null ? estimate(hourRegisters[hour]) : 0.0;
+	}
+
+	/**
+	 * Distinct vehicles across the given hours, or every hour when hours is null or empty.
+	 */
+	public double estimate(Set<Integer> hours) {
+		byte[] merged = new byte[REGISTERS];
+		for(int hour = 0; hour < SegmentStatistics.HOURS_IN_WEEK; hour++) {
+			if(hourRegisters[hour] != null && (hours == null || hours.isEmpty() || hours.contains(hour)))
+				merge(merged, hourRegisters[hour]);
+		}
+
+		return estimate(merged);
+	}
+
+	private byte[] getOrCreateRegisters(int hour) {
+		byte[] registers = hourRegisters[hour];
+		if(registers == null) {
+			registers = new byte[REGISTERS];
+			hourRegisters[hour] = registers;
+		}
+		return registers;
+	}
+
+	/**
+	 * The top bits of the vehicle's hash pick a register, which keeps the longest run of leading zeros seen in
+	 * the remaining bits.
+	 */
+	public static void add(byte[] registers, long vehicleId) {
+		long hash = hash(vehicleId);
+
+		int register = (int)(hash >>> (64 - REGISTER_BITS));
+		int rank = Math.min(Long.numberOfLeadingZeros(hash << REGISTER_BITS), 64 - REGISTER_BITS) + 1;
+
+		if(rank > registers[register])
+			registers[register] = (byte)rank;
+	}
+
+	public static void merge(byte[] target, byte[] registers) {
+		for(int i = 0; i < REGISTERS; i++) {
+			if(registers[i] > target[i])
+				target[i] = registers[i];
+		}
+	}
+
+	/**
+	 * The HyperLogLog estimate, switching to linear counting while some registers are still empty.
+	 */
+	public static double estimate(byte[] registers) {
+		double sum = 0.0;
+		int empty = 0;
+		for(byte register : registers) {
+			sum += 1.0 / (1l << register);
+			if(register == 0)
+				empty++;
+		}
+
+		double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+
+		if(estimate <= 2.5 * REGISTERS && empty > 0)
+			return REGISTERS * Math.log((double)REGISTERS / empty);
+
+		return estimate;
+	}
+
+	/**
+	 * Murmur3 finalizer, vehicle ids are often sequential so they need mixing before their bits are used.
+	 */
+	static long hash(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdl;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53l;
+		value ^= value >>> 33;
+		return value;
+	}
+}
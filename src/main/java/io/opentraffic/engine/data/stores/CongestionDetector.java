@@ -0,0 +1,249 @@
+package io.opentraffic.engine.data.stores;
+
+import com.carrotsearch.hppc.LongObjectHashMap;
+import io.opentraffic.engine.data.SpeedSample;
+import io.opentraffic.engine.data.stats.SegmentStatistics;
+import io.opentraffic.engine.data.stats.SummaryStatisticsComparison;
+import org.mapdb.Fun;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming congestion detection for one writer shard's segments. Each active segment keeps count, sum and sum of
+ * squares for a few short time slots, so a sample costs a constant amount of work, and the window made of the
+ * latest slots is compared with the segment's record for the sample's hour of week in the weeks before the sample's
+ * using Welch's t-test. Listeners hear when the window becomes significantly slower than the baseline and when it
+ * recovers.
+ *
+ * Baselines are read once per segment and hour: the all-time record less the sample's own week, so the samples
+ * being judged (and the rest of the current hour, as it's flushed) aren't part of what they're judged against. Both
+ * records are written by the shard's thread, which is the only one that touches the detector. Time is taken from
+ * the samples, so replayed data is judged by when it was recorded.
+ */
+public class CongestionDetector {
+
+	static final long SLOT_MS = 5 * 60 * 1000;
+
+	// the window is this many slots, the latest one included
+	static final int WINDOW_SLOTS = 3;
+
+	static final int MIN_WINDOW_SAMPLES = 5;
+	static final int MIN_BASELINE_SAMPLES = 30;
+
+	final StatsDataStore store;
+	final int pValue;
+
+	LongObjectHashMap<SegmentWindow> windows = new LongObjectHashMap<>();
+
+	long latestSlot = Long.MIN_VALUE;
+	long lastExpiredSlot = Long.MIN_VALUE;
+
+	public CongestionDetector(StatsDataStore store, int pValue) {
+		this.store = store;
+		this.pValue = pValue;
+	}
+
+	void add(List<SpeedSample> speedSamples) {
+		for(SpeedSample speedSample : speedSamples) {
+			add(speedSample);
+		}
+	}
+
+	public void add(SpeedSample speedSample) {
+		long slot = Math.floorDiv(speedSample.getTime(), SLOT_MS);
+
+		if(slot > latestSlot) {
+			latestSlot = slot;
+
+			// segments that went quiet are dropped once per slot
+			if(slot > lastExpiredSlot) {
+				expire();
+				lastExpiredSlot = slot;
+			}
+		}
+
+		long segmentId = speedSample.getSegmentId();
+
+		SegmentWindow window = windows.get(segmentId);
+		if(window == null) {
+			window = new SegmentWindow(segmentId, slot);
+			windows.put(segmentId, window);
+		}
+
+		if(!window.add(slot, speedSample.getSpeed()))
+			return;
+
+		window.loadBaseline(speedSample.getTime());
+
+		CongestionEvent event = window.test(speedSample.getTime());
+		if(event != null)
+			notifyListeners(event);
+	}
+
+	public int getActiveSegmentCount() {
+		return windows.size();
+	}
+
+	/**
+	 * Drops windows without samples in the current window, congested segments are reported as clear.
+	 */
+	private void expire() {
+		List<CongestionEvent> cleared = new ArrayList<>();
+
+		windows.removeAll((segmentId, window) -> {
+			if(window.latestSlot > latestSlot - WINDOW_SLOTS)
+				return false;
+
+			if(window.congested)
+				cleared.add(new CongestionEvent(segmentId, (latestSlot * SLOT_MS), false, Double.NaN, 0,
+						window.baselineMean, window.baselineCount, Double.NaN, Double.NaN));
+
+			return true;
+		});
+
+		for(CongestionEvent event : cleared) {
+			notifyListeners(event);
+		}
+	}
+
+	private void notifyListeners(CongestionEvent event) {
+		for(CongestionListener listener : store.congestionListeners) {
+			try {
+				listener.congestionChanged(event);
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	class SegmentWindow {
+
+		final long segmentId;
+
+		// slot numbers and their sufficient statistics, indexed by slot modulo WINDOW_SLOTS
+		final long[] slots = new long[WINDOW_SLOTS];
+		final int[] counts = new int[WINDOW_SLOTS];
+		final double[] sums = new double[WINDOW_SLOTS];
+		final double[] sumSqs = new double[WINDOW_SLOTS];
+
+		long latestSlot;
+
+		int baselineWeek;
+		int baselineHour = -1;
+		double baselineCount;
+		double baselineMean;
+		double baselineVariance;
+
+		boolean congested;
+
+		SegmentWindow(long segmentId, long slot) {
+			this.segmentId = segmentId;
+			this.latestSlot = slot;
+		}
+
+		/**
+		 * Adds a speed to its slot, returns false for samples that are too late to fall in the window.
+		 */
+		boolean add(long slot, double speed) {
+			if(slot <= latestSlot - WINDOW_SLOTS)
+				return false;
+
+			latestSlot = Math.max(latestSlot, slot);
+
+			int i = (int)Math.floorMod(slot, (long)WINDOW_SLOTS);
+			if(slots[i] != slot || counts[i] == 0) {
+				slots[i] = slot;
+				counts[i] = 0;
+				sums[i] = 0;
+				sumSqs[i] = 0;
+			}
+
+			counts[i]++;
+			sums[i] += speed;
+			sumSqs[i] += speed * speed;
+
+			return true;
+		}
+
+		void loadBaseline(long time) {
+			int week = SegmentStatistics.getWeekSinceEpoch(time);
+			int hour = SegmentStatistics.getHourOfWeek(time);
+
+			if(hour == baselineHour && week == baselineWeek)
+				return;
+
+			baselineWeek = week;
+			baselineHour = hour;
+
+			// observations by speed bin for the hour, all time less this week
+			double[] binCounts = new double[SegmentStatistics.NUM_SPEED_BINS];
+			addHourBins(binCounts, store.cumulativeStatsMap.get(segmentId), hour, 1);
+			addHourBins(binCounts, store.statsMap.get(new Fun.Tuple2<>(segmentId, week)), hour, -1);
+
+			double count = 0, sum = 0, sumSq = 0;
+			for(int speedBin = 0; speedBin < binCounts.length; speedBin++) {
+				if(binCounts[speedBin] <= 0)
+					continue;
+
+				double speed = SegmentStatistics.getBinMean(speedBin);
+
+				count += binCounts[speedBin];
+				sum += speed * binCounts[speedBin];
+				sumSq += speed * speed * binCounts[speedBin];
+			}
+
+			baselineCount = count;
+			baselineMean = count > 0 ? sum / count : Double.NaN;
+			baselineVariance = count > 1 ? Math.max(0.0, (sumSq - sum * baselineMean) / (count - 1)) : Double.NaN;
+		}
+
+		private void addHourBins(double[] binCounts, SegmentStatistics stats, int hour, int sign) {
+			if(stats == null)
+				return;
+
+			stats.getHistogram().forEach((bin, binCount) -> {
+				if(SegmentStatistics.getHourFromBin(bin) == hour)
+					binCounts[Math.min(SegmentStatistics.getSpeedBinFromBin(bin), binCounts.length - 1)] += sign * binCount;
+			});
+		}
+
+		/**
+		 * Tests the window against the baseline, returns an event when the outcome changed.
+		 */
+		CongestionEvent test(long time) {
+			double count = 0, sum = 0, sumSq = 0;
+			for(int i = 0; i < WINDOW_SLOTS; i++) {
+				if(counts[i] == 0 || slots[i] <= latestSlot - WINDOW_SLOTS)
+					continue;
+
+				count += counts[i];
+				sum += sums[i];
+				sumSq += sumSqs[i];
+			}
+
+			if(count < MIN_WINDOW_SAMPLES || baselineCount < MIN_BASELINE_SAMPLES)
+				return null;
+
+			double mean = sum / count;
+			double variance = Math.max(0.0, (sumSq - sum * mean) / (count - 1));
+
+			double standardError = Math.sqrt(baselineVariance / baselineCount + variance / count);
+			if(standardError == 0)
+				return null;
+
+			// positive when the window is slower than the baseline
+			double tStat = (baselineMean - mean) / standardError;
+			double tCrit = SummaryStatisticsComparison.tCrit(baselineCount, baselineVariance, count, variance, pValue);
+
+			boolean slower = tStat > tCrit;
+			if(slower == congested)
+				return null;
+
+			congested = slower;
+
+			return new CongestionEvent(segmentId, time, congested, mean, count, baselineMean, baselineCount, tStat, tCrit);
+		}
+	}
+}
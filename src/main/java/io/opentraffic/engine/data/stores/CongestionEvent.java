@@ -0,0 +1,79 @@
+package io.opentraffic.engine.data.stores;
+
+/**
+ * A segment entering or leaving congestion. Speeds are m/s, the window is the detector's recent samples and the
+ * baseline is the segment's record for the same hour of week in the weeks before.
+ */
+public class CongestionEvent {
+
+	final long segmentId;
+	final long time;
+	final boolean congested;
+
+	final double windowMean;
+	final double windowCount;
+	final double baselineMean;
+	final double baselineCount;
+
+	final double tStat;
+	final double tCrit;
+
+	CongestionEvent(long segmentId, long time, boolean congested, double windowMean, double windowCount,
+					double baselineMean, double baselineCount, double tStat, double tCrit) {
+		this.segmentId = segmentId;
+		this.time = time;
+		this.congested = congested;
+		this.windowMean = windowMean;
+		this.windowCount = windowCount;
+		this.baselineMean = baselineMean;
+		this.baselineCount = baselineCount;
+		this.tStat = tStat;
+		this.tCrit = tCrit;
+	}
+
+	public String toString() {
+		return "[CongestionEvent:" + segmentId + " congested:" + congested + " speed:" + windowMean + " baseline:" + baselineMean + " t:" + tStat + "]";
+	}
+
+	public long getSegmentId() {
+		return segmentId;
+	}
+
+	/**
+	 * Time of the sample that triggered the change.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * True when congestion starts, false when it clears.
+	 */
+	public boolean isCongested() {
+		return congested;
+	}
+
+	public double getWindowMean() {
+		return windowMean;
+	}
+
+	public double getWindowCount() {
+		return windowCount;
+	}
+
+	public double getBaselineMean() {
+		return baselineMean;
+	}
+
+	public double getBaselineCount() {
+		return baselineCount;
+	}
+
+	public double getTStat() {
+		return tStat;
+	}
+
+	public double getTCrit() {
+		return tCrit;
+	}
+}
@@ -0,0 +1,11 @@
+package io.opentraffic.engine.data.stores;
+
+/**
+ * Notified by the writer shards when a segment's recent speeds become, or stop being, significantly slower than
+ * its baseline for the hour of week. Called on the shard's thread, so implementations should return quickly.
+ */
+public interface CongestionListener {
+
+	void congestionChanged(CongestionEvent event);
+
+}
@@ -0,0 +1,185 @@
+package io.opentraffic.engine.data.stores;
+
+import io.opentraffic.engine.data.SpeedSample;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Speeds over the last hour per segment, in a ring of twelve 5 minute slots. Each slot is one long packing the
+ * slot's number (time / SLOT_MS, truncated), its sample count and its speed sum, so adding a sample is a single
+ * compare-and-set and a slot is rotated by overwriting it with a newer slot number. Nothing is locked and nothing
+ * touches MapDB.
+ *
+ * Slots live in pages of AtomicLongArray indexed by segment ordinal, a page is allocated when one of its segments
+ * sees its first sample. "Now" is the latest sample time seen, so replayed data has current conditions too.
+ * Samples dated more than FUTURE_TOLERANCE_MS past the wall clock are GPS junk and are dropped, one of them would
+ * otherwise move "now" ahead and push every correctly timed sample out of the window.
+ */
+public class CurrentConditions {
+
+	public static final long SLOT_MS = 5 * 60 * 1000;
+	public static final int SLOTS = 12;
+	public static final int WINDOW_MINUTES = (int)(SLOTS * SLOT_MS / 60_000);
+
+	// how far a sample may be ahead of the clock, allows for clock skew between devices
+	public static final long FUTURE_TOLERANCE_MS = 2 * 60 * 1000;
+
+	// slot layout, high to low: slot number | count | speed sum in 0.1 km/h
+	private static final int SUM_BITS = 28;
+	private static final int COUNT_BITS = 16;
+	private static final int EPOCH_BITS = 64 - SUM_BITS - COUNT_BITS;
+
+	private static final long SUM_MASK = (1l << SUM_BITS) - 1;
+	private static final long COUNT_MASK = (1l << COUNT_BITS) - 1;
+	private static final long EPOCH_MASK = (1l << EPOCH_BITS) - 1;
+
+	// fastest speed recorded, 0.1 km/h units
+	private static final int MAX_SPEED_UNITS = 4095;
+
+	private static final int PAGE_BITS = 12;
+	private static final int PAGE_SEGMENTS = 1 << PAGE_BITS;
+
+	private final AtomicReferenceArray<AtomicLongArray> pages = new AtomicReferenceArray<>((Integer.MAX_VALUE >>> PAGE_BITS) + 1);
+
+	private final AtomicLong latestTime = new AtomicLong();
+
+	private final LongSupplier clock;
+
+	public CurrentConditions() {
+		this(System::currentTimeMillis);
+	}
+
+	/**
+	 * Conditions checking sample times against the given clock (ms) rather than the system time.
+	 */
+	public CurrentConditions(LongSupplier clock) {
+		this.clock = clock;
+	}
+
+	public void add(SpeedSample speedSample) {
+		add(speedSample.getSegmentId(), speedSample.getTime(), speedSample.getSpeed());
+	}
+
+	public void add(long segmentId, long time, double speed) {
+		int ordinal = StreetAttributeStore.getOrdinal(segmentId);
+		if(ordinal < 0)
+			return;
+
+		if(time > clock.getAsLong() + FUTURE_TOLERANCE_MS)
+			return;
+
+		long now = latestTime.accumulateAndGet(time, Math::max);
+		long slotNumber = time / SLOT_MS;
+
+		// too old for the ring
+		if(slotNumber <= (now / SLOT_MS) - SLOTS)
+			return;
+
+		long epoch = slotNumber & EPOCH_MASK;
+		long speedUnits = Math.min(MAX_SPEED_UNITS, Math.max(0, Math.round(speed * 36)));
+
+		AtomicLongArray page = getPage(ordinal);
+		int index = ((ordinal & (PAGE_SEGMENTS - 1)) * SLOTS) + (int)(slotNumber % SLOTS);
+
+		while(true) {
+			long slot = page.get(index);
+			long slotEpoch = slot >>> (SUM_BITS + COUNT_BITS);
+
+			long updated;
+			if(slot != 0 && slotEpoch == epoch) {
+				long count = (slot >>> SUM_BITS) & COUNT_MASK;
+				long sum = slot & SUM_MASK;
+
+				// slot is saturated
+				if(count == COUNT_MASK || sum + speedUnits > SUM_MASK)
+					return;
+
+				updated = slot + (1l << SUM_BITS) + speedUnits;
+			}
+			else if(slot == 0 || isNewer(epoch, slotEpoch)) {
+				updated = (epoch << (SUM_BITS + COUNT_BITS)) | (1l << SUM_BITS) | speedUnits;
+			}
+			else {
+				// the slot has already moved on to a later period
+				return;
+			}
+
+			if(page.compareAndSet(index, slot, updated))
+				return;
+		}
+	}
+
+	/**
+	 * Time of the latest sample, the end of the current window.
+	 */
+	public long getLatestTime() {
+		return latestTime.get();
+	}
+
+	/**
+	 * Mean speed (m/s) over the last minutes (up to WINDOW_MINUTES, whole slots) before the latest sample, NaN
+	 * without samples.
+	 */
+	public double getSpeed(long segmentId, int minutes) {
+		return getSpeed(segmentId, latestTime.get(), minutes);
+	}
+
+	public double getSpeed(long segmentId, long now, int minutes) {
+		long[] countSum = getCountSum(segmentId, now, minutes);
+		return countSum[0] > 0 ? (countSum[1] / (double)countSum[0]) / 36 : Double.NaN;
+	}
+
+	public long getSampleCount(long segmentId, int minutes) {
+		return getCountSum(segmentId, latestTime.get(), minutes)[0];
+	}
+
+	private long[] getCountSum(long segmentId, long now, int minutes) {
+		long[] countSum = new long[2];
+
+		int ordinal = StreetAttributeStore.getOrdinal(segmentId);
+		if(ordinal < 0)
+			return countSum;
+
+		AtomicLongArray page = pages.get(ordinal >>> PAGE_BITS);
+		if(page == null)
+			return countSum;
+
+		int slots = (int)Math.min(SLOTS, Math.max(1, (minutes * 60_000l + SLOT_MS - 1) / SLOT_MS));
+		long nowSlot = now / SLOT_MS;
+		int base = (ordinal & (PAGE_SEGMENTS - 1)) * SLOTS;
+
+		for(long slotNumber = nowSlot; slotNumber > nowSlot - slots; slotNumber--) {
+			long slot = page.get(base + (int)(slotNumber % SLOTS));
+
+			if(slot != 0 && (slot >>> (SUM_BITS + COUNT_BITS)) == (slotNumber & EPOCH_MASK)) {
+				countSum[0] += (slot >>> SUM_BITS) & COUNT_MASK;
+				countSum[1] += slot & SUM_MASK;
+			}
+		}
+
+		return countSum;
+	}
+
+	private AtomicLongArray getPage(int ordinal) {
+		int pageIndex = ordinal >>> PAGE_BITS;
+
+		AtomicLongArray page = pages.get(pageIndex);
+		if(page == null) {
+			pages.compareAndSet(pageIndex, null, new AtomicLongArray(PAGE_SEGMENTS * SLOTS));
+			page = pages.get(pageIndex);
+		}
+
+		return page;
+	}
+
+	/**
+	 * Slot numbers are compared modulo the epoch bits, good for about 10 years of 5 minute slots.
+	 */
+	private static boolean isNewer(long epoch, long slotEpoch) {
+		long difference = (epoch - slotEpoch) & EPOCH_MASK;
+		return difference != 0 && difference < (1l << (EPOCH_BITS - 1));
+	}
+}
@@ -10,7 +10,7 @@ import java.io.File;
  */
 public class IdStore {
 
-    private static final long  INITIAL_VALUE = 1_000_000_000;
+    public static final long  INITIAL_VALUE = 1_000_000_000;
 
     private DB db;
     private Atomic.Long id;
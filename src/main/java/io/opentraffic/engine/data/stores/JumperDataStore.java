@@ -1,5 +1,6 @@
 package io.opentraffic.engine.data.stores;
 
+import io.opentraffic.engine.data.SpeedSample;
 import io.opentraffic.engine.data.seralizers.JumperSerializer;
 import io.opentraffic.engine.geom.Jumper;
 import org.mapdb.*;
@@ -16,8 +17,9 @@ public class JumperDataStore {
 	DB db;
 
 	Map<Fun.Tuple2<Long, Long>,Jumper> jumperMap = new ConcurrentHashMap<>();
-	NavigableSet<Fun.Tuple2<Long, Long>> jumperStartIndex;
-	NavigableSet<Fun.Tuple2<Long, Long>> jumperEndIndex;
+
+	// off-heap copy of jumperMap for lookups on the crossing path
+	JumperTable jumperTable = new JumperTable();
 
 	/**
 	 * Create a new DataStore.
@@ -42,72 +44,45 @@ public class JumperDataStore {
 				.valueSerializer(new JumperSerializer())
 				.makeOrGet();
 
-		jumperStartIndex = db.createTreeSet("startIndex")
-				.serializer(BTreeKeySerializer.TUPLE2)
-				.makeOrGet();
-
-		jumperEndIndex = db.createTreeSet("endIndex")
-				.serializer(BTreeKeySerializer.TUPLE2)
-				.makeOrGet();
+		for(Jumper jumper : jumperMap.values()) {
+			jumperTable.put(jumper);
+		}
 
+		log.info("jumpers: " + jumperTable.size());
 	}
 
 	public Jumper getJumper(Long startNodeId, Long endNodeId) {
 		return jumperMap.get(new Fun.Tuple2<>(startNodeId, endNodeId));
 	}
 
-	public void addJumper(Jumper jumper) {
-
-		Fun.Tuple2<Long,Long> jumperId = jumper.getStartEndTuple();
-
-		if(jumperMap.containsKey(jumperId))
-			return;
-
-		NavigableSet<Fun.Tuple2<Long, Long>> startSubset = jumperStartIndex.subSet(
-				new Fun.Tuple2(jumperId.b, null), true, // inclusive lower bound, null tests lower than anything
-				new Fun.Tuple2(jumperId.b, Fun.HI), true  // inclusive upper bound, HI tests higher than anything
-		);
-
-		for(Fun.Tuple2<Long, Long> adjacentJumperId : startSubset) {
-			Jumper adjacentJumper = jumperMap.get(adjacentJumperId);
-
-			if(adjacentJumper.startNodeId == jumper.endNodeId && adjacentJumper.endNodeId == jumper.startNodeId)
-				continue;
-
-			Jumper mergedJumper = adjacentJumper.merge(jumper);
-			if(mergedJumper != null) {
-				jumperMap.put(mergedJumper.getStartEndTuple(), mergedJumper);
-				jumperStartIndex.add(mergedJumper.getStartEndTuple());
-				jumperEndIndex.add(mergedJumper.getEndStartTuple());
-			}
-
-		}
+	/**
+	 * Adds speed samples for every segment of the jumper between two nodes, spreading the travel time between
+	 * startTime and endTime across the jumper. Returns false if no jumper connects the nodes.
+	 */
+	public boolean addSpeedSamples(long startNodeId, long endNodeId, long startTime, long endTime, long vehicleId, List<SpeedSample> speedSamples) {
+		return jumperTable.addSpeedSamples(startNodeId, endNodeId, startTime, endTime, vehicleId, speedSamples);
+	}
 
-		NavigableSet<Fun.Tuple2<Long, Long>> endSubset = jumperEndIndex.subSet(
-				new Fun.Tuple2(jumperId.a, null), true, // inclusive lower bound, null tests lower than anything
-				new Fun.Tuple2(jumperId.a, Fun.HI), true  // inclusive upper bound, HI tests higher than anything
-		);
+	/**
+	 * Writes a batch of jumpers in key order, keeping the existing jumper for a start/end pair if it is shorter,
+	 * and commits once.
+	 */
+	public void addJumpers(Collection<Jumper> jumpers) {
 
-		for(Fun.Tuple2<Long, Long> adjacentJumperId : endSubset) {
-			Jumper adjacentJumper = jumperMap.get(new Fun.Tuple2<>(adjacentJumperId.b, adjacentJumperId.a));
+		List<Jumper> sortedJumpers = new ArrayList<>(jumpers);
+		sortedJumpers.sort(Comparator.comparing(Jumper::getStartEndTuple));
 
-			if(adjacentJumper.startNodeId == jumper.endNodeId && adjacentJumper.endNodeId == jumper.startNodeId)
-				continue;
+		for(Jumper jumper : sortedJumpers) {
+			Fun.Tuple2<Long, Long> jumperId = jumper.getStartEndTuple();
 
-			Jumper mergedJumper = adjacentJumper.merge(jumper);
-			if(mergedJumper != null) {
-				jumperMap.put(mergedJumper.getStartEndTuple(), mergedJumper);
-				jumperStartIndex.add(mergedJumper.getStartEndTuple());
-				jumperEndIndex.add(mergedJumper.getEndStartTuple());
+			Jumper existing = jumperMap.get(jumperId);
+			if(existing == null || existing.length > jumper.length) {
+				jumperMap.put(jumperId, jumper);
+				jumperTable.put(jumper);
 			}
-
 		}
 
-		jumperMap.put(jumper.getStartEndTuple(), jumper);
-		jumperStartIndex.add(jumper.getStartEndTuple());
-		jumperEndIndex.add(jumper.getEndStartTuple());
-
-
+		save();
 	}
 
 	public void save() {
@@ -0,0 +1,195 @@
+package io.opentraffic.engine.data.stores;
+
+import io.opentraffic.engine.data.SpeedSample;
+import io.opentraffic.engine.geom.Jumper;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Off-heap open addressing hash table from (startNodeId, endNodeId) to jumper length and segment ids, so jumpers
+ * can be resolved on the crossing path with a single probe and no key or jumper allocation.
+ *
+ * Each slot holds the two node ids, the length, and the offset and count of the jumper's segment ids, which are
+ * stored back to back in a separate buffer. A count of zero marks an empty slot. Lookups share a read lock, jumpers
+ * are only written when an OSM area loads.
+ */
+class JumperTable {
+
+	private static final int SLOT_START = 0;
+	private static final int SLOT_END = 8;
+	private static final int SLOT_LENGTH = 16;
+	private static final int SLOT_OFFSET = 24;
+	private static final int SLOT_COUNT = 28;
+	private static final int SLOT_BYTES = 32;
+
+	private static final int INITIAL_SLOTS = 1 << 12;
+	private static final int INITIAL_SEGMENT_IDS = 1 << 14;
+
+	// table is grown once it is more than half full
+	private static final double MAX_LOAD = 0.5;
+
+	private final StampedLock lock = new StampedLock();
+
+	private ByteBuffer slots;
+	private int slotMask;
+	private int size;
+
+	private ByteBuffer segmentIds;
+	private int segmentIdCount;
+
+	JumperTable() {
+		slots = ByteBuffer.allocateDirect(INITIAL_SLOTS * SLOT_BYTES);
+		slotMask = INITIAL_SLOTS - 1;
+		segmentIds = ByteBuffer.allocateDirect(INITIAL_SEGMENT_IDS * 8);
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Adds or replaces the jumper for its start/end pair. A replaced jumper's segment ids are left in place, the
+	 * table only grows between restarts.
+	 */
+	void put(Jumper jumper) {
+		long stamp = lock.writeLock();
+		try {
+			if(size + 1 > (slotMask + 1) * MAX_LOAD)
+				resize((slotMask + 1) * 2);
+
+			int count = jumper.segments.length;
+			ensureSegmentIdCapacity(segmentIdCount + count);
+
+			int offset = segmentIdCount;
+			for(int i = 0; i < count; i++) {
+				segmentIds.putLong((offset + i) * 8, jumper.segments[i]);
+			}
+			segmentIdCount += count;
+
+			int slot = findSlot(slots, slotMask, jumper.startNodeId, jumper.endNodeId);
+			if(slots.getInt(slot + SLOT_COUNT) == 0)
+				size++;
+
+			writeSlot(slots, slot, jumper.startNodeId, jumper.endNodeId, jumper.length, offset, count);
+		}
+		finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	boolean contains(long startNodeId, long endNodeId) {
+		long stamp = lock.readLock();
+		try {
+			return slots.getInt(findSlot(slots, slotMask, startNodeId, endNodeId) + SLOT_COUNT) != 0;
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Adds a sample for each segment of the jumper between the two nodes, speed from Jumper.getSpeed. Nothing is
+	 * added when the times aren't in order. Returns false if there is no such jumper.
+	 */
+	boolean addSpeedSamples(long startNodeId, long endNodeId, long startTime, long endTime, long vehicleId, List<SpeedSample> speedSamples) {
+
+		long stamp = lock.readLock();
+		try {
+			int slot = findSlot(slots, slotMask, startNodeId, endNodeId);
+			int count = slots.getInt(slot + SLOT_COUNT);
+			if(count == 0)
+				return false;
+
+			double speed = Jumper.getSpeed(slots.getDouble(slot + SLOT_LENGTH), startTime, endTime);
+			if(Double.isNaN(speed))
+				return true;
+
+			int offset = slots.getInt(slot + SLOT_OFFSET);
+
+			for(int i = 0; i < count; i++) {
+				speedSamples.add(new SpeedSample(endTime, speed, segmentIds.getLong((offset + i) * 8), vehicleId));
+			}
+
+			return true;
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	private void resize(int newSlotCount) {
+		ByteBuffer newSlots = ByteBuffer.allocateDirect(newSlotCount * SLOT_BYTES);
+		int newMask = newSlotCount - 1;
+
+		for(int slot = 0; slot <= slotMask; slot++) {
+			int position = slot * SLOT_BYTES;
+			int count = slots.getInt(position + SLOT_COUNT);
+			if(count == 0)
+				continue;
+
+			long startNodeId = slots.getLong(position + SLOT_START);
+			long endNodeId = slots.getLong(position + SLOT_END);
+
+			writeSlot(newSlots, findSlot(newSlots, newMask, startNodeId, endNodeId), startNodeId, endNodeId,
+					slots.getDouble(position + SLOT_LENGTH), slots.getInt(position + SLOT_OFFSET), count);
+		}
+
+		slots = newSlots;
+		slotMask = newMask;
+	}
+
+	private void ensureSegmentIdCapacity(int required) {
+		int capacity = segmentIds.capacity() / 8;
+		if(required <= capacity)
+			return;
+
+		while(capacity < required)
+			capacity *= 2;
+
+		ByteBuffer newSegmentIds = ByteBuffer.allocateDirect(capacity * 8);
+		ByteBuffer old = segmentIds.duplicate();
+		old.position(0).limit(segmentIdCount * 8);
+		newSegmentIds.put(old);
+
+		segmentIds = newSegmentIds;
+	}
+
+	/**
+	 * Byte position of the slot holding the pair, or of the empty slot where it would be inserted.
+	 */
+	private static int findSlot(ByteBuffer slots, int mask, long startNodeId, long endNodeId) {
+		int slot = hash(startNodeId, endNodeId) & mask;
+		while(true) {
+			int position = slot * SLOT_BYTES;
+
+			if(slots.getInt(position + SLOT_COUNT) == 0)
+				return position;
+
+			if(slots.getLong(position + SLOT_START) == startNodeId && slots.getLong(position + SLOT_END) == endNodeId)
+				return position;
+
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private static void writeSlot(ByteBuffer slots, int position, long startNodeId, long endNodeId, double length, int offset, int count) {
+		slots.putLong(position + SLOT_START, startNodeId);
+		slots.putLong(position + SLOT_END, endNodeId);
+		slots.putDouble(position + SLOT_LENGTH, length);
+		slots.putInt(position + SLOT_OFFSET, offset);
+		slots.putInt(position + SLOT_COUNT, count);
+	}
+
+	// murmur3 finalizer over the combined node ids
+	private static int hash(long startNodeId, long endNodeId) {
+		long h = startNodeId * 0x9E3779B97F4A7C15L + endNodeId;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int)h;
+	}
+}
@@ -3,7 +3,15 @@ package io.opentraffic.engine.data.stores;
 import java.io.File;
 import java.util.*;
 import java.util.Map.Entry;
-
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.carrotsearch.hppc.LongHashSet;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import io.opentraffic.engine.data.SpatialDataItem;
 import io.opentraffic.engine.osm.OSMDataStore;
 import org.mapdb.*;
@@ -17,9 +25,15 @@ public class SpatialDataStore {
 
 	public static int Z_INDEX = 18;
 
+	// fixed per-item weight added to the coordinate count, covers the object and array headers
+	public static final int ITEM_CACHE_BASE_WEIGHT = 4;
+
 	DB db;
 	BTreeMap<Long,SpatialDataItem> map;
 
+	// deserialized items, weighted by coordinate count so long geometries use more of the budget
+	LoadingCache<Long, SpatialDataItem> itemCache;
+
 	String dataFile;
 
 	IdStore spatialId;
@@ -32,11 +46,19 @@ public class SpatialDataStore {
 	 * Create a new DataStore.
 	 * @param directory Where should it be created?
 	 * @param dataFile What should it be called?
+	 * @param cacheSize Number of records held in the MapDB instance cache
+	 * @param itemCacheWeight Max number of coordinates held in the deserialized item cache
 	 */
-	public SpatialDataStore(File directory, String dataFile, Serializer serializer, Integer cacheSize) {
+	public SpatialDataStore(File directory, String dataFile, Serializer serializer, Integer cacheSize, long itemCacheWeight) {
 
 		this.dataFile = dataFile;
 
+		itemCache = Caffeine.newBuilder()
+				.maximumWeight(itemCacheWeight)
+				.weigher((Long id, SpatialDataItem item) -> item.lons.length + ITEM_CACHE_BASE_WEIGHT)
+				.recordStats()
+				.build(id -> map.get(id));
+
 		if(!directory.exists())
 			directory.mkdirs();
 
@@ -68,9 +90,18 @@ public class SpatialDataStore {
 		Store store = Store.forDB(db);
 		return dataFile + ": " + store.calculateStatistics();
 	}
+
+	public String getCacheStatistics() {
+		CacheStats stats = itemCache.stats();
+		return dataFile + " item cache: hits=" + stats.hitCount() + " misses=" + stats.missCount()
+				+ " hitRate=" + String.format("%.3f", stats.hitRate())
+				+ " evictions=" + stats.evictionCount()
+				+ " size=" + itemCache.estimatedSize();
+	}
 	
 	public void save(SpatialDataItem obj) {
 		map.put(obj.id, obj);
+		itemCache.invalidate(obj.id);
 
 		for(Tuple3<Integer, Integer, Long> tuple : obj.getTiles(Z_INDEX)) {
 			tileIndex.add(tuple);
@@ -84,6 +115,7 @@ public class SpatialDataStore {
 				continue;
 
 			map.put(obj.id, obj);
+			itemCache.invalidate(obj.id);
 
 			for (Tuple3<Integer, Integer, Long> tuple : obj.getTiles(Z_INDEX)) {
 				tileIndex.add(tuple);
@@ -98,6 +130,7 @@ public class SpatialDataStore {
 				continue;
 
 			map.remove(obj.id);
+			itemCache.invalidate(obj.id);
 			for (Tuple3<Integer, Integer, Long> tuple : obj.getTiles(Z_INDEX)) {
 				tileIndex.remove(tuple);
 			}
@@ -107,6 +140,7 @@ public class SpatialDataStore {
 
 	public void delete(SpatialDataItem obj) {
 		map.remove(obj.id);
+		itemCache.invalidate(obj.id);
 		for(Tuple3<Integer, Integer, Long> tuple : obj.getTiles(Z_INDEX)) {
 			tileIndex.remove(tuple);
 		}
@@ -114,68 +148,112 @@ public class SpatialDataStore {
 	}
 
 	public SpatialDataItem getById(Long id) {
-		return map.get(id); 
+		return itemCache.get(id);
 	}
 
 	public List<SpatialDataItem> getByEnvelope(Envelope env) {
+		return streamByEnvelope(env).collect(Collectors.toList());
+	}
 
-		List<Long> ids = getIdsByEnvelope(env);
-		List<SpatialDataItem> items = new ArrayList<>();
-		for (long id : ids) {
-			items.add(map.get(id));
-		}
+	public List<Long> getIdsByEnvelope(Envelope env) {
+		return streamIdsByEnvelope(env).boxed().collect(Collectors.toList());
+	}
 
-		return items;
+	/**
+	 * Items within (or near) an envelope, loaded as the stream is consumed. Use limit() or a short-circuiting
+	 * terminal operation to stop walking the index early.
+	 */
+	public Stream<SpatialDataItem> streamByEnvelope(Envelope env) {
+		return streamIdsByEnvelope(env)
+				.mapToObj(this::getById)
+				.filter(item -> item != null);
 	}
 
-	public List<Long> getIdsByEnvelope(Envelope env) {
+	/**
+	 * Ids within (or near) an envelope. The tile index is walked one tile column at a time as the stream is
+	 * consumed, and ids indexed in more than one tile are only returned once.
+	 */
+	public LongStream streamIdsByEnvelope(Envelope env) {
+		Spliterator.OfLong spliterator = Spliterators.spliteratorUnknownSize(new EnvelopeIdIterator(env),
+				Spliterator.DISTINCT | Spliterator.NONNULL);
+		return StreamSupport.longStream(spliterator, false);
+	}
 
-		int y1 = getTileY(env.getMinY(), Z_INDEX);
-		int x1 = getTileX(env.getMinX(), Z_INDEX);
-		int y2 = getTileY(env.getMaxY(), Z_INDEX);
-		int x2 = getTileX(env.getMaxX(), Z_INDEX);
-
-		int minY;
-		int maxY;
-		int minX;
-		int maxX;
-
-		if(x1 < x2) {
-			minX = x1;
-			maxX = x2;
-		} else {
-			minX = x2;
-			maxX = x1;
-		}
+	/**
+	 * Walks tileIndex column by column over the tiles covering an envelope. Only the current column iterator and a
+	 * primitive set of ids already returned are held, no id or item lists are built.
+	 */
+	private class EnvelopeIdIterator implements PrimitiveIterator.OfLong {
 
-		if(y1 < y2) {
-			minY = y1;
-			maxY = y2;
-		} else {
-			minY = y2;
-			maxY = y1;
-		}
+		final int minY;
+		final int maxY;
+		final int maxX;
+
+		int tileX;
+		Iterator<Tuple3<Integer, Integer, Long>> column;
 
-		minX--;
-		maxX++;
+		LongHashSet returnedIds = new LongHashSet();
 
-		minY--;
-		maxY++;
+		boolean hasNext;
+		long next;
 
-		List<Long> ids = new ArrayList();
+		EnvelopeIdIterator(Envelope env) {
+			int y1 = getTileY(env.getMinY(), Z_INDEX);
+			int x1 = getTileX(env.getMinX(), Z_INDEX);
+			int y2 = getTileY(env.getMaxY(), Z_INDEX);
+			int x2 = getTileX(env.getMaxX(), Z_INDEX);
 
-		for(int tileX = minX; tileX <= maxX; tileX++) {
-			NavigableSet<Tuple3<Integer, Integer, Long>> xSubset = tileIndex.subSet(
-					new Tuple3(tileX, minY, null), true, // inclusive lower bound, null tests lower than anything
-					new Tuple3(tileX, maxY, Fun.HI), true  // inclusive upper bound, HI tests higher than anything
-			);
+			// pad by one tile on every side, items are indexed by the tiles containing their vertices
+			this.tileX = Math.min(x1, x2) - 1;
+			this.maxX = Math.max(x1, x2) + 1;
+			this.minY = Math.min(y1, y2) - 1;
+			this.maxY = Math.max(y1, y2) + 1;
 
-			for (Tuple3<Integer, Integer, Long> item : xSubset) {
-				ids.add(item.c);
+			advance();
+		}
+
+		private void advance() {
+			while(true) {
+				if(column == null) {
+					if(tileX > maxX) {
+						hasNext = false;
+						return;
+					}
+
+					column = tileIndex.subSet(
+							new Tuple3(tileX, minY, null), true, // inclusive lower bound, null tests lower than anything
+							new Tuple3(tileX, maxY, Fun.HI), true  // inclusive upper bound, HI tests higher than anything
+					).iterator();
+					tileX++;
+				}
+
+				while(column.hasNext()) {
+					long id = column.next().c;
+					if(returnedIds.add(id)) {
+						next = id;
+						hasNext = true;
+						return;
+					}
+				}
+
+				column = null;
 			}
 		}
 
-		return ids;
+		@Override
+		public boolean hasNext() {
+			return hasNext;
+		}
+
+		@Override
+		public long nextLong() {
+			if(!hasNext)
+				throw new NoSuchElementException();
+
+			long id = next;
+			advance();
+			return id;
+		}
 	}
 	
 	public Collection<SpatialDataItem> getAll() {
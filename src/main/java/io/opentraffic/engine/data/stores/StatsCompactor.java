@@ -0,0 +1,241 @@
+package io.opentraffic.engine.data.stores;
+
+import io.opentraffic.engine.data.stats.SegmentStatistics;
+import org.mapdb.BTreeMap;
+import org.mapdb.Fun;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background compaction of old week records. Weeks older than the archive horizon are merged into one record per
+ * (segment, quarter) with 5 km/h speed bins, and anything older than the retention horizon is dropped, along with
+ * expired month, quarter and area/week rollups and vehicle sketches. All-time records are left alone.
+ *
+ * A pass walks segments in key order, jumping straight to each segment's old records, and handles them in small
+ * batches. Each batch is applied under the owning shards' locks and committed, so a writer is only ever held up for
+ * one batch and late samples for a week being archived are never double counted.
+ *
+ * The space freed by removed records is reused by MapDB for new ones, the file itself is only shrunk by an
+ * explicit StatsDataStore.reclaimSpace.
+ */
+public class StatsCompactor implements Runnable {
+
+	private static final Logger log = Logger.getLogger( StatsCompactor.class.getName());
+
+	// week records handled per batch
+	static final int BATCH_SIZE = 1_000;
+
+	// archived speed bins are this many 1 km/h bins wide
+	static final int ARCHIVE_SPEED_BIN_SIZE = 5;
+
+	final StatsDataStore store;
+	final int archiveAfterWeeks;
+	final int retentionWeeks;
+
+	public StatsCompactor(StatsDataStore store, int archiveAfterWeeks, int retentionWeeks) {
+		this.store = store;
+		this.archiveAfterWeeks = archiveAfterWeeks;
+		this.retentionWeeks = retentionWeeks;
+	}
+
+	@Override
+	public void run() {
+		try {
+			compact(SegmentStatistics.getWeekSinceEpoch(System.currentTimeMillis()));
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * One full pass relative to the given week.
+	 */
+	public void compact(int currentWeek) {
+
+		int archiveBefore = currentWeek - archiveAfterWeeks;
+		// no retention limit when it's zero
+		int dropBefore = retentionWeeks > 0 ? currentWeek - retentionWeeks : Integer.MIN_VALUE;
+
+		// rollups are only dropped once they are entirely past the retention horizon
+		int dropMonthBefore = retentionWeeks > 0 ? getMonth(dropBefore) : Integer.MIN_VALUE;
+		int dropQuarterBefore = retentionWeeks > 0 ? Math.floorDiv(dropMonthBefore, 3) : Integer.MIN_VALUE;
+
+		long archived = 0, dropped = 0;
+
+		List<Fun.Tuple2<Long, Integer>> batch = new ArrayList<>();
+		List<Long> batchSegments = new ArrayList<>();
+
+		Long segmentId = nextSegment(null);
+		while(segmentId != null) {
+			batch.addAll(store.statsMap.subMap(new Fun.Tuple2(segmentId, null), true, new Fun.Tuple2(segmentId, archiveBefore), false).keySet());
+			batchSegments.add(segmentId);
+
+			segmentId = nextSegment(segmentId);
+
+			if(batch.size() >= BATCH_SIZE || batchSegments.size() >= BATCH_SIZE || segmentId == null) {
+				long[] counts = compactBatch(batch, batchSegments, dropBefore, dropMonthBefore, dropQuarterBefore);
+				archived += counts[0];
+				dropped += counts[1];
+
+				batch.clear();
+				batchSegments.clear();
+			}
+		}
+
+		dropAreaWeeks(dropBefore);
+
+		for(Integer week : new ArrayList<>(store.weekSet)) {
+			if(week < archiveBefore)
+				store.weekSet.remove(week);
+		}
+
+		store.commit();
+
+		if(archived + dropped > 0) {
+			log.log(Level.INFO, "Stats compaction archived " + archived + " and dropped " + dropped + " week records");
+
+			// removed weeks aren't reported as updates, cached summaries may still include them
+			store.summaryCache.invalidateAll();
+		}
+	}
+
+	/**
+	 * Archives or drops a batch of week records, and drops the batch segments' expired rollups and sketches. Returns the archived
+	 * and dropped record counts.
+	 */
+	private long[] compactBatch(List<Fun.Tuple2<Long, Integer>> keys, List<Long> segmentIds, int dropBefore, int dropMonthBefore, int dropQuarterBefore) {
+
+		Map<StatsWriterShard, List<Fun.Tuple2<Long, Integer>>> shardKeys = new HashMap<>();
+		for(Fun.Tuple2<Long, Integer> key : keys) {
+			shardKeys.computeIfAbsent(store.getShard(key.a), shard -> new ArrayList<>()).add(key);
+		}
+
+		Map<StatsWriterShard, List<Long>> shardSegments = new HashMap<>();
+		for(Long segmentId : segmentIds) {
+			shardSegments.computeIfAbsent(store.getShard(segmentId), shard -> new ArrayList<>()).add(segmentId);
+		}
+
+		long archived = 0, dropped = 0;
+
+		for(StatsWriterShard shard : store.shards) {
+			List<Fun.Tuple2<Long, Integer>> weekKeys = shardKeys.get(shard);
+			List<Long> shardSegmentIds = shardSegments.get(shard);
+
+			if(weekKeys == null && shardSegmentIds == null)
+				continue;
+
+			// the shard can't flush while its records are moved
+			synchronized (shard) {
+				if(weekKeys != null) {
+					for(Fun.Tuple2<Long, Integer> key : weekKeys) {
+						SegmentStatistics stats = store.statsMap.remove(key);
+						if(stats == null)
+							continue;
+
+						if(key.b < dropBefore) {
+							dropped++;
+						}
+						else {
+							archive(key.a, key.b, stats);
+							archived++;
+						}
+					}
+				}
+
+				if(shardSegmentIds != null && dropMonthBefore != Integer.MIN_VALUE) {
+					for(Long segmentId : shardSegmentIds) {
+						store.monthStatsMap.subMap(new Fun.Tuple2(segmentId, null), true, new Fun.Tuple2(segmentId, dropMonthBefore), false).clear();
+						store.quarterStatsMap.subMap(new Fun.Tuple2(segmentId, null), true, new Fun.Tuple2(segmentId, dropQuarterBefore), false).clear();
+						store.vehicleSketchMap.subMap(new Fun.Tuple2(segmentId, null), true, new Fun.Tuple2(segmentId, dropBefore), false).clear();
+					}
+				}
+			}
+		}
+
+		store.commit();
+
+		return new long[] {archived, dropped};
+	}
+
+	/**
+	 * The next segment with stored records. Every week record has a month record that outlives it, so the month and
+	 * quarter maps between them hold every segment with records left to compact. Vehicle sketches are kept until
+	 * retention regardless of archiving, so segments with nothing but sketches left are found in the sketch map.
+	 */
+	private Long nextSegment(Long segmentId) {
+		Long next = null;
+		for(BTreeMap<Fun.Tuple2<Long, Integer>, ?> map : Arrays.asList(store.monthStatsMap, store.quarterStatsMap, store.vehicleSketchMap)) {
+			Fun.Tuple2<Long, Integer> key = segmentId == null ? firstKey(map) : map.ceilingKey(new Fun.Tuple2(segmentId, Fun.HI));
+			if(key != null && (next == null || key.a < next))
+				next = key.a;
+		}
+
+		return next;
+	}
+
+	private static Fun.Tuple2<Long, Integer> firstKey(BTreeMap<Fun.Tuple2<Long, Integer>, ?> map) {
+		return map.isEmpty() ? null : map.firstKey();
+	}
+
+	private void archive(long segmentId, int week, SegmentStatistics stats) {
+		Fun.Tuple2<Long, Integer> archiveKey = new Fun.Tuple2<>(segmentId, getQuarter(week));
+
+		SegmentStatistics archiveStats = store.quarterStatsMap.get(archiveKey);
+		if(archiveStats == null)
+			archiveStats = new SegmentStatistics();
+
+		SegmentStatistics target = archiveStats;
+		stats.getHistogram().forEach((bin, count) -> {
+			int hour = SegmentStatistics.getHourFromBin(bin);
+			target.addSpeed(hour, getArchiveSpeedBin(SegmentStatistics.getSpeedBinFromBin(bin)), count);
+		});
+
+		store.quarterStatsMap.put(archiveKey, archiveStats);
+	}
+
+	private void dropAreaWeeks(int dropBefore) {
+		if(dropBefore == Integer.MIN_VALUE)
+			return;
+
+		List<Fun.Tuple3<Long, Integer, Integer>> expired = new ArrayList<>();
+		for(Fun.Tuple3<Long, Integer, Integer> key : store.areaTypeWeekStatsMap.keySet()) {
+			if(key.c < dropBefore)
+				expired.add(key);
+		}
+
+		for(int i = 0; i < expired.size(); i += BATCH_SIZE) {
+			synchronized (store.rollupLock) {
+				for(Fun.Tuple3<Long, Integer, Integer> key : expired.subList(i, Math.min(expired.size(), i + BATCH_SIZE))) {
+					store.areaTypeWeekStatsMap.remove(key);
+				}
+			}
+			store.commit();
+		}
+	}
+
+	/**
+	 * The middle 1 km/h bin of the coarse bin a speed falls in.
+	 */
+	public static int getArchiveSpeedBin(int speedBin) {
+		int archiveBin = ((speedBin / ARCHIVE_SPEED_BIN_SIZE) * ARCHIVE_SPEED_BIN_SIZE) + (ARCHIVE_SPEED_BIN_SIZE / 2);
+		return Math.min(archiveBin, SegmentStatistics.NUM_SPEED_BINS - 1);
+	}
+
+	/**
+	 * Quarters since 1970 by the month a week starts in.
+	 */
+	public static int getQuarter(int week) {
+		return Math.floorDiv(getMonth(week), 3);
+	}
+
+	private static int getMonth(int week) {
+		return SegmentStatistics.getMonthSinceEpoch(SegmentStatistics.getTimeForWeek(week));
+	}
+}
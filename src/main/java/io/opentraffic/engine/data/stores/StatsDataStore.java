@@ -1,53 +1,148 @@
 package io.opentraffic.engine.data.stores;
 
+import com.carrotsearch.hppc.LongHashSet;
 import io.opentraffic.engine.data.SpeedSample;
 import io.opentraffic.engine.data.seralizers.SegmentStatisticsSerializer;
+import io.opentraffic.engine.data.seralizers.VehicleSketchSerializer;
 import io.opentraffic.engine.data.stats.SegmentStatistics;
 import io.opentraffic.engine.data.stats.SummaryStatistics;
-import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.LoadingCache;
+import io.opentraffic.engine.data.stats.VehicleSketch;
 import org.mapdb.*;
 import org.mapdb.DB.BTreeMapMaker;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class StatsDataStore {
 
 	private static final Logger log = Logger.getLogger( StatsDataStore.class.getName());
 
+	// bits reserved for the week in a packed stats key, weeks since 1970 fit until the 33rd century
+	private static final int STATS_KEY_WEEK_BITS = 16;
+
+	// writer threads, samples are partitioned across them by segment id
+	public static final int DEFAULT_WRITER_SHARDS = Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors() / 2));
+
+	// multi-segment summaries below this size are collected on the calling thread
+	static final int PARALLEL_SUMMARY_SEGMENTS = 256;
+
+	// threads collecting large summaries
+	public static final int SUMMARY_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	// max bytes of multi-segment summaries (plus their segment index entries) held in memory
+	public static final long MAX_SUMMARY_CACHE_WEIGHT = 64 * 1024 * 1024;
+
 	DB db;
 
 	ExecutorService executor;
 
-	LoadingCache<Long, SegmentStatistics> cumulativeStats;
-
 	BTreeMap<Fun.Tuple2<Long, Integer>, SegmentStatistics> statsMap;
+
+	// rollups kept current by the writer shards alongside the week records: all-time and (segment, month) records
+	// per segment, and (area, street type, week) and all-time (area, street type) records across segments
+	BTreeMap<Long, SegmentStatistics> cumulativeStatsMap;
+	BTreeMap<Fun.Tuple2<Long, Integer>, SegmentStatistics> monthStatsMap;
+	BTreeMap<Fun.Tuple3<Long, Integer, Integer>, SegmentStatistics> areaTypeWeekStatsMap;
+	BTreeMap<Fun.Tuple2<Long, Integer>, SegmentStatistics> areaTypeStatsMap;
+
+	// (segment, quarter) records with coarse speed bins that old weeks are compacted into
+	BTreeMap<Fun.Tuple2<Long, Integer>, SegmentStatistics> quarterStatsMap;
+
+	// distinct vehicle sketches by hour for each (segment, week) record, from samples that carry a vehicle id
+	BTreeMap<Fun.Tuple2<Long, Integer>, VehicleSketch> vehicleSketchMap;
+
+	// compaction runs this often once enabled
+	public static final long DEFAULT_COMPACTION_INTERVAL = 60 * 60 * 1000;
+
+	// weeks covered by a scheduled snapshot
+	public static final int DEFAULT_SNAPSHOT_WEEKS = 13;
+
+	// runs compaction and snapshots
+	ScheduledExecutorService maintenanceExecutor;
+	ScheduledFuture<?> compaction;
+	ScheduledFuture<?> snapshots;
+
+	File snapshotDirectory;
+	volatile StatsSnapshot snapshot;
+
+	// street type and area by segment for the area rollups, null when they aren't kept
+	final StreetAttributeStore attributes;
 	Set<Integer> weekSet;
 
-	Queue<SpeedSample> sampleQueue = new ConcurrentLinkedQueue<>();
+	// sample counts are held in memory and merged into the stats map when this many distinct (segment, week, bin)
+	// keys are pending in a shard, or this many ms after the shard's last flush
+	public static final int DEFAULT_MAX_PENDING_KEYS = 250_000;
+	public static final long DEFAULT_FLUSH_INTERVAL = 5_000;
+
+	// samples each writer shard will queue before addSpeedSample blocks
+	public static final int DEFAULT_SHARD_QUEUE_CAPACITY = 256 * 1024;
+
+	volatile int maxPendingKeys = DEFAULT_MAX_PENDING_KEYS;
+	volatile long flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+	StatsWriterShard[] shards;
+
+	// last hour of speeds per segment, fed before samples are queued for the writers
+	final CurrentConditions currentConditions = new CurrentConditions();
+	AtomicLong queuedSamples = new AtomicLong();
 	AtomicLong processedSamples = new AtomicLong();
 
+	// serializes commits from the writer shards
+	final Object commitLock = new Object();
+	// serializes writes to the area rollups, which every shard contributes to
+	final Object rollupLock = new Object();
+	List<StatsUpdateListener> updateListeners = new CopyOnWriteArrayList<>();
+	List<CongestionListener> congestionListeners = new CopyOnWriteArrayList<>();
+
+	// large summaries block on MapDB reads, so they get their own pool rather than the common one
+	final ForkJoinPool summaryPool = new ForkJoinPool(SUMMARY_THREADS);
+
+	// dropped per (segment, week) by commits, through the update listeners
+	final SummaryStatisticsCache summaryCache = new SummaryStatisticsCache(MAX_SUMMARY_CACHE_WEIGHT, summaryPool);
+
 	/**
 	 * Create a new DataStore.
 	 * @param directory Where should it be created?
 	 */
 	public StatsDataStore(File directory) {
+		this(directory, null, DEFAULT_WRITER_SHARDS);
+	}
+
+	/**
+	 * Create a new DataStore with a given number of writer threads.
+	 */
+	public StatsDataStore(File directory, int writerShards) {
+		this(directory, null, writerShards);
+	}
+
+	/**
+	 * Create a new DataStore that also keeps area and street type rollups, using the segment areas and types from
+	 * the street attributes.
+	 */
+	public StatsDataStore(File directory, StreetAttributeStore attributes) {
+		this(directory, attributes, DEFAULT_WRITER_SHARDS);
+	}
+
+	public StatsDataStore(File directory, StreetAttributeStore attributes, int writerShards) {
+
+		this.attributes = attributes;
 
 		if(!directory.exists())
 			directory.mkdirs();
 
-		cumulativeStats = Caffeine
-				.newBuilder()
-				.maximumSize(1_000_000)
-				.refreshAfterWrite(60, TimeUnit.MINUTES)
-				.build(id -> loadSegmentStats(id));
+		snapshotDirectory = new File(directory, "snapshots");
+		openLatestSnapshot();
 
 		DBMaker dbm = DBMaker.newFileDB(new File(directory, "stats.db"))
 				.mmapFileEnableIfSupported()
@@ -66,61 +161,289 @@ public class StatsDataStore {
 				.valueSerializer(new SegmentStatisticsSerializer())
 				.makeOrGet();
 
+		boolean buildCumulative = !db.exists("cumulativeStatsMap");
+		boolean buildMonths = !db.exists("monthStatsMap");
+		boolean buildAreas = attributes != null && !db.exists("areaTypeStatsMap");
+
+		cumulativeStatsMap = db.createTreeMap("cumulativeStatsMap")
+				.keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
+				.valueSerializer(new SegmentStatisticsSerializer())
+				.makeOrGet();
+
+		monthStatsMap = db.createTreeMap("monthStatsMap")
+				.keySerializer(BTreeKeySerializer.TUPLE2)
+				.valueSerializer(new SegmentStatisticsSerializer())
+				.makeOrGet();
+
+		areaTypeWeekStatsMap = db.createTreeMap("areaTypeWeekStatsMap")
+				.keySerializer(BTreeKeySerializer.TUPLE3)
+				.valueSerializer(new SegmentStatisticsSerializer())
+				.makeOrGet();
+
+		areaTypeStatsMap = db.createTreeMap("areaTypeStatsMap")
+				.keySerializer(BTreeKeySerializer.TUPLE2)
+				.valueSerializer(new SegmentStatisticsSerializer())
+				.makeOrGet();
+
+		quarterStatsMap = db.createTreeMap("quarterStatsMap")
+				.keySerializer(BTreeKeySerializer.TUPLE2)
+				.valueSerializer(new SegmentStatisticsSerializer())
+				.makeOrGet();
+
+		vehicleSketchMap = db.createTreeMap("vehicleSketchMap")
+				.keySerializer(BTreeKeySerializer.TUPLE2)
+				.valueSerializer(new VehicleSketchSerializer())
+				.makeOrGet();
+
+		if(buildCumulative || buildMonths || buildAreas)
+			buildRollups(buildCumulative, buildMonths, buildAreas);
+
 		DB.BTreeSetMaker weekSetMaker = db.createTreeSet("weekSet");
 
 		weekSet = weekSetMaker
 				.serializer(BTreeKeySerializer.ZERO_OR_POSITIVE_INT)
 				.makeOrGet();
 
-		executor = Executors.newFixedThreadPool(1);
+		updateListeners.add(summaryCache);
 
-		Runnable statsCollector = () -> {
+		executor = Executors.newFixedThreadPool(writerShards);
 
-			int sampleCount = 0;
+		shards = new StatsWriterShard[writerShards];
+		for(int i = 0; i < writerShards; i++) {
+			shards[i] = new StatsWriterShard(this, i, DEFAULT_SHARD_QUEUE_CAPACITY);
+			executor.execute(shards[i]);
+		}
 
-			while(true) {
-				try {
+	}
 
-					SpeedSample speedSample = sampleQueue.poll();
-					processedSamples.incrementAndGet();
+	public String getStatistics() {
+		Store store = Store.forDB(db);
+		return  "Stats: " + store.calculateStatistics();
+	}
 
-					if(speedSample != null) {
-						sampleCount++;
-						this.save(speedSample);
-					}
-					else {
-						this.db.commit();
-						Thread.sleep(1000);
-					}
+	public long getSampleQueueSize() {
+		return queuedSamples.get();
+	}
 
-					if(sampleCount > 100000) {
-						this.db.commit();
-						sampleCount = 0;
-					}
-				}
-				catch (Exception e) {
-					e.printStackTrace();
+	public void setMaxPendingKeys(int maxPendingKeys) {
+		this.maxPendingKeys = maxPendingKeys;
+	}
+
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+
+	/**
+	 * Enables background compaction: week records older than archiveAfterWeeks are merged into quarterly records with
+	 * coarser speed bins, and data older than retentionWeeks is dropped (0 keeps it forever). Compaction is off
+	 * by default, an archiveAfterWeeks of 0 turns it off again.
+	 */
+	public synchronized void setCompaction(int archiveAfterWeeks, int retentionWeeks) {
+		if(compaction != null) {
+			compaction.cancel(false);
+			compaction = null;
+		}
+
+		if(archiveAfterWeeks <= 0)
+			return;
+
+		if(retentionWeeks > 0 && retentionWeeks < archiveAfterWeeks)
+			throw new IllegalArgumentException("Retention of " + retentionWeeks + " weeks is shorter than the archive horizon");
+
+		compaction = getMaintenanceExecutor().scheduleWithFixedDelay(new StatsCompactor(this, archiveAfterWeeks, retentionWeeks),
+				DEFAULT_COMPACTION_INTERVAL, DEFAULT_COMPACTION_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Rewrites the store file to return the space freed by compaction to the file system, if at least
+	 * minFreeFraction of the file is free. Commits wait for the whole rewrite, so writer shards stall and vehicle
+	 * threads block once the sample queues fill. Only call it off-peak. Returns true if the file was rewritten.
+	 */
+	public boolean reclaimSpace(double minFreeFraction) {
+		Store store = Store.forDB(db);
+
+		long size = store.getCurrSize();
+		long free = store.getFreeSize();
+		if(size <= 0 || free < 0 || (double)free / size < minFreeFraction)
+			return false;
+
+		log.log(Level.INFO, "Rewriting stats store, " + free + " of " + size + " bytes free");
+
+		synchronized (commitLock) {
+			db.compact();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Writes a columnar snapshot of the last weeks of data every interval ms, 0 stops. Snapshots are off by default.
+	 */
+	public synchronized void setSnapshots(long interval, int weeks) {
+		if(snapshots != null) {
+			snapshots.cancel(false);
+			snapshots = null;
+		}
+
+		if(interval <= 0)
+			return;
+
+		snapshots = getMaintenanceExecutor().scheduleWithFixedDelay(() -> {
+			try {
+				writeSnapshot(weeks);
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Latest columnar snapshot, or null if none has been written.
+	 */
+	public StatsSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Writes a snapshot of the given number of weeks up to the latest week with data and makes it current. Older
+	 * snapshot files are deleted, readers still holding them keep their mappings.
+	 */
+	public synchronized StatsSnapshot writeSnapshot(int weeks) throws IOException {
+		int toWeek = weekSet.isEmpty() ? SegmentStatistics.getWeekSinceEpoch(System.currentTimeMillis()) : Collections.max(weekSet);
+
+		File directory = new File(snapshotDirectory, "snapshot_" + System.currentTimeMillis());
+		StatsSnapshot newSnapshot = StatsSnapshot.write(directory, statsMap, toWeek - weeks + 1, toWeek);
+
+		log.log(Level.INFO, "Stats snapshot of " + newSnapshot.getRowCount() + " rows written to " + directory.getName());
+
+		snapshot = newSnapshot;
+		deleteSnapshots(directory);
+
+		return newSnapshot;
+	}
+
+	private void openLatestSnapshot() {
+		File[] directories = snapshotDirectory.listFiles(File::isDirectory);
+		if(directories == null)
+			return;
+
+		File latest = null;
+		for(File directory : directories) {
+			if(!directory.getName().endsWith(".tmp") && (latest == null || directory.getName().compareTo(latest.getName()) > 0))
+				latest = directory;
+		}
+
+		if(latest == null)
+			return;
+
+		try {
+			snapshot = StatsSnapshot.open(latest);
+		}
+		catch (IOException e) {
+			log.log(Level.WARNING, "Unable to open stats snapshot " + latest.getAbsolutePath());
+		}
+	}
+
+	private void deleteSnapshots(File keep) {
+		File[] directories = snapshotDirectory.listFiles(File::isDirectory);
+		if(directories == null)
+			return;
+
+		for(File directory : directories) {
+			if(directory.equals(keep))
+				continue;
+
+			File[] files = directory.listFiles();
+			if(files != null) {
+				for(File file : files) {
+					file.delete();
 				}
 			}
-		};
+			directory.delete();
+		}
+	}
 
-		executor.execute(statsCollector);
+	private ScheduledExecutorService getMaintenanceExecutor() {
+		if(maintenanceExecutor == null)
+			maintenanceExecutor = Executors.newSingleThreadScheduledExecutor();
+		return maintenanceExecutor;
+	}
 
+	/**
+	 * Merges every shard's pending sample counts into the stats map and commits.
+	 */
+	public void flush() {
+		for(StatsWriterShard shard : shards) {
+			shard.flush();
+		}
+		commit();
 	}
 
-	public String getStatistics() {
-		Store store = Store.forDB(db);
-		return  "Stats: " + store.calculateStatistics();
+	public CurrentConditions getCurrentConditions() {
+		return currentConditions;
 	}
 
-	public long getSampleQueueSize() {
-		return sampleQueue.size();
+	public String getCacheStatistics() {
+		return summaryCache.getCacheStatistics();
+	}
+
+	public int getWriterShardCount() {
+		return shards.length;
 	}
 
 	public long getProcessedSamples() {
 		return processedSamples.get();
 	}
 
+	public void addUpdateListener(StatsUpdateListener listener) {
+		updateListeners.add(listener);
+	}
+
+	public void removeUpdateListener(StatsUpdateListener listener) {
+		updateListeners.remove(listener);
+	}
+
+	/**
+	 * Listens for segments becoming congested or clearing. The writer shards only run detection while at least one
+	 * listener is registered.
+	 */
+	public void addCongestionListener(CongestionListener listener) {
+		congestionListeners.add(listener);
+	}
+
+	public void removeCongestionListener(CongestionListener listener) {
+		congestionListeners.remove(listener);
+	}
+
+	/**
+	 * Commits every shard's writes and notifies listeners of the keys they touched. Keys are collected before the
+	 * commit, so listeners only ever hear about committed records.
+	 */
+	public void commit() {
+		LongHashSet committedKeys = new LongHashSet();
+
+		synchronized (commitLock) {
+			for(StatsWriterShard shard : shards) {
+				committedKeys.addAll(shard.takeUpdatedStatsKeys());
+			}
+
+			db.commit();
+		}
+
+		if(committedKeys.isEmpty())
+			return;
+
+		for(StatsUpdateListener listener : updateListeners) {
+			try {
+				listener.statsUpdated(committedKeys);
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
 
 	public List<Integer> getWeekList() {
 		List<Integer> list = new ArrayList();
@@ -132,51 +455,75 @@ public class StatsDataStore {
 		return weekSet.contains(week);
 	}
 
-	public void addSpeedSample(SpeedSample speedSample) {
-		sampleQueue.add(speedSample);
+	/**
+	 * Ids of the segments with any stats, in ascending order.
+	 */
+	public NavigableSet<Long> getSegmentIds() {
+		return cumulativeStatsMap.keySet();
 	}
 
+	/**
+	 * Queues a sample for its segment's writer. Blocks while that writer's queue is full, so a backlog slows the
+	 * vehicle threads producing samples rather than growing without bound.
+	 */
+	public void addSpeedSample(SpeedSample speedSample) {
+		currentConditions.add(speedSample);
 
-	public void save(SpeedSample speedSample) {
-
-		synchronized (this) {
-			int week = SegmentStatistics.getWeekSinceEpoch(speedSample.getTime());
-			int hour = SegmentStatistics.getHourOfWeek(speedSample.getTime());
+		try {
+			getShard(speedSample.getSegmentId()).addSpeedSample(speedSample);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
 
-			weekSet.add(week);
 
-			Fun.Tuple2<Long, Integer> sampleId = new Fun.Tuple2<>(speedSample.getSegmentId(), week);
+	public void save(SpeedSample speedSample) {
+		getShard(speedSample.getSegmentId()).save(speedSample);
+	}
 
-			SegmentStatistics segmentStatistics;
+	StatsWriterShard getShard(long segmentId) {
+		return shards[(int)Math.floorMod(segmentId, (long)shards.length)];
+	}
 
-			segmentStatistics = statsMap.get(sampleId);
+	/**
+	 * Builds rollup records from existing week records, for stores created before they were kept. Runs before the
+	 * writers start.
+	 */
+	private void buildRollups(boolean cumulative, boolean months, boolean areas) {
+		if(statsMap.isEmpty())
+			return;
 
-			if(segmentStatistics == null)
-				segmentStatistics = new SegmentStatistics();
+		log.log(Level.INFO, "Building stats rollups from " + statsMap.sizeLong() + " week records");
 
-			segmentStatistics.addSample(speedSample);
+		StatsRollupBatch rollups = new StatsRollupBatch(this, cumulative, months, areas);
 
-			statsMap.put(sampleId, segmentStatistics);
+		// week records are ordered by segment, the order the rollups are fed in by the writers
+		Long segmentId = null;
+		for(Map.Entry<Fun.Tuple2<Long, Integer>, SegmentStatistics> entry : statsMap.entrySet()) {
+			if(!entry.getKey().a.equals(segmentId)) {
+				segmentId = entry.getKey().a;
+				rollups.startSegment(segmentId);
+			}
 
+			rollups.startWeek(entry.getKey().b);
+			entry.getValue().getHistogram().forEach(rollups::add);
 		}
-	}
-
-	private SegmentStatistics loadSegmentStats(long id) {
-		SegmentStatistics cumulativeStats = new SegmentStatistics();
+		rollups.finish();
 
-		NavigableMap<Fun.Tuple2<Long, Integer>, SegmentStatistics> subMap = statsMap.subMap(new Fun.Tuple2(id, null), true, new Fun.Tuple2(id, Fun.HI), true);
-		for(Object stats : subMap.values()) {
-			cumulativeStats.addStats((SegmentStatistics)stats);
-		}
+		db.commit();
+	}
 
-		return cumulativeStats;
+	private SegmentStatistics getCumulativeStats(long segmentId) {
+		SegmentStatistics stats = cumulativeStatsMap.get(segmentId);
+		return stats != null ? stats : new SegmentStatistics();
 	}
 
 	public SummaryStatistics collectSummaryStatistics(Long segmentId, Boolean normalize, Set<Integer> weeks, Set<Integer>hours) {
 		SummaryStatistics summaryStatistics = new SummaryStatistics(normalize, hours);
 
 		if(weeks == null || weeks.size() == 0) {
-			summaryStatistics.add(cumulativeStats.get(segmentId), segmentId);
+			summaryStatistics.add(getCumulativeStats(segmentId), segmentId);
 		}
 		else {
 			for(Integer week : weeks) {
@@ -191,24 +538,46 @@ public class StatsDataStore {
 		return summaryStatistics;
 	}
 
+	/**
+	 * Stats across many segments. Results are cached until a commit updates one of the segments in one of the
+	 * weeks, each call gets its own copy.
+	 */
 	public SummaryStatistics collectSummaryStatistics(Set<Long> segmentIds, Boolean normalize, Set<Integer> weeks, Set<Integer>hours) {
-		SummaryStatistics summaryStatistics = new SummaryStatistics(normalize, hours);
+		return summaryCache.get(segmentIds, normalize, weeks, hours, () -> computeSummaryStatistics(segmentIds, normalize, weeks, hours));
+	}
 
-		for(Long segmentId : segmentIds) {
-			if(weeks == null || weeks.size() == 0) {
-				summaryStatistics.add(cumulativeStats.get(segmentId), segmentId);
+	/**
+	 * Large sets are split over the summary pool, each worker adds its segments to its own summary and the partial
+	 * summaries are combined at the end.
+	 */
+	private SummaryStatistics computeSummaryStatistics(Set<Long> segmentIds, Boolean normalize, Set<Integer> weeks, Set<Integer>hours) {
+
+		if(segmentIds.size() < PARALLEL_SUMMARY_SEGMENTS) {
+			SummaryStatistics summaryStatistics = new SummaryStatistics(normalize, hours);
+			for(Long segmentId : segmentIds) {
+				addSegmentStatistics(summaryStatistics, segmentId, weeks);
 			}
-			else {
-				for(Integer week : weeks) {
-					NavigableMap<Fun.Tuple2<Long, Integer>, SegmentStatistics> subMap = statsMap.subMap(new Fun.Tuple2(segmentId, week), true, new Fun.Tuple2(segmentId, week), true);
-					for(Object stats : subMap.values()) {
-						summaryStatistics.add((SegmentStatistics)stats, segmentId);
-					}
+			return summaryStatistics;
+		}
 
-				}
+		// a parallel stream started from a task runs its subtasks in that task's pool
+		return summaryPool.submit(() -> segmentIds.parallelStream().collect(
+				() -> new SummaryStatistics(normalize, hours),
+				(summaryStatistics, segmentId) -> addSegmentStatistics(summaryStatistics, segmentId, weeks),
+				SummaryStatistics::combine)).join();
+	}
+
+	private void addSegmentStatistics(SummaryStatistics summaryStatistics, Long segmentId, Set<Integer> weeks) {
+		if(weeks == null || weeks.size() == 0) {
+			summaryStatistics.add(getCumulativeStats(segmentId), segmentId);
+		}
+		else {
+			for(Integer week : weeks) {
+				SegmentStatistics stats = statsMap.get(new Fun.Tuple2<>(segmentId, week));
+				if(stats != null)
+					summaryStatistics.add(stats, segmentId);
 			}
 		}
-		return summaryStatistics;
 	}
 
 	public SummaryStatistics collectSummaryStatistics(Long segmentId, Boolean normalize, Integer week) {
@@ -216,7 +585,7 @@ public class StatsDataStore {
 		NavigableMap<Fun.Tuple2<Long, Integer>, SegmentStatistics> subMap;
 
 		if(week == null){
-			summaryStatistics.add(cumulativeStats.get(segmentId), segmentId);
+			summaryStatistics.add(getCumulativeStats(segmentId), segmentId);
 		}
 		else {
 			subMap = statsMap.subMap(new Fun.Tuple2(segmentId, week), true, new Fun.Tuple2(segmentId, week), true);
@@ -229,6 +598,167 @@ public class StatsDataStore {
 		return summaryStatistics;
 	}
 
+	/**
+	 * Same as collectSummaryStatistics, leaving out segments seen by fewer than minVehicles distinct vehicles in the
+	 * given weeks and hours, for coverage or privacy thresholds.
+	 */
+	public SummaryStatistics collectSummaryStatistics(Set<Long> segmentIds, Boolean normalize, Set<Integer> weeks, Set<Integer> hours, double minVehicles) {
+		return collectSummaryStatistics(filterByVehicleCount(segmentIds, weeks, hours, minVehicles), normalize, weeks, hours);
+	}
+
+	/**
+	 * The segments seen by at least minVehicles distinct vehicles in the given weeks and hours.
+	 */
+	public Set<Long> filterByVehicleCount(Set<Long> segmentIds, Set<Integer> weeks, Set<Integer> hours, double minVehicles) {
+		Set<Long> filtered = new HashSet<>();
+		for(Long segmentId : segmentIds) {
+			if(getVehicleCount(segmentId, weeks, hours) >= minVehicles)
+				filtered.add(segmentId);
+		}
+		return filtered;
+	}
+
+	/**
+	 * Estimated distinct vehicles on a segment in the given weeks and hours, all of either when empty. A vehicle
+	 * seen in several weeks or hours counts once.
+	 */
+	public double getVehicleCount(Long segmentId, Set<Integer> weeks, Set<Integer> hours) {
+		return getVehicleSketch(segmentId, weeks).estimate(hours);
+	}
+
+	/**
+	 * A segment's sketches merged across the given weeks, or all stored weeks when empty.
+	 */
+	public VehicleSketch getVehicleSketch(Long segmentId, Set<Integer> weeks) {
+		VehicleSketch sketch = new VehicleSketch();
+
+		if(weeks == null || weeks.size() == 0) {
+			NavigableMap<Fun.Tuple2<Long, Integer>, VehicleSketch> subMap = vehicleSketchMap.subMap(new Fun.Tuple2(segmentId, null), true, new Fun.Tuple2(segmentId, Fun.HI), true);
+			for(VehicleSketch weekSketch : subMap.values()) {
+				sketch.merge(weekSketch);
+			}
+		}
+		else {
+			for(Integer week : weeks) {
+				VehicleSketch weekSketch = vehicleSketchMap.get(new Fun.Tuple2<>(segmentId, week));
+				if(weekSketch != null)
+					sketch.merge(weekSketch);
+			}
+		}
+
+		return sketch;
+	}
+
+	/**
+	 * Stats over whole months, read from the monthly rollup. No months means all time.
+	 */
+	public SummaryStatistics collectMonthlySummaryStatistics(Set<Long> segmentIds, Boolean normalize, Set<Integer> months, Set<Integer> hours) {
+		SummaryStatistics summaryStatistics = new SummaryStatistics(normalize, hours);
+
+		for(Long segmentId : segmentIds) {
+			if(months == null || months.size() == 0) {
+				summaryStatistics.add(getCumulativeStats(segmentId), segmentId);
+			}
+			else {
+				for(Integer month : months) {
+					SegmentStatistics stats = monthStatsMap.get(new Fun.Tuple2<>(segmentId, month));
+					if(stats != null)
+						summaryStatistics.add(stats, segmentId);
+				}
+			}
+		}
+
+		return summaryStatistics;
+	}
+
+	/**
+	 * Stats from the quarterly records that compacted weeks are archived into, speeds are in 5 km/h bins.
+	 */
+	public SummaryStatistics collectQuarterlySummaryStatistics(Set<Long> segmentIds, Boolean normalize, Set<Integer> quarters, Set<Integer> hours) {
+		SummaryStatistics summaryStatistics = new SummaryStatistics(normalize, hours);
+
+		for(Long segmentId : segmentIds) {
+			for(Integer quarter : quarters) {
+				SegmentStatistics stats = quarterStatsMap.get(new Fun.Tuple2<>(segmentId, quarter));
+				if(stats != null)
+					summaryStatistics.add(stats, segmentId);
+			}
+		}
+
+		return summaryStatistics;
+	}
+
+	/**
+	 * Stats for the segments of the given street types (all types when empty) in a set of OSM areas. Area rollups
+	 * merge segments, so they answer plain queries only. Normalized stats weight each segment's records equally and
+	 * are collected from the segments themselves.
+	 */
+	public SummaryStatistics collectAreaSummaryStatistics(Set<Long> areaIds, Set<Integer> streetTypes, Boolean normalize, Set<Integer> weeks, Set<Integer> hours) {
+
+		if(streetTypes != null && streetTypes.size() == 0)
+			streetTypes = null;
+
+		if(Boolean.TRUE.equals(normalize) || attributes == null)
+			return collectSummaryStatistics(getSegmentIds(areaIds, streetTypes), normalize, weeks, hours);
+
+		SummaryStatistics summaryStatistics = new SummaryStatistics(normalize, hours);
+
+		for(Long areaId : areaIds) {
+			if(weeks == null || weeks.size() == 0) {
+				NavigableMap<Fun.Tuple2<Long, Integer>, SegmentStatistics> subMap = areaTypeStatsMap.subMap(new Fun.Tuple2(areaId, null), true, new Fun.Tuple2(areaId, Fun.HI), true);
+				for(Map.Entry<Fun.Tuple2<Long, Integer>, SegmentStatistics> entry : subMap.entrySet()) {
+					if(streetTypes == null || streetTypes.contains(entry.getKey().b))
+						summaryStatistics.add(entry.getValue(), null);
+				}
+			}
+			else if(streetTypes != null) {
+				for(Integer streetType : streetTypes) {
+					for(Integer week : weeks) {
+						SegmentStatistics stats = areaTypeWeekStatsMap.get(new Fun.Tuple3<>(areaId, streetType, week));
+						if(stats != null)
+							summaryStatistics.add(stats, null);
+					}
+				}
+			}
+			else {
+				NavigableMap<Fun.Tuple3<Long, Integer, Integer>, SegmentStatistics> subMap = areaTypeWeekStatsMap.subMap(new Fun.Tuple3(areaId, null, null), true, new Fun.Tuple3(areaId, Fun.HI, Fun.HI), true);
+				for(Map.Entry<Fun.Tuple3<Long, Integer, Integer>, SegmentStatistics> entry : subMap.entrySet()) {
+					if(weeks.contains(entry.getKey().c))
+						summaryStatistics.add(entry.getValue(), null);
+				}
+			}
+		}
+
+		return summaryStatistics;
+	}
+
+	private Set<Long> getSegmentIds(Set<Long> areaIds, Set<Integer> streetTypes) {
+		Set<Long> segmentIds = new HashSet<>();
+
+		if(attributes == null)
+			return segmentIds;
+
+		for(int ordinal = 0; ordinal < attributes.getOrdinalCapacity(); ordinal++) {
+			if(attributes.containsOrdinal(ordinal) && areaIds.contains(attributes.getAreaIdByOrdinal(ordinal))
+					&& (streetTypes == null || streetTypes.contains(attributes.getStreetTypeByOrdinal(ordinal))))
+				segmentIds.add(StreetAttributeStore.getSegmentId(ordinal));
+		}
+
+		return segmentIds;
+	}
+
+	public static long getStatsKey(long segmentId, int week) {
+		return (segmentId << STATS_KEY_WEEK_BITS) | week;
+	}
+
+	public static long getSegmentIdFromStatsKey(long statsKey) {
+		return statsKey >>> STATS_KEY_WEEK_BITS;
+	}
+
+	public static int getWeekFromStatsKey(long statsKey) {
+		return (int)(statsKey & ((1 << STATS_KEY_WEEK_BITS) - 1));
+	}
+
 	public static String getId(long week, long hour) {
 		return week + "_" + hour;
 	}
@@ -0,0 +1,164 @@
+package io.opentraffic.engine.data.stores;
+
+import io.opentraffic.engine.data.stats.SegmentStatistics;
+import org.mapdb.Fun;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Applies week record deltas to the coarser records kept alongside them: the segment's all-time and monthly
+ * records, and the area/street type records by week and all-time. Deltas are fed segment by segment in key order.
+ * Segment records are only ever written by the segment's own writer shard, area records are shared between shards
+ * so their deltas are collected in memory and merged under the store's rollup lock.
+ */
+class StatsRollupBatch {
+
+	// area records held in memory before they are merged into the store
+	static final int MAX_AREA_RECORDS = 10_000;
+
+	final StatsDataStore store;
+	final boolean updateCumulative;
+	final boolean updateMonths;
+	final boolean updateAreas;
+
+	long segmentId;
+	boolean segmentStarted;
+	long areaId;
+	int streetType;
+
+	SegmentStatistics cumulativeStats;
+	TreeMap<Integer, SegmentStatistics> monthStats = new TreeMap<>();
+
+	// month of the week's first hour, and the hour of the week the next month starts at
+	int firstMonth;
+	int nextMonthHour;
+
+	SegmentStatistics areaTypeWeekStats;
+	SegmentStatistics areaTypeStats;
+
+	Map<Fun.Tuple3<Long, Integer, Integer>, SegmentStatistics> areaTypeWeekDeltas = new HashMap<>();
+	Map<Fun.Tuple2<Long, Integer>, SegmentStatistics> areaTypeDeltas = new HashMap<>();
+
+	StatsRollupBatch(StatsDataStore store, boolean updateCumulative, boolean updateMonths, boolean updateAreas) {
+		this.store = store;
+		this.updateCumulative = updateCumulative;
+		this.updateMonths = updateMonths;
+		this.updateAreas = updateAreas && store.attributes != null;
+	}
+
+	void startSegment(long segmentId) {
+		finishSegment();
+
+		this.segmentId = segmentId;
+		segmentStarted = true;
+
+		if(updateCumulative) {
+			cumulativeStats = store.cumulativeStatsMap.get(segmentId);
+			if(cumulativeStats == null)
+				cumulativeStats = new SegmentStatistics();
+		}
+
+		if(updateAreas && store.attributes.contains(segmentId)) {
+			areaId = store.attributes.getAreaId(segmentId);
+			streetType = store.attributes.getStreetType(segmentId);
+		}
+		else
+			areaId = 0;
+
+		if(areaTypeWeekDeltas.size() + areaTypeDeltas.size() > MAX_AREA_RECORDS)
+			mergeAreaDeltas();
+	}
+
+	void startWeek(int week) {
+		long weekStart = SegmentStatistics.getTimeForWeek(week);
+
+		firstMonth = SegmentStatistics.getMonthSinceEpoch(weekStart);
+		nextMonthHour = (int)Math.min(SegmentStatistics.HOURS_IN_WEEK,
+				(SegmentStatistics.getTimeForMonth(firstMonth + 1) - weekStart) / SegmentStatistics.HOUR_MS);
+
+		if(areaId != 0) {
+			areaTypeWeekStats = areaTypeWeekDeltas.computeIfAbsent(new Fun.Tuple3<>(areaId, streetType, week), key -> new SegmentStatistics());
+			areaTypeStats = areaTypeDeltas.computeIfAbsent(new Fun.Tuple2<>(areaId, streetType), key -> new SegmentStatistics());
+		}
+	}
+
+	void add(int bin, long count) {
+		if(updateCumulative)
+			cumulativeStats.addSpeed(bin, count);
+
+		if(updateMonths) {
+			int month = SegmentStatistics.getHourFromBin(bin) < nextMonthHour ? firstMonth : firstMonth + 1;
+			getMonthStats(month).addSpeed(bin, count);
+		}
+
+		if(areaId != 0) {
+			areaTypeWeekStats.addSpeed(bin, count);
+			areaTypeStats.addSpeed(bin, count);
+		}
+	}
+
+	/**
+	 * Writes the last segment's records and merges the area deltas.
+	 */
+	void finish() {
+		finishSegment();
+		mergeAreaDeltas();
+	}
+
+	private SegmentStatistics getMonthStats(int month) {
+		SegmentStatistics stats = monthStats.get(month);
+
+		if(stats == null) {
+			stats = store.monthStatsMap.get(new Fun.Tuple2<>(segmentId, month));
+			if(stats == null)
+				stats = new SegmentStatistics();
+			monthStats.put(month, stats);
+		}
+
+		return stats;
+	}
+
+	private void finishSegment() {
+		if(!segmentStarted)
+			return;
+
+		if(updateCumulative)
+			store.cumulativeStatsMap.put(segmentId, cumulativeStats);
+
+		for(Map.Entry<Integer, SegmentStatistics> entry : monthStats.entrySet()) {
+			store.monthStatsMap.put(new Fun.Tuple2<>(segmentId, entry.getKey()), entry.getValue());
+		}
+		monthStats.clear();
+
+		segmentStarted = false;
+	}
+
+	private void mergeAreaDeltas() {
+		if(areaTypeWeekDeltas.isEmpty() && areaTypeDeltas.isEmpty())
+			return;
+
+		// the area maps' key order, so the B-trees are walked in order
+		synchronized (store.rollupLock) {
+			for(Map.Entry<Fun.Tuple3<Long, Integer, Integer>, SegmentStatistics> entry : new TreeMap<>(areaTypeWeekDeltas).entrySet()) {
+				store.areaTypeWeekStatsMap.put(entry.getKey(), merge(store.areaTypeWeekStatsMap.get(entry.getKey()), entry.getValue()));
+			}
+
+			for(Map.Entry<Fun.Tuple2<Long, Integer>, SegmentStatistics> entry : new TreeMap<>(areaTypeDeltas).entrySet()) {
+				store.areaTypeStatsMap.put(entry.getKey(), merge(store.areaTypeStatsMap.get(entry.getKey()), entry.getValue()));
+			}
+		}
+
+		areaTypeWeekDeltas.clear();
+		areaTypeDeltas.clear();
+	}
+
+	private static SegmentStatistics merge(SegmentStatistics stored, SegmentStatistics delta) {
+		if(stored == null)
+			return delta;
+
+		stored.addStats(delta);
+		return stored;
+	}
+}
@@ -0,0 +1,484 @@
+package io.opentraffic.engine.data.stores;
+
+import io.opentraffic.engine.data.stats.SegmentStatistics;
+import io.opentraffic.engine.data.stats.SummaryStatistics;
+import com.google.common.io.LittleEndianDataOutputStream;
+import org.mapdb.Fun;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+
+/**
+ * Read-only columnar copy of the week records in a range of weeks, for network-wide scans. There is a row per
+ * (segment, week, hour) with observations, sorted by segment, week and hour. Row columns hold the segment id, week,
+ * hour, observation count and speed sum, and an offset into the bin columns holding that hour's speed bins and
+ * counts. A segment index gives each segment's first row.
+ *
+ * Each column is its own memory-mapped file, so a scan only pages in the columns it reads and runs over primitive
+ * values without deserializing records. Columns are little-endian, the native order on the hardware we run on, so
+ * reads don't swap bytes. Observation counts are ints, a segment hour of one week never sees 2^31 samples. Columns
+ * are mapped in 1 GB chunks, indexes are longs.
+ */
+public class StatsSnapshot {
+
+	private static final int MAGIC = 0x53545353;
+	private static final int VERSION = 2;
+
+	// mapped chunks are 2^CHUNK_BITS bytes, column widths divide it so values never straddle chunks
+	private static final int CHUNK_BITS = 30;
+	private static final long CHUNK_MASK = (1l << CHUNK_BITS) - 1;
+
+	private static final String HEADER = "header.bin";
+
+	public interface SegmentConsumer {
+		void accept(long segmentId, long count, double meanSpeed);
+	}
+
+	final File directory;
+
+	final long created;
+	final int fromWeek;
+	final int toWeek;
+	final long rowCount;
+	final long binCount;
+	final long segmentCount;
+
+	final Column segmentIds;
+	final Column weeks;
+	final Column hours;
+	final Column counts;
+	final Column speedSums;
+	final Column binOffsets;
+	final Column speedBins;
+	final Column binCounts;
+	final Column indexSegmentIds;
+	final Column indexRowOffsets;
+
+	private StatsSnapshot(File directory) throws IOException {
+		this.directory = directory;
+
+		try (DataInputStream in = new DataInputStream(new FileInputStream(new File(directory, HEADER)))) {
+			if(in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Not a version " + VERSION + " stats snapshot: " + directory.getAbsolutePath());
+
+			created = in.readLong();
+			fromWeek = in.readInt();
+			toWeek = in.readInt();
+			rowCount = in.readLong();
+			binCount = in.readLong();
+			segmentCount = in.readLong();
+		}
+
+		segmentIds = new Column(directory, "segmentIds", 8);
+		weeks = new Column(directory, "weeks", 4);
+		hours = new Column(directory, "hours", 1);
+		counts = new Column(directory, "counts", 4);
+		speedSums = new Column(directory, "speedSums", 8);
+		binOffsets = new Column(directory, "binOffsets", 8);
+		speedBins = new Column(directory, "speedBins", 1);
+		binCounts = new Column(directory, "binCounts", 4);
+		indexSegmentIds = new Column(directory, "indexSegmentIds", 8);
+		indexRowOffsets = new Column(directory, "indexRowOffsets", 8);
+	}
+
+	public static StatsSnapshot open(File directory) throws IOException {
+		return new StatsSnapshot(directory);
+	}
+
+	/**
+	 * Writes the week records from fromWeek to toWeek (inclusive) into a new snapshot directory. Columns are written
+	 * next to it and moved into place once complete, so a directory that exists is always a whole snapshot.
+	 */
+	static StatsSnapshot write(File directory, NavigableMap<Fun.Tuple2<Long, Integer>, SegmentStatistics> statsMap, int fromWeek, int toWeek) throws IOException {
+
+		File tmpDirectory = new File(directory.getParentFile(), directory.getName() + ".tmp");
+		tmpDirectory.mkdirs();
+
+		try (SnapshotWriter writer = new SnapshotWriter(tmpDirectory)) {
+
+			Fun.Tuple2<Long, Integer> key = statsMap.isEmpty() ? null : statsMap.firstKey();
+			while(key != null) {
+				long segmentId = key.a;
+
+				NavigableMap<Fun.Tuple2<Long, Integer>, SegmentStatistics> weekRecords = statsMap.subMap(new Fun.Tuple2(segmentId, fromWeek), true, new Fun.Tuple2(segmentId, toWeek), true);
+				if(!weekRecords.isEmpty()) {
+					writer.startSegment(segmentId);
+					for(Map.Entry<Fun.Tuple2<Long, Integer>, SegmentStatistics> entry : weekRecords.entrySet()) {
+						writer.addRecord(segmentId, entry.getKey().b, entry.getValue());
+					}
+				}
+
+				key = statsMap.ceilingKey(new Fun.Tuple2(segmentId, Fun.HI));
+			}
+
+			writer.finish(fromWeek, toWeek);
+		}
+
+		if(!tmpDirectory.renameTo(directory))
+			throw new IOException("Unable to move snapshot to " + directory.getAbsolutePath());
+
+		return open(directory);
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	public int getFromWeek() {
+		return fromWeek;
+	}
+
+	public int getToWeek() {
+		return toWeek;
+	}
+
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	public long getSegmentCount() {
+		return segmentCount;
+	}
+
+	public long getSegmentId(long row) {
+		return segmentIds.getLong(row);
+	}
+
+	public int getWeek(long row) {
+		return weeks.getInt(row);
+	}
+
+	public int getHour(long row) {
+		return hours.getByte(row) & 0xFF;
+	}
+
+	public long getCount(long row) {
+		return counts.getInt(row);
+	}
+
+	/**
+	 * Sum of bin mean speeds (m/s) times counts for a row.
+	 */
+	public double getSpeedSum(long row) {
+		return speedSums.getDouble(row);
+	}
+
+	/**
+	 * Network-wide mean speed for every hour of the week over a range of weeks, NaN for hours without
+	 * observations. Reads only the week, hour, count and speed sum columns.
+	 */
+	public double[] getHourlyMeans(int fromWeek, int toWeek) {
+		long[] hourCounts = new long[SegmentStatistics.HOURS_IN_WEEK];
+		double[] hourSums = new double[SegmentStatistics.HOURS_IN_WEEK];
+
+		for(long row = 0; row < rowCount; row++) {
+			int week = weeks.getInt(row);
+			if(week < fromWeek || week > toWeek)
+				continue;
+
+			int hour = hours.getByte(row) & 0xFF;
+			hourCounts[hour] += counts.getInt(row);
+			hourSums[hour] += speedSums.getDouble(row);
+		}
+
+		double[] means = new double[SegmentStatistics.HOURS_IN_WEEK];
+		for(int hour = 0; hour < means.length; hour++) {
+			means[hour] = hourCounts[hour] > 0 ? hourSums[hour] / hourCounts[hour] : Double.NaN;
+		}
+
+		return means;
+	}
+
+	/**
+	 * Observation count and mean speed of every segment with observations in a range of weeks and set of hours
+	 * (all hours when empty), in segment order.
+	 */
+	public void forEachSegment(int fromWeek, int toWeek, Set<Integer> hourSet, SegmentConsumer consumer) {
+		boolean[] includeHour = getHourFilter(hourSet);
+
+		for(long segment = 0; segment < segmentCount; segment++) {
+			long count = 0;
+			double sum = 0.0;
+
+			long end = indexRowOffsets.getLong(segment + 1);
+			for(long row = indexRowOffsets.getLong(segment); row < end; row++) {
+				int week = weeks.getInt(row);
+				if(week < fromWeek || week > toWeek || !includeHour[hours.getByte(row) & 0xFF])
+					continue;
+
+				count += counts.getInt(row);
+				sum += speedSums.getDouble(row);
+			}
+
+			if(count > 0)
+				consumer.accept(indexSegmentIds.getLong(segment), count, sum / count);
+		}
+	}
+
+	/**
+	 * Same as StatsDataStore.collectSummaryStatistics over the snapshot's week records, each week is added as a
+	 * record of its own.
+	 */
+	public SummaryStatistics collectSummaryStatistics(long segmentId, Boolean normalize, int fromWeek, int toWeek, Set<Integer> hourSet) {
+		SummaryStatistics summaryStatistics = new SummaryStatistics(normalize, hourSet);
+
+		long segment = findSegment(segmentId);
+		if(segment < 0)
+			return summaryStatistics;
+
+		SegmentStatistics weekStats = null;
+		int currentWeek = Integer.MIN_VALUE;
+
+		long end = indexRowOffsets.getLong(segment + 1);
+		for(long row = indexRowOffsets.getLong(segment); row < end; row++) {
+			int week = weeks.getInt(row);
+			if(week < fromWeek || week > toWeek)
+				continue;
+
+			if(week != currentWeek) {
+				if(weekStats != null)
+					summaryStatistics.add(weekStats, segmentId);
+				weekStats = new SegmentStatistics();
+				currentWeek = week;
+			}
+
+			int hour = getHour(row);
+			long binEnd = binOffsets.getLong(row + 1);
+			for(long bin = binOffsets.getLong(row); bin < binEnd; bin++) {
+				weekStats.addSpeed(hour, speedBins.getByte(bin) & 0xFF, binCounts.getInt(bin));
+			}
+		}
+
+		if(weekStats != null)
+			summaryStatistics.add(weekStats, segmentId);
+
+		return summaryStatistics;
+	}
+
+	/**
+	 * Position of a segment in the index, or -1.
+	 */
+	private long findSegment(long segmentId) {
+		long low = 0, high = segmentCount - 1;
+
+		while(low <= high) {
+			long mid = (low + high) >>> 1;
+			long id = indexSegmentIds.getLong(mid);
+
+			if(id < segmentId)
+				low = mid + 1;
+			else if(id > segmentId)
+				high = mid - 1;
+			else
+				return mid;
+		}
+
+		return -1;
+	}
+
+	private static boolean[] getHourFilter(Set<Integer> hourSet) {
+		boolean[] includeHour = new boolean[SegmentStatistics.HOURS_IN_WEEK];
+		for(int hour = 0; hour < includeHour.length; hour++) {
+			includeHour[hour] = hourSet == null || hourSet.isEmpty() || hourSet.contains(hour);
+		}
+		return includeHour;
+	}
+
+	/**
+	 * A fixed-width little-endian column mapped read-only in chunks. Positions in the first chunk, all of them for
+	 * columns under 1 GB, skip the chunk lookup.
+	 */
+	static class Column {
+
+		final int shift;
+		final ByteBuffer[] chunks;
+		final ByteBuffer first;
+
+		Column(File directory, String name, int width) throws IOException {
+			this.shift = Integer.numberOfTrailingZeros(width);
+
+			try (FileChannel channel = new RandomAccessFile(new File(directory, name + ".col"), "r").getChannel()) {
+				long size = channel.size();
+				chunks = new ByteBuffer[(int)((size + CHUNK_MASK) >>> CHUNK_BITS)];
+
+				for(int i = 0; i < chunks.length; i++) {
+					long start = (long)i << CHUNK_BITS;
+					chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, 1l << CHUNK_BITS))
+							.order(ByteOrder.LITTLE_ENDIAN);
+				}
+			}
+
+			first = chunks.length > 0 ? chunks[0] : ByteBuffer.allocate(0);
+		}
+
+		private ByteBuffer chunk(long position) {
+			return position <= CHUNK_MASK ? first : chunks[(int)(position >>> CHUNK_BITS)];
+		}
+
+		byte getByte(long index) {
+			return chunk(index).get((int)(index & CHUNK_MASK));
+		}
+
+		int getInt(long index) {
+			long position = index << shift;
+			return chunk(position).getInt((int)(position & CHUNK_MASK));
+		}
+
+		long getLong(long index) {
+			long position = index << shift;
+			return chunk(position).getLong((int)(position & CHUNK_MASK));
+		}
+
+		double getDouble(long index) {
+			long position = index << shift;
+			return chunk(position).getDouble((int)(position & CHUNK_MASK));
+		}
+	}
+
+	/**
+	 * Streams rows to the column files, little-endian. Records must arrive in segment then week order.
+	 */
+	private static class SnapshotWriter implements Closeable {
+
+		final File directory;
+
+		final LittleEndianDataOutputStream segmentIds, weeks, hours, counts, speedSums, binOffsets, speedBins, binCounts,
+				indexSegmentIds, indexRowOffsets;
+
+		long rowCount, binCount, segmentCount;
+
+		// row being filled
+		long rowSegmentId;
+		int rowWeek;
+		int rowHour = -1;
+		long rowObservations;
+		double rowSpeedSum;
+
+		SnapshotWriter(File directory) throws IOException {
+			this.directory = directory;
+
+			segmentIds = open("segmentIds");
+			weeks = open("weeks");
+			hours = open("hours");
+			counts = open("counts");
+			speedSums = open("speedSums");
+			binOffsets = open("binOffsets");
+			speedBins = open("speedBins");
+			binCounts = open("binCounts");
+			indexSegmentIds = open("indexSegmentIds");
+			indexRowOffsets = open("indexRowOffsets");
+		}
+
+		private LittleEndianDataOutputStream open(String name) throws IOException {
+			return new LittleEndianDataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(directory, name + ".col")), 1 << 16));
+		}
+
+		void startSegment(long segmentId) throws IOException {
+			indexSegmentIds.writeLong(segmentId);
+			indexRowOffsets.writeLong(rowCount);
+			segmentCount++;
+		}
+
+		void addRecord(long segmentId, int week, SegmentStatistics stats) throws IOException {
+			try {
+				// bins arrive in hour then speed order, a row is closed when the hour changes
+				stats.getHistogram().forEach((bin, count) -> {
+					int hour = SegmentStatistics.getHourFromBin(bin);
+					if(hour != rowHour)
+						startRow(segmentId, week, hour);
+
+					int speedBin = SegmentStatistics.getSpeedBinFromBin(bin);
+					try {
+						speedBins.writeByte(speedBin);
+						binCounts.writeInt(saturatedInt(count));
+					}
+					catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					binCount++;
+
+					rowObservations += count;
+					rowSpeedSum += SegmentStatistics.getBinMean(speedBin) * count;
+				});
+				finishRow();
+			}
+			catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+
+		private void startRow(long segmentId, int week, int hour) {
+			finishRow();
+
+			rowSegmentId = segmentId;
+			rowWeek = week;
+			rowHour = hour;
+			rowObservations = 0;
+			rowSpeedSum = 0.0;
+
+			try {
+				binOffsets.writeLong(binCount);
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private void finishRow() {
+			if(rowHour < 0)
+				return;
+
+			try {
+				segmentIds.writeLong(rowSegmentId);
+				weeks.writeInt(rowWeek);
+				hours.writeByte(rowHour);
+				counts.writeInt(saturatedInt(rowObservations));
+				speedSums.writeDouble(rowSpeedSum);
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+
+			rowCount++;
+			rowHour = -1;
+		}
+
+		private static int saturatedInt(long count) {
+			return (int)Math.min(count, Integer.MAX_VALUE);
+		}
+
+		void finish(int fromWeek, int toWeek) throws IOException {
+			// offsets end with the total so a row or segment's extent is [i, i + 1)
+			binOffsets.writeLong(binCount);
+			indexRowOffsets.writeLong(rowCount);
+
+			try (DataOutputStream header = new DataOutputStream(new FileOutputStream(new File(directory, HEADER)))) {
+				header.writeInt(MAGIC);
+				header.writeInt(VERSION);
+				header.writeLong(System.currentTimeMillis());
+				header.writeInt(fromWeek);
+				header.writeInt(toWeek);
+				header.writeLong(rowCount);
+				header.writeLong(binCount);
+				header.writeLong(segmentCount);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			for(LittleEndianDataOutputStream out : new LittleEndianDataOutputStream[] {segmentIds, weeks, hours, counts, speedSums, binOffsets,
+					speedBins, binCounts, indexSegmentIds, indexRowOffsets}) {
+				out.close();
+			}
+		}
+	}
+}
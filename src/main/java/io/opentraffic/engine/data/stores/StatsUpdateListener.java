@@ -0,0 +1,13 @@
+package io.opentraffic.engine.data.stores;
+
+import com.carrotsearch.hppc.LongSet;
+
+/**
+ * Notified after StatsDataStore commits new samples. Keys are packed (segment, week) pairs, see
+ * StatsDataStore.getStatsKey.
+ */
+public interface StatsUpdateListener {
+
+	void statsUpdated(LongSet updatedStatsKeys);
+
+}
@@ -0,0 +1,311 @@
+package io.opentraffic.engine.data.stores;
+
+import com.carrotsearch.hppc.IntHashSet;
+import com.carrotsearch.hppc.LongHashSet;
+import com.carrotsearch.hppc.LongIntHashMap;
+import com.carrotsearch.hppc.LongObjectHashMap;
+import com.carrotsearch.hppc.cursors.LongCursor;
+import io.opentraffic.engine.data.SpeedSample;
+import io.opentraffic.engine.data.stats.SegmentStatistics;
+import io.opentraffic.engine.data.stats.SummaryStatisticsComparison;
+import io.opentraffic.engine.data.stats.VehicleSketch;
+import org.mapdb.Fun;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One stats writer thread and its sample queue. Every segment maps to exactly one shard, so samples for a segment
+ * are applied in order and no two shards ever write the same (segment, week) record. Shards share the stats map
+ * and only contend on commit.
+ *
+ * The queue is bounded. Once it is full, producers block in addSpeedSample until the writer catches up, which
+ * slows vehicle processing instead of letting the backlog grow without limit. The writer blocks waiting for
+ * samples and drains them in batches.
+ *
+ * Samples aren't written one at a time. Each shard counts them in a primitive map keyed by (segment, week, bin) and
+ * periodically merges the counts into the stored records in key order, so a single read-modify-write of a record
+ * absorbs every sample it received since the last flush. The same flush adds the counts to the rollup records
+ * (segment all-time and by month, area and street type by week and all-time), so coarse queries never have to
+ * merge weeks. Samples that carry a vehicle id also go into per-hour distinct vehicle sketches, merged into the
+ * (segment, week) sketch records by the same flush.
+ *
+ * While anyone listens for congestion, each drained batch is also fed to the shard's congestion detector.
+ */
+class StatsWriterShard implements Runnable {
+
+	// bits for the hour/speed bin in a delta key, bins are below HOURS_IN_WEEK * HOURS_IN_WEEK
+	static final int DELTA_KEY_BIN_BITS = 15;
+
+	// bits for the hour in a sketch key
+	static final int SKETCH_KEY_HOUR_BITS = 8;
+
+	// most samples taken from the queue at once
+	static final int DRAIN_BATCH = 4096;
+
+	final StatsDataStore store;
+	final int shardId;
+
+	final BlockingQueue<SpeedSample> sampleQueue;
+
+	// sample counts not yet merged into the stats map, keyed by getDeltaKey
+	LongIntHashMap pendingCounts = new LongIntHashMap();
+	// vehicle sketch registers not yet merged, keyed by stats key and hour
+	LongObjectHashMap<byte[]> pendingSketches = new LongObjectHashMap<>();
+	long lastFlush = System.currentTimeMillis();
+
+	// (segment, week) keys written since the last commit
+	LongHashSet updatedStatsKeys = new LongHashSet();
+
+	final CongestionDetector congestionDetector;
+
+	StatsWriterShard(StatsDataStore store, int shardId, int queueCapacity) {
+		this.store = store;
+		this.shardId = shardId;
+		this.sampleQueue = new ArrayBlockingQueue<>(queueCapacity);
+		this.congestionDetector = new CongestionDetector(store, SummaryStatisticsComparison.P_99);
+	}
+
+	/**
+	 * Queues a sample, blocking while the queue is full.
+	 */
+	void addSpeedSample(SpeedSample speedSample) throws InterruptedException {
+		// counted before the put so the depth never goes negative when the writer drains straight away
+		store.queuedSamples.incrementAndGet();
+		try {
+			sampleQueue.put(speedSample);
+		}
+		catch (InterruptedException e) {
+			store.queuedSamples.decrementAndGet();
+			throw e;
+		}
+	}
+
+	@Override
+	public void run() {
+
+		List<SpeedSample> batch = new ArrayList<>(DRAIN_BATCH);
+
+		while(!Thread.currentThread().isInterrupted()) {
+			try {
+
+				SpeedSample speedSample = sampleQueue.poll(getMillisUntilFlush(), TimeUnit.MILLISECONDS);
+
+				if(speedSample != null) {
+					batch.add(speedSample);
+					sampleQueue.drainTo(batch, DRAIN_BATCH - 1);
+
+					store.queuedSamples.addAndGet(-batch.size());
+
+					save(batch);
+
+					if(!store.congestionListeners.isEmpty())
+						congestionDetector.add(batch);
+
+					store.processedSamples.addAndGet(batch.size());
+					batch.clear();
+				}
+
+				if(isFlushDue()) {
+					flush();
+					store.commit();
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	void save(SpeedSample speedSample) {
+		long deltaKey = getDeltaKey(speedSample);
+
+		synchronized (this) {
+			pendingCounts.addTo(deltaKey, 1);
+			addVehicle(speedSample);
+		}
+	}
+
+	void save(List<SpeedSample> speedSamples) {
+		synchronized (this) {
+			for(SpeedSample speedSample : speedSamples) {
+				pendingCounts.addTo(getDeltaKey(speedSample), 1);
+				addVehicle(speedSample);
+			}
+		}
+	}
+
+	private void addVehicle(SpeedSample speedSample) {
+		if(speedSample.getVehicleId() == 0)
+			return;
+
+		long sketchKey = getSketchKey(speedSample);
+
+		byte[] registers = pendingSketches.get(sketchKey);
+		if(registers == null) {
+			registers = new byte[VehicleSketch.REGISTERS];
+			pendingSketches.put(sketchKey, registers);
+		}
+
+		VehicleSketch.add(registers, speedSample.getVehicleId());
+	}
+
+	synchronized int getPendingKeyCount() {
+		return pendingCounts.size();
+	}
+
+	private long getMillisUntilFlush() {
+		// nothing to flush, wait for samples as long as a full interval
+		if(getPendingKeyCount() == 0)
+			return store.flushInterval;
+
+		long remaining = store.flushInterval - (System.currentTimeMillis() - lastFlush);
+		return Math.max(1, remaining);
+	}
+
+	private boolean isFlushDue() {
+		if(getPendingKeyCount() == 0)
+			return false;
+
+		return getPendingKeyCount() >= store.maxPendingKeys
+				|| System.currentTimeMillis() - lastFlush >= store.flushInterval;
+	}
+
+	/**
+	 * Merges the pending counts into the stats map. Keys sort by segment, then week, then bin, which is the
+	 * stats map's own key order, so each week record and each segment's rollup records are read and written once
+	 * and the B-trees are walked in order.
+	 */
+	synchronized void flush() {
+
+		lastFlush = System.currentTimeMillis();
+
+		if(pendingCounts.isEmpty())
+			return;
+
+		long[] deltaKeys = new long[pendingCounts.size()];
+		int i = 0;
+		for(LongCursor cursor : pendingCounts.keys()) {
+			deltaKeys[i++] = cursor.value;
+		}
+		Arrays.sort(deltaKeys);
+
+		IntHashSet weeks = new IntHashSet();
+		StatsRollupBatch rollups = new StatsRollupBatch(store, true, true, true);
+
+		i = 0;
+		while(i < deltaKeys.length) {
+			long segmentId = StatsDataStore.getSegmentIdFromStatsKey(deltaKeys[i] >>> DELTA_KEY_BIN_BITS);
+
+			rollups.startSegment(segmentId);
+
+			// one record per week of this segment, each delta is applied to the week and the rollup records
+			while(i < deltaKeys.length && StatsDataStore.getSegmentIdFromStatsKey(deltaKeys[i] >>> DELTA_KEY_BIN_BITS) == segmentId) {
+				long statsKey = deltaKeys[i] >>> DELTA_KEY_BIN_BITS;
+				int week = StatsDataStore.getWeekFromStatsKey(statsKey);
+
+				Fun.Tuple2<Long, Integer> sampleId = new Fun.Tuple2<>(segmentId, week);
+
+				SegmentStatistics segmentStatistics = store.statsMap.get(sampleId);
+
+				if(segmentStatistics == null)
+					segmentStatistics = new SegmentStatistics();
+
+				rollups.startWeek(week);
+
+				for(; i < deltaKeys.length && (deltaKeys[i] >>> DELTA_KEY_BIN_BITS) == statsKey; i++) {
+					int bin = (int)(deltaKeys[i] & ((1 << DELTA_KEY_BIN_BITS) - 1));
+					int count = pendingCounts.get(deltaKeys[i]);
+					segmentStatistics.addSpeed(bin, count);
+					rollups.add(bin, count);
+				}
+
+				store.statsMap.put(sampleId, segmentStatistics);
+
+				if(weeks.add(week))
+					store.weekSet.add(week);
+
+				updatedStatsKeys.add(statsKey);
+			}
+		}
+
+		rollups.finish();
+
+		pendingCounts.clear();
+
+		flushSketches();
+	}
+
+	/**
+	 * Merges the pending vehicle registers into the sketch records, one read and write per (segment, week).
+	 */
+	private void flushSketches() {
+		if(pendingSketches.isEmpty())
+			return;
+
+		long[] sketchKeys = new long[pendingSketches.size()];
+		int i = 0;
+		for(LongCursor cursor : pendingSketches.keys()) {
+			sketchKeys[i++] = cursor.value;
+		}
+		Arrays.sort(sketchKeys);
+
+		i = 0;
+		while(i < sketchKeys.length) {
+			long statsKey = sketchKeys[i] >>> SKETCH_KEY_HOUR_BITS;
+
+			Fun.Tuple2<Long, Integer> sketchId = new Fun.Tuple2<>(StatsDataStore.getSegmentIdFromStatsKey(statsKey), StatsDataStore.getWeekFromStatsKey(statsKey));
+
+			VehicleSketch sketch = store.vehicleSketchMap.get(sketchId);
+			if(sketch == null)
+				sketch = new VehicleSketch();
+
+			for(; i < sketchKeys.length && (sketchKeys[i] >>> SKETCH_KEY_HOUR_BITS) == statsKey; i++) {
+				int hour = (int)(sketchKeys[i] & ((1 << SKETCH_KEY_HOUR_BITS) - 1));
+				sketch.merge(hour, pendingSketches.get(sketchKeys[i]));
+			}
+
+			store.vehicleSketchMap.put(sketchId, sketch);
+		}
+
+		pendingSketches.clear();
+	}
+
+	static long getDeltaKey(SpeedSample speedSample) {
+		int week = SegmentStatistics.getWeekSinceEpoch(speedSample.getTime());
+		int hour = SegmentStatistics.getHourOfWeek(speedSample.getTime());
+		int speedBin = SegmentStatistics.getSpeedBin(speedSample.getSpeed());
+
+		return getDeltaKey(speedSample.getSegmentId(), week, SegmentStatistics.getHourSpeedBin(hour, speedBin));
+	}
+
+	static long getSketchKey(SpeedSample speedSample) {
+		int week = SegmentStatistics.getWeekSinceEpoch(speedSample.getTime());
+		int hour = SegmentStatistics.getHourOfWeek(speedSample.getTime());
+
+		return (StatsDataStore.getStatsKey(speedSample.getSegmentId(), week) << SKETCH_KEY_HOUR_BITS) | hour;
+	}
+
+	/**
+	 * Packs a stats key and an hour/speed bin, segment ids must fit in the remaining 33 bits.
+	 */
+	static long getDeltaKey(long segmentId, int week, int bin) {
+		return (StatsDataStore.getStatsKey(segmentId, week) << DELTA_KEY_BIN_BITS) | bin;
+	}
+
+	/**
+	 * Hands over the keys written since the last call.
+	 */
+	synchronized LongHashSet takeUpdatedStatsKeys() {
+		LongHashSet keys = updatedStatsKeys;
+		updatedStatsKeys = new LongHashSet();
+		return keys;
+	}
+}
@@ -0,0 +1,242 @@
+package io.opentraffic.engine.data.stores;
+
+import io.opentraffic.engine.geom.StreetSegment;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Street segment attributes held as memory-mapped primitive columns, indexed by dense segment ordinal. Segment ids
+ * come from an IdStore, so the ordinal is simply the id minus the store's initial value. Lookups are array reads
+ * and never touch MapDB.
+ */
+public class StreetAttributeStore {
+
+	private static final Logger log = Logger.getLogger( StreetAttributeStore.class.getName());
+
+	// columns grow by this many segments at a time
+	private static final int GROWTH_SEGMENTS = 1 << 16;
+
+	private static final byte FLAG_PRESENT = 1;
+	private static final byte FLAG_ONEWAY = 2;
+
+	private final Column flags;
+	private final Column streetTypes;
+	private final Column lengths;
+	private final Column startNodeIds;
+	private final Column endNodeIds;
+	private final Column areaIds;
+
+	private volatile int capacity;
+
+	public StreetAttributeStore(File directory, String dataFile) {
+
+		if(!directory.exists())
+			directory.mkdirs();
+
+		flags = new Column(new File(directory, dataFile + "_flags.col"), 1);
+		streetTypes = new Column(new File(directory, dataFile + "_streetTypes.col"), 1);
+		lengths = new Column(new File(directory, dataFile + "_lengths64.col"), 8);
+		startNodeIds = new Column(new File(directory, dataFile + "_startNodeIds.col"), 8);
+		endNodeIds = new Column(new File(directory, dataFile + "_endNodeIds.col"), 8);
+		areaIds = new Column(new File(directory, dataFile + "_areaIds.col"), 8);
+
+		// a missing double length column leaves the capacity at zero, so StreetDataStore rebuilds every column from
+		// the segments in MapDB rather than widening the old rounded float lengths
+		File floatLengths = new File(directory, dataFile + "_lengths.col");
+		if(lengths.capacity() == 0 && floatLengths.exists())
+			floatLengths.delete();
+
+		capacity = Math.min(Math.min(flags.capacity(), streetTypes.capacity()),
+				Math.min(lengths.capacity(), Math.min(startNodeIds.capacity(), endNodeIds.capacity())));
+
+		// the area column was added later, stores without it get an empty one sized to match
+		if(areaIds.capacity() < capacity)
+			areaIds.map(capacity);
+	}
+
+	public static int getOrdinal(long segmentId) {
+		long ordinal = segmentId - IdStore.INITIAL_VALUE;
+		if(ordinal < 0 || ordinal > Integer.MAX_VALUE)
+			return -1;
+		return (int)ordinal;
+	}
+
+	public static long getSegmentId(int ordinal) {
+		return ordinal + IdStore.INITIAL_VALUE;
+	}
+
+	/**
+	 * Upper bound (exclusive) on the ordinals that may be present.
+	 */
+	public int getOrdinalCapacity() {
+		return capacity;
+	}
+
+	public boolean isEmpty() {
+		for(int ordinal = 0; ordinal < capacity; ordinal++) {
+			if(containsOrdinal(ordinal))
+				return false;
+		}
+		return true;
+	}
+
+	public synchronized void put(StreetSegment segment) {
+		int ordinal = getOrdinal(segment.id);
+		if(ordinal < 0)
+			throw new IllegalArgumentException("Segment id " + segment.id + " has no ordinal");
+
+		ensureCapacity(ordinal);
+
+		streetTypes.buffer.put(ordinal, (byte)segment.streetType);
+		lengths.buffer.putDouble(ordinal * 8, segment.length);
+		startNodeIds.buffer.putLong(ordinal * 8, segment.startNodeId);
+		endNodeIds.buffer.putLong(ordinal * 8, segment.endNodeId);
+
+		// written last so a concurrent reader never sees a present flag before the values
+		flags.buffer.put(ordinal, (byte)(FLAG_PRESENT | (segment.oneway ? FLAG_ONEWAY : 0)));
+	}
+
+	public synchronized void remove(long segmentId) {
+		int ordinal = getOrdinal(segmentId);
+		if(ordinal >= 0 && ordinal < capacity)
+			flags.buffer.put(ordinal, (byte)0);
+	}
+
+	public boolean contains(long segmentId) {
+		return containsOrdinal(getOrdinal(segmentId));
+	}
+
+	public boolean containsOrdinal(int ordinal) {
+		return ordinal >= 0 && ordinal < capacity && (flags.buffer.get(ordinal) & FLAG_PRESENT) != 0;
+	}
+
+	public int getStreetType(long segmentId) {
+		return getStreetTypeByOrdinal(getOrdinal(segmentId));
+	}
+
+	public int getStreetTypeByOrdinal(int ordinal) {
+		return streetTypes.buffer.get(ordinal);
+	}
+
+	public boolean isOneway(long segmentId) {
+		return isOnewayByOrdinal(getOrdinal(segmentId));
+	}
+
+	public boolean isOnewayByOrdinal(int ordinal) {
+		return (flags.buffer.get(ordinal) & FLAG_ONEWAY) != 0;
+	}
+
+	public double getLength(long segmentId) {
+		return getLengthByOrdinal(getOrdinal(segmentId));
+	}
+
+	public double getLengthByOrdinal(int ordinal) {
+		return lengths.buffer.getDouble(ordinal * 8);
+	}
+
+	public long getStartNodeId(long segmentId) {
+		return getStartNodeIdByOrdinal(getOrdinal(segmentId));
+	}
+
+	public long getStartNodeIdByOrdinal(int ordinal) {
+		return startNodeIds.buffer.getLong(ordinal * 8);
+	}
+
+	public long getEndNodeId(long segmentId) {
+		return getEndNodeIdByOrdinal(getOrdinal(segmentId));
+	}
+
+	public long getEndNodeIdByOrdinal(int ordinal) {
+		return endNodeIds.buffer.getLong(ordinal * 8);
+	}
+
+	/**
+	 * Records the OSMArea a segment was loaded with, 0 means unknown.
+	 */
+	public synchronized void setAreaId(long segmentId, long areaId) {
+		int ordinal = getOrdinal(segmentId);
+		if(ordinal < 0 || ordinal >= capacity)
+			throw new IllegalArgumentException("Segment id " + segmentId + " is not stored");
+
+		areaIds.buffer.putLong(ordinal * 8, areaId);
+	}
+
+	public long getAreaId(long segmentId) {
+		return getAreaIdByOrdinal(getOrdinal(segmentId));
+	}
+
+	public long getAreaIdByOrdinal(int ordinal) {
+		return areaIds.buffer.getLong(ordinal * 8);
+	}
+
+	/**
+	 * Writes dirty pages back to the column files.
+	 */
+	public synchronized void flush() {
+		flags.buffer.force();
+		streetTypes.buffer.force();
+		lengths.buffer.force();
+		startNodeIds.buffer.force();
+		endNodeIds.buffer.force();
+		areaIds.buffer.force();
+	}
+
+	private void ensureCapacity(int ordinal) {
+		if(ordinal < capacity)
+			return;
+
+		int newCapacity = ((ordinal / GROWTH_SEGMENTS) + 1) * GROWTH_SEGMENTS;
+
+		flags.map(newCapacity);
+		streetTypes.map(newCapacity);
+		lengths.map(newCapacity);
+		startNodeIds.map(newCapacity);
+		endNodeIds.map(newCapacity);
+		areaIds.map(newCapacity);
+
+		capacity = newCapacity;
+	}
+
+	/**
+	 * A single fixed-width column backed by a memory-mapped file. Growing remaps the file, readers holding the old
+	 * buffer still see the same pages.
+	 */
+	private static class Column {
+
+		final int width;
+		final FileChannel channel;
+		volatile MappedByteBuffer buffer;
+
+		Column(File file, int width) {
+			this.width = width;
+
+			try {
+				channel = new RandomAccessFile(file, "rw").getChannel();
+				map((int)(channel.size() / width));
+			}
+			catch (IOException e) {
+				log.log(Level.SEVERE, "Unable to open column " + file.getAbsolutePath());
+				throw new RuntimeException(e);
+			}
+		}
+
+		int capacity() {
+			return buffer.capacity() / width;
+		}
+
+		void map(int segments) {
+			try {
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long)segments * width);
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
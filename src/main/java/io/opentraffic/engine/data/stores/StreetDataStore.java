@@ -8,15 +8,21 @@ import org.mapdb.Fun.Tuple3;
 
 import java.io.File;
 import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 
 public class StreetDataStore extends SpatialDataStore {
 
+	private static final Logger log = Logger.getLogger( StreetDataStore.class.getName());
+
 	public Map<Tuple3<Long, Long, Long>, Long> segmentIndex;
-	public Map<Long, Integer> segmentTypeMap;
 
-	public StreetDataStore(File directory, String dataFile, Serializer serializer, Integer cacheSize) {
-		super(directory, dataFile, serializer, cacheSize);
+	// type, oneway, length and node ids by segment ordinal, kept alongside the MapDB segments
+	public StreetAttributeStore attributes;
+
+	public StreetDataStore(File directory, String dataFile, Serializer serializer, Integer cacheSize, long itemCacheWeight) {
+		super(directory, dataFile, serializer, cacheSize, itemCacheWeight);
 
 
 		BTreeMapMaker idMapMaker = db.createTreeMap(dataFile + "_segmentIndex")
@@ -25,11 +31,16 @@ public class StreetDataStore extends SpatialDataStore {
 
 		segmentIndex = idMapMaker.makeOrGet();
 
-		BTreeMapMaker segmentTypeMapMaker = db.createTreeMap(dataFile + "_segmentTypeIndex")
-				.valueSerializer(Serializer.INTEGER)
-				.keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG);
+		attributes = new StreetAttributeStore(directory, dataFile);
 
-		segmentTypeMap = segmentTypeMapMaker.makeOrGet();
+		// stores written before the attribute columns existed are backfilled once
+		if(attributes.isEmpty() && !map.isEmpty()) {
+			log.log(Level.INFO, "Building street attribute columns for " + map.size() + " segments");
+			for(SpatialDataItem segment : map.values()) {
+				attributes.put((StreetSegment)segment);
+			}
+			attributes.flush();
+		}
 	}
 	
 	public void save(SpatialDataItem obj) {
@@ -38,22 +49,46 @@ public class StreetDataStore extends SpatialDataStore {
 			return;
 
 		segmentIndex.put(segmentId, obj.id);
+		attributes.put((StreetSegment)obj);
 
 		super.save(obj);
 
 	}
 
 	public int getSegmentTypeById(long id) {
-		if(!segmentTypeMap.containsKey(id)) {
-			StreetSegment segment = (StreetSegment)map.get(id);
-			segmentTypeMap.put(id, segment.streetType);
-		}
+		if(attributes.contains(id))
+			return attributes.getStreetType(id);
+
+		StreetSegment segment = (StreetSegment)getById(id);
+		return segment != null ? segment.streetType : StreetSegment.TYPE_NON_ROADWAY;
+	}
+
+	public boolean isOnewayById(long id) {
+		if(attributes.contains(id))
+			return attributes.isOneway(id);
 
-		return segmentTypeMap.get(id);
+		StreetSegment segment = (StreetSegment)getById(id);
+		return segment != null && segment.oneway;
+	}
+
+	public double getLengthById(long id) {
+		if(attributes.contains(id))
+			return attributes.getLength(id);
+
+		StreetSegment segment = (StreetSegment)getById(id);
+		return segment != null ? segment.length : Double.NaN;
 	}
 
 	@Override
 	public void save(List<SpatialDataItem> objs) {
+		saveSegments(objs);
+	}
+
+	/**
+	 * Saves the segments whose way and node ids aren't already stored and returns them. The rest, built again by an
+	 * overlapping area load, are skipped and their ids never get an attribute row.
+	 */
+	public List<SpatialDataItem> saveSegments(List<SpatialDataItem> objs) {
 
 		List<SpatialDataItem> segments = new ArrayList<SpatialDataItem>();
 		for(SpatialDataItem obj : objs) {
@@ -65,9 +100,13 @@ public class StreetDataStore extends SpatialDataStore {
 			segments.add(obj);
 
 			segmentIndex.put(segmentId, obj.id);
+			attributes.put((StreetSegment)obj);
 		}
 
 		super.save(segments);
+		attributes.flush();
+
+		return segments;
 	}
 
 	@Override
@@ -82,6 +121,7 @@ public class StreetDataStore extends SpatialDataStore {
 			segments.add(obj);
 
 			segmentIndex.remove(segmentId);
+			attributes.remove(obj.id);
 		}
 
 		super.delete(segments);
@@ -91,6 +131,7 @@ public class StreetDataStore extends SpatialDataStore {
 	public void delete(SpatialDataItem obj) {
 		Tuple3 segmentId = ((StreetSegment)obj).getSegmentId();
 		segmentIndex.remove(segmentId);
+		attributes.remove(obj.id);
 
 		super.delete(obj);
 	}
@@ -98,7 +139,7 @@ public class StreetDataStore extends SpatialDataStore {
 	public SpatialDataItem getBySegmentId(Tuple3<Long, Long, Long> segmentId) {
 		if(!segmentIndex.containsKey(segmentId))
 			return null;
-		return map.get(segmentIndex.get(segmentId));
+		return getById(segmentIndex.get(segmentId));
 	}
 
 	public boolean contains(Tuple3<Long, Long, Long> segmentId) {
@@ -0,0 +1,194 @@
+package io.opentraffic.engine.data.stores;
+
+import com.carrotsearch.hppc.LongSet;
+import com.carrotsearch.hppc.cursors.LongCursor;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.opentraffic.engine.data.stats.SummaryStatistics;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Multi-segment summary results, keyed by the sorted segment ids, normalize flag, weeks and hours of the query. A
+ * reverse index from segment to cached results lets a commit drop exactly the results that include an updated
+ * (segment, week), or any week of the segment for all-time results. The cached summary itself is never handed out,
+ * callers get copies they're free to modify. Its deviations are computed before it's stored, so it's never
+ * written again and copies can be taken concurrently.
+ *
+ * Each result is registered in the index before it is computed, so a commit landing during the computation finds
+ * it and waits for it to be stored before removing it, and a stale summary is never left behind.
+ */
+class SummaryStatisticsCache implements StatsUpdateListener {
+
+	// index and key overhead per segment of a cached result
+	static final int SEGMENT_WEIGHT = 64;
+
+	final Cache<Query, Result> cache;
+
+	// cached results by the segments they include
+	final ConcurrentHashMap<Long, Set<Result>> segmentResults = new ConcurrentHashMap<>();
+
+	/**
+	 * Cache maintenance and removal run on the given executor rather than the common pool.
+	 */
+	SummaryStatisticsCache(long maxWeight, Executor executor) {
+		cache = Caffeine.newBuilder()
+				.executor(executor)
+				.maximumWeight(maxWeight)
+				.weigher((Query query, Result result) -> result.getWeight())
+				.removalListener(notification -> unregister(notification.getValue()))
+				.recordStats()
+				.build();
+	}
+
+	SummaryStatistics get(Set<Long> segmentIds, boolean normalize, Set<Integer> weeks, Set<Integer> hours, Supplier<SummaryStatistics> loader) {
+		Query query = new Query(segmentIds, normalize, weeks, hours);
+
+		return cache.get(query, key -> {
+			Result result = new Result(key);
+			register(result);
+			try {
+				SummaryStatistics summaryStatistics = loader.get();
+
+				// fills the lazily computed caches
+				summaryStatistics.getStdDev();
+				summaryStatistics.getHourlyStdDevs();
+
+				result.summaryStatistics = summaryStatistics;
+			}
+			catch (RuntimeException e) {
+				unregister(result);
+				throw e;
+			}
+			return result;
+		}).summaryStatistics.copy();
+	}
+
+	@Override
+	public void statsUpdated(LongSet updatedStatsKeys) {
+		for(LongCursor cursor : updatedStatsKeys) {
+			Set<Result> results = segmentResults.get(StatsDataStore.getSegmentIdFromStatsKey(cursor.value));
+			if(results == null)
+				continue;
+
+			int week = StatsDataStore.getWeekFromStatsKey(cursor.value);
+			for(Result result : results) {
+				if(result.query.includesWeek(week))
+					cache.asMap().remove(result.query, result);
+			}
+		}
+	}
+
+	void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	String getCacheStatistics() {
+		CacheStats stats = cache.stats();
+		return "summary cache: hits=" + stats.hitCount() + " misses=" + stats.missCount()
+				+ " hitRate=" + String.format("%.3f", stats.hitRate())
+				+ " evictions=" + stats.evictionCount()
+				+ " size=" + cache.estimatedSize();
+	}
+
+	private void register(Result result) {
+		for(long segmentId : result.query.segmentIds) {
+			segmentResults.compute(segmentId, (key, results) -> {
+				if(results == null)
+					results = ConcurrentHashMap.newKeySet();
+				results.add(result);
+				return results;
+			});
+		}
+	}
+
+	private void unregister(Result result) {
+		for(long segmentId : result.query.segmentIds) {
+			segmentResults.computeIfPresent(segmentId, (key, results) -> {
+				results.remove(result);
+				return results.isEmpty() ? null : results;
+			});
+		}
+	}
+
+	/**
+	 * Canonical form of a query, ids and filters are sorted and an empty filter is the same as none.
+	 */
+	static class Query {
+
+		final long[] segmentIds;
+		final boolean normalize;
+		final int[] weeks;
+		final int[] hours;
+		final int hashCode;
+
+		Query(Set<Long> segmentIds, boolean normalize, Set<Integer> weeks, Set<Integer> hours) {
+			this.segmentIds = segmentIds.stream().mapToLong(Long::longValue).sorted().toArray();
+			this.normalize = normalize;
+			this.weeks = toSortedArray(weeks);
+			this.hours = toSortedArray(hours);
+
+			int hash = Arrays.hashCode(this.segmentIds);
+			hash = 31 * hash + Boolean.hashCode(normalize);
+			hash = 31 * hash + Arrays.hashCode(this.weeks);
+			hash = 31 * hash + Arrays.hashCode(this.hours);
+			this.hashCode = hash;
+		}
+
+		/**
+		 * All-time results come from the cumulative records, which every week updates.
+		 */
+		boolean includesWeek(int week) {
+			return weeks.length == 0 || Arrays.binarySearch(weeks, week) >= 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(this == o)
+				return true;
+			if(!(o instanceof Query))
+				return false;
+
+			Query query = (Query)o;
+			return hashCode == query.hashCode && normalize == query.normalize && Arrays.equals(segmentIds, query.segmentIds)
+					&& Arrays.equals(weeks, query.weeks) && Arrays.equals(hours, query.hours);
+		}
+
+		private static int[] toSortedArray(Set<Integer> values) {
+			if(values == null)
+				return new int[0];
+
+			return values.stream().mapToInt(Integer::intValue).sorted().toArray();
+		}
+	}
+
+	/**
+	 * A cached summary, compared by identity so a result removed from the index is never confused with a newer one
+	 * for the same query.
+	 */
+	static class Result {
+
+		final Query query;
+		volatile SummaryStatistics summaryStatistics;
+
+		Result(Query query) {
+			this.query = query;
+		}
+
+		int getWeight() {
+			long weight = summaryStatistics.getSizeInBytes() + ((long)SEGMENT_WEIGHT * query.segmentIds.length)
+					+ (4 * (query.weeks.length + query.hours.length));
+			return (int)Math.min(Integer.MAX_VALUE, weight);
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package io.opentraffic.engine.data.tiles;
+
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongSet;
+import com.carrotsearch.hppc.cursors.LongCursor;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import io.opentraffic.engine.data.stats.SummaryStatistics;
+import io.opentraffic.engine.data.stores.SpatialDataStore;
+import io.opentraffic.engine.data.stores.StatsDataStore;
+import io.opentraffic.engine.data.stores.StatsUpdateListener;
+import io.opentraffic.engine.osm.OSMDataStore;
+import org.mapdb.Fun;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encoded street segment vector tiles, keyed by z/x/y. A tile is dropped from the cache as soon as a stats commit
+ * touches any of the segments it was rendered from, so cached tiles always carry current speeds. Tiles are indexed
+ * by segment, so a commit only looks at the tiles of the segments it updated.
+ */
+public class VectorTileCache implements StatsUpdateListener {
+
+	public static final String LAYER_NAME = "segments";
+
+	// below this zoom a tile covers too many segments to render on request, an empty tile is returned
+	public static final int MIN_TILE_Z = 12;
+	public static final int MAX_TILE_Z = 22;
+
+	// max bytes of encoded tiles (plus their segment index entries) held in memory
+	public static final long MAX_CACHE_WEIGHT = 128 * 1024 * 1024;
+
+	// index and id overhead per segment of a cached tile
+	static final int SEGMENT_WEIGHT = 64;
+
+	final OSMDataStore osmData;
+
+	LoadingCache<Fun.Tuple3<Integer, Integer, Integer>, RenderedTile> tileCache;
+
+	// cached tiles by the segments rendered into them
+	final ConcurrentHashMap<Long, Set<RenderedTile>> segmentTiles = new ConcurrentHashMap<>();
+
+	public VectorTileCache(OSMDataStore osmData) {
+		this.osmData = osmData;
+
+		tileCache = Caffeine.newBuilder()
+				.maximumWeight(MAX_CACHE_WEIGHT)
+				.weigher((Fun.Tuple3<Integer, Integer, Integer> key, RenderedTile tile) -> tile.getWeight())
+				.removalListener(notification -> unregister(notification.getValue()))
+				.recordStats()
+				.build(this::renderTile);
+	}
+
+	public byte[] getTile(int z, int x, int y) {
+		return tileCache.get(new Fun.Tuple3<>(z, x, y)).data;
+	}
+
+	@Override
+	public void statsUpdated(LongSet updatedStatsKeys) {
+		for(LongCursor cursor : updatedStatsKeys) {
+			Set<RenderedTile> tiles = segmentTiles.get(StatsDataStore.getSegmentIdFromStatsKey(cursor.value));
+			if(tiles == null)
+				continue;
+
+			for(RenderedTile tile : tiles) {
+				tileCache.asMap().remove(tile.key, tile);
+			}
+		}
+	}
+
+	public String getCacheStatistics() {
+		CacheStats stats = tileCache.stats();
+		return "vector tile cache: hits=" + stats.hitCount() + " misses=" + stats.missCount()
+				+ " hitRate=" + String.format("%.3f", stats.hitRate())
+				+ " evictions=" + stats.evictionCount()
+				+ " size=" + tileCache.estimatedSize();
+	}
+
+	/**
+	 * Segments are indexed as they're found, before their stats are read, so a commit during rendering drops the
+	 * new tile rather than leaving it with old speeds.
+	 */
+	private RenderedTile renderTile(Fun.Tuple3<Integer, Integer, Integer> key) {
+		int z = key.a, x = key.b, y = key.c;
+
+		RenderedTile tile = new RenderedTile(key);
+		VectorTileEncoder encoder = new VectorTileEncoder(z, x, y, LAYER_NAME);
+		LongArrayList segmentIds = new LongArrayList();
+
+		if(z >= MIN_TILE_Z && z <= MAX_TILE_Z) {
+			Envelope env = SpatialDataStore.tile2Envelope(x, y, z);
+
+			try {
+				osmData.streetSegments.streamIdsByEnvelope(env).forEach(id -> {
+					Geometry geometry = osmData.getGeometryById(id);
+					if (geometry == null || !geometry.getEnvelopeInternal().intersects(env))
+						return;
+
+					segmentIds.add(id);
+					register(id, tile);
+
+					SummaryStatistics stats = osmData.statsDataStore.collectSummaryStatistics(id, false, (Integer) null);
+
+					Map<String, Object> attributes = new LinkedHashMap<>();
+					attributes.put("type", osmData.streetSegments.getSegmentTypeById(id));
+					attributes.put("samples", (long) stats.count);
+					if (stats.count > 0)
+						attributes.put("speed", (float) (stats.getMean() * 3.6)); // km/h
+
+					encoder.addLineFeature(id, geometry, attributes);
+				});
+			}
+			catch (RuntimeException e) {
+				tile.segmentIds = segmentIds.toArray();
+				unregister(tile);
+				throw e;
+			}
+		}
+
+		tile.segmentIds = segmentIds.toArray();
+		tile.data = encoder.encode();
+
+		return tile;
+	}
+
+	private void register(long segmentId, RenderedTile tile) {
+		segmentTiles.compute(segmentId, (key, tiles) -> {
+			if(tiles == null)
+				tiles = ConcurrentHashMap.newKeySet();
+			tiles.add(tile);
+			return tiles;
+		});
+	}
+
+	private void unregister(RenderedTile tile) {
+		for(long segmentId : tile.segmentIds) {
+			segmentTiles.computeIfPresent(segmentId, (key, tiles) -> {
+				tiles.remove(tile);
+				return tiles.isEmpty() ? null : tiles;
+			});
+		}
+	}
+
+	/**
+	 * A cached tile, compared by identity so a tile removed from the index is never confused with a newer render of
+	 * the same z/x/y.
+	 */
+	static class RenderedTile {
+
+		final Fun.Tuple3<Integer, Integer, Integer> key;
+
+		// every segment indexed for the tile, including ones too short to draw at this zoom
+		volatile long[] segmentIds = new long[0];
+		volatile byte[] data;
+
+		RenderedTile(Fun.Tuple3<Integer, Integer, Integer> key) {
+			this.key = key;
+		}
+
+		int getWeight() {
+			return data.length + (segmentIds.length * SEGMENT_WEIGHT);
+		}
+	}
+}
@@ -0,0 +1,258 @@
+package io.opentraffic.engine.data.tiles;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.cursors.IntCursor;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Writes a single layer of line features as a Mapbox Vector Tile (spec version 2). Only what the engine needs is
+ * implemented: LineString geometries and string/numeric/boolean attributes. Coordinates are projected to spherical
+ * mercator tile space and not clipped, renderers clip to the tile buffer themselves.
+ */
+public class VectorTileEncoder {
+
+	public static final int EXTENT = 4096;
+
+	private static final int MVT_VERSION = 2;
+
+	// vector_tile.proto field numbers
+	private static final int TILE_LAYERS = 3;
+
+	private static final int LAYER_NAME = 1;
+	private static final int LAYER_FEATURES = 2;
+	private static final int LAYER_KEYS = 3;
+	private static final int LAYER_VALUES = 4;
+	private static final int LAYER_EXTENT = 5;
+	private static final int LAYER_VERSION = 15;
+
+	private static final int FEATURE_ID = 1;
+	private static final int FEATURE_TAGS = 2;
+	private static final int FEATURE_TYPE = 3;
+	private static final int FEATURE_GEOMETRY = 4;
+
+	private static final int VALUE_STRING = 1;
+	private static final int VALUE_FLOAT = 2;
+	private static final int VALUE_DOUBLE = 3;
+	private static final int VALUE_SINT = 6;
+	private static final int VALUE_BOOL = 7;
+
+	private static final int GEOM_TYPE_LINESTRING = 2;
+
+	private static final int COMMAND_MOVE_TO = 1;
+	private static final int COMMAND_LINE_TO = 2;
+
+	final int tileX, tileY;
+	final double scale;
+	final String layerName;
+
+	List<String> keys = new ArrayList<>();
+	Map<String, Integer> keyIndex = new HashMap<>();
+	List<Object> values = new ArrayList<>();
+	Map<Object, Integer> valueIndex = new HashMap<>();
+
+	List<byte[]> features = new ArrayList<>();
+
+	public VectorTileEncoder(int z, int x, int y, String layerName) {
+		this.tileX = x;
+		this.tileY = y;
+		this.scale = 1 << z;
+		this.layerName = layerName;
+	}
+
+	public int getFeatureCount() {
+		return features.size();
+	}
+
+	/**
+	 * Adds a line feature. Returns false if the line collapses to a single point at this zoom and was skipped.
+	 */
+	public boolean addLineFeature(long id, Geometry geometry, Map<String, Object> attributes) {
+
+		IntArrayList geometryCommands = encodeLine(geometry.getCoordinates());
+		if(geometryCommands == null)
+			return false;
+
+		IntArrayList tags = new IntArrayList();
+		for(Map.Entry<String, Object> attribute : attributes.entrySet()) {
+			if(attribute.getValue() == null)
+				continue;
+
+			tags.add(getKeyIndex(attribute.getKey()));
+			tags.add(getValueIndex(attribute.getValue()));
+		}
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+
+			out.writeUInt64(FEATURE_ID, id);
+			writePacked(out, FEATURE_TAGS, tags);
+			out.writeEnum(FEATURE_TYPE, GEOM_TYPE_LINESTRING);
+			writePacked(out, FEATURE_GEOMETRY, geometryCommands);
+			out.flush();
+
+			features.add(bytes.toByteArray());
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		return true;
+	}
+
+	public byte[] encode() {
+		try {
+			ByteArrayOutputStream layerBytes = new ByteArrayOutputStream();
+			CodedOutputStream layer = CodedOutputStream.newInstance(layerBytes);
+
+			layer.writeUInt32(LAYER_VERSION, MVT_VERSION);
+			layer.writeString(LAYER_NAME, layerName);
+
+			for(byte[] feature : features) {
+				layer.writeByteArray(LAYER_FEATURES, feature);
+			}
+
+			for(String key : keys) {
+				layer.writeString(LAYER_KEYS, key);
+			}
+
+			for(Object value : values) {
+				layer.writeByteArray(LAYER_VALUES, encodeValue(value));
+			}
+
+			layer.writeUInt32(LAYER_EXTENT, EXTENT);
+			layer.flush();
+
+			ByteArrayOutputStream tileBytes = new ByteArrayOutputStream();
+			CodedOutputStream tile = CodedOutputStream.newInstance(tileBytes);
+			tile.writeByteArray(TILE_LAYERS, layerBytes.toByteArray());
+			tile.flush();
+
+			return tileBytes.toByteArray();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private IntArrayList encodeLine(Coordinate[] coords) {
+
+		IntArrayList commands = new IntArrayList();
+
+		int lastX = 0, lastY = 0;
+		int lineToCount = 0;
+		int lineToCommandIndex = -1;
+
+		for(Coordinate coord : coords) {
+			int x = projectX(coord.x);
+			int y = projectY(coord.y);
+
+			if(lineToCommandIndex < 0) {
+				commands.add(command(COMMAND_MOVE_TO, 1));
+				commands.add(zigZag(x), zigZag(y));
+				// LineTo placeholder, the count is filled in once all vertices are written
+				commands.add(0);
+				lineToCommandIndex = commands.size() - 1;
+			}
+			else {
+				// vertices that land on the same pixel are dropped
+				if(x == lastX && y == lastY)
+					continue;
+
+				commands.add(zigZag(x - lastX), zigZag(y - lastY));
+				lineToCount++;
+			}
+
+			lastX = x;
+			lastY = y;
+		}
+
+		if(lineToCount == 0)
+			return null;
+
+		commands.set(lineToCommandIndex, command(COMMAND_LINE_TO, lineToCount));
+
+		return commands;
+	}
+
+	private int projectX(double lon) {
+		double x = (lon + 180) / 360 * scale;
+		return (int)Math.round((x - tileX) * EXTENT);
+	}
+
+	private int projectY(double lat) {
+		double latRad = Math.toRadians(lat);
+		double y = (1 - Math.log(Math.tan(latRad) + 1 / Math.cos(latRad)) / Math.PI) / 2 * scale;
+		return (int)Math.round((y - tileY) * EXTENT);
+	}
+
+	private int getKeyIndex(String key) {
+		Integer index = keyIndex.get(key);
+		if(index == null) {
+			index = keys.size();
+			keys.add(key);
+			keyIndex.put(key, index);
+		}
+		return index;
+	}
+
+	private int getValueIndex(Object value) {
+		Integer index = valueIndex.get(value);
+		if(index == null) {
+			index = values.size();
+			values.add(value);
+			valueIndex.put(value, index);
+		}
+		return index;
+	}
+
+	private static byte[] encodeValue(Object value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+
+		if(value instanceof Boolean)
+			out.writeBool(VALUE_BOOL, (Boolean)value);
+		else if(value instanceof Float)
+			out.writeFloat(VALUE_FLOAT, (Float)value);
+		else if(value instanceof Double)
+			out.writeDouble(VALUE_DOUBLE, (Double)value);
+		else if(value instanceof Number)
+			out.writeSInt64(VALUE_SINT, ((Number)value).longValue());
+		else
+			out.writeString(VALUE_STRING, value.toString());
+
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void writePacked(CodedOutputStream out, int field, IntArrayList values) throws IOException {
+		if(values.isEmpty())
+			return;
+
+		int size = 0;
+		for(IntCursor cursor : values) {
+			size += CodedOutputStream.computeUInt32SizeNoTag(cursor.value);
+		}
+
+		out.writeTag(field, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+		out.writeRawVarint32(size);
+		for(IntCursor cursor : values) {
+			out.writeUInt32NoTag(cursor.value);
+		}
+	}
+
+	private static int command(int id, int count) {
+		return (id & 0x7) | (count << 3);
+	}
+
+	private static int zigZag(int n) {
+		return (n << 1) ^ (n >> 31);
+	}
+}
@@ -33,6 +33,13 @@ public class Jumper {
         this.length = streetSegment.length;
     }
 
+    public Jumper(long startNodeId, long endNodeId, double length, Long segments[]) {
+        this.startNodeId = startNodeId;
+        this.endNodeId = endNodeId;
+        this.length = length;
+        this.segments = segments;
+    }
+
     public Fun.Tuple2<Long, Long> getStartEndTuple() {
         return new Fun.Tuple2<>(startNodeId, endNodeId);
 
@@ -43,11 +50,23 @@ public class Jumper {
 
     }
 
+    /**
+     * Speed (m/s) across a jumper of the given length, plus the margins of the segments on either side, between two
+     * crossing times in ms. NaN unless endTime is after startTime.
+     */
+    public static double getSpeed(double length, long startTime, long endTime) {
+        if(endTime <= startTime)
+            return Double.NaN;
+
+        return (length + (OSMDataStore.MIN_SEGMENT_LEN * 2)) / ((endTime - startTime) / 1000.0);
+    }
+
     public List<SpeedSample> getSpeedSamples(long startTime, long endTime) {
         ArrayList<SpeedSample> speedSamples = new ArrayList<>();
 
-        double speed = (this.length + (OSMDataStore.MIN_SEGMENT_LEN * 2))
-                / ((endTime - startTime) / 1000); // m/s
+        double speed = getSpeed(this.length, startTime, endTime);
+        if(Double.isNaN(speed))
+            return speedSamples;
 
         for(long segment : segments) {
             speedSamples.add(new SpeedSample(endTime, speed, segment));
@@ -57,6 +57,19 @@ public class StreetSegment extends SpatialDataItem {
 		this.length = length;
 	}
 
+	public StreetSegment(long id, int streetType, boolean oneway, long wayId,long startNodeId, long endNodeId, double lons[], double lats[], double length) {
+		super(id, lons, lats);
+
+		this.streetType = streetType;
+		this.oneway = oneway;
+
+		this.wayId = wayId;
+		this.startNodeId = startNodeId;
+		this.endNodeId = endNodeId;
+
+		this.length = length;
+	}
+
 	public boolean disjoint(StreetSegment segment) {
 		if(segment.endNodeId == this.startNodeId || this.endNodeId == segment.startNodeId)
 			return false;
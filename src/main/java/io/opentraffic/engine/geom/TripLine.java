@@ -18,6 +18,15 @@ public class TripLine extends SpatialDataItem {
 		this.segmentId = segmentId;
 	}
 
+	public TripLine(long id, double lons[], double lats[], long segmentId, int tripLineIndex, double dist) {
+		super(id, lons, lats);
+
+		this.tripLineIndex = tripLineIndex;
+		this.dist = dist;
+
+		this.segmentId = segmentId;
+	}
+
 
 	public String toString() {
 		return "tl_" + segmentId + "-" + tripLineIndex;
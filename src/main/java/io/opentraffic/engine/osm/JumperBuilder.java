@@ -0,0 +1,158 @@
+package io.opentraffic.engine.osm;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntHashSet;
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.cursors.IntCursor;
+import com.carrotsearch.hppc.cursors.LongCursor;
+import io.opentraffic.engine.data.stores.StreetAttributeStore;
+import io.opentraffic.engine.geom.Jumper;
+import org.mapdb.Fun;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds jumpers for newly loaded short segments in a single pass over the road graph. A jumper covers a chain of
+ * segments too short to carry triplines, running from the end of a tripline-bearing segment to the start of the
+ * next one, so a vehicle crossing the gap still produces samples for every segment in it.
+ */
+public class JumperBuilder {
+
+	// longest chain of short segments joined into one jumper
+	public static final int MAX_JUMPER_SEGMENTS = 8;
+
+	final RoadGraph.Topology topology;
+	final StreetAttributeStore attributes;
+
+	// best (shortest) jumper found so far for each start/end node pair
+	final Map<Fun.Tuple2<Long, Long>, Jumper> jumpers = new HashMap<>();
+
+	public JumperBuilder(RoadGraph.Topology topology, StreetAttributeStore attributes) {
+		this.topology = topology;
+		this.attributes = attributes;
+	}
+
+	/**
+	 * Returns a single-segment jumper for each new short segment plus a jumper for every chain of short segments
+	 * between tripline-bearing segments that passes through one of them.
+	 */
+	public List<Jumper> build(LongArrayList newShortSegmentIds) {
+
+		IntHashSet chainStarts = new IntHashSet();
+
+		for(LongCursor cursor : newShortSegmentIds) {
+			int ordinal = StreetAttributeStore.getOrdinal(cursor.value);
+			if(topology.getSegmentTail(ordinal) < 0)
+				continue;
+
+			addJumper(new int[] {ordinal}, 1);
+			findChainStarts(topology.getSegmentTail(ordinal), chainStarts);
+		}
+
+		int[] path = new int[MAX_JUMPER_SEGMENTS];
+		boolean[] visited = new boolean[topology.getNodeCount()];
+
+		for(IntCursor cursor : chainStarts) {
+			visited[cursor.value] = true;
+			followChains(cursor.value, path, 0, visited);
+			visited[cursor.value] = false;
+		}
+
+		return new ArrayList<>(jumpers.values());
+	}
+
+	boolean isShort(int ordinal) {
+		return attributes.getLengthByOrdinal(ordinal) <= OSMDataStore.MIN_SEGMENT_LEN;
+	}
+
+	/**
+	 * Walks backwards through short segments from a node and collects every node where a tripline-bearing segment
+	 * ends, since chains through the new segment can only start there.
+	 */
+	private void findChainStarts(int node, IntHashSet chainStarts) {
+
+		IntArrayList frontier = new IntArrayList();
+		IntHashSet visited = new IntHashSet();
+
+		frontier.add(node);
+		visited.add(node);
+
+		for(int depth = 0; depth < MAX_JUMPER_SEGMENTS && !frontier.isEmpty(); depth++) {
+			IntArrayList nextFrontier = new IntArrayList();
+
+			for(IntCursor cursor : frontier) {
+				for(int edge = topology.firstInEdge(cursor.value); edge < topology.lastInEdge(cursor.value); edge++) {
+					int ordinal = topology.getInSegment(edge);
+
+					if(!isShort(ordinal)) {
+						chainStarts.add(cursor.value);
+						continue;
+					}
+
+					int tail = topology.getSegmentTail(ordinal);
+					if(visited.add(tail))
+						nextFrontier.add(tail);
+				}
+			}
+
+			frontier = nextFrontier;
+		}
+	}
+
+	/**
+	 * Depth-first walk along simple paths of short segments, emitting a jumper wherever the path reaches the start
+	 * of a tripline-bearing segment.
+	 */
+	private void followChains(int node, int[] path, int depth, boolean[] visited) {
+
+		if(depth > 1 && hasTriplineSegment(node))
+			addJumper(path, depth);
+
+		if(depth == MAX_JUMPER_SEGMENTS)
+			return;
+
+		for(int edge = topology.firstOutEdge(node); edge < topology.lastOutEdge(node); edge++) {
+			int ordinal = topology.getOutSegment(edge);
+			int head = topology.getSegmentHead(ordinal);
+
+			if(!isShort(ordinal) || visited[head])
+				continue;
+
+			path[depth] = ordinal;
+			visited[head] = true;
+			followChains(head, path, depth + 1, visited);
+			visited[head] = false;
+		}
+	}
+
+	private boolean hasTriplineSegment(int node) {
+		for(int edge = topology.firstOutEdge(node); edge < topology.lastOutEdge(node); edge++) {
+			if(!isShort(topology.getOutSegment(edge)))
+				return true;
+		}
+		return false;
+	}
+
+	private void addJumper(int[] path, int length) {
+
+		Long[] segments = new Long[length];
+		double jumperLength = 0;
+
+		for(int i = 0; i < length; i++) {
+			segments[i] = StreetAttributeStore.getSegmentId(path[i]);
+			jumperLength += attributes.getLengthByOrdinal(path[i]);
+		}
+
+		long startNodeId = topology.getNodeId(topology.getSegmentTail(path[0]));
+		long endNodeId = topology.getNodeId(topology.getSegmentHead(path[length - 1]));
+
+		Fun.Tuple2<Long, Long> key = new Fun.Tuple2<>(startNodeId, endNodeId);
+		Jumper existing = jumpers.get(key);
+
+		if(existing == null || existing.length > jumperLength)
+			jumpers.put(key, new Jumper(startNodeId, endNodeId, jumperLength, segments));
+	}
+}
@@ -8,15 +8,24 @@ import java.util.*;
 import java.util.Map.Entry;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongHashSet;
+import com.carrotsearch.hppc.cursors.LongCursor;
 import com.conveyal.osmlib.Node;
 import io.opentraffic.engine.data.TimeConverter;
+import io.opentraffic.engine.data.pbf.ExchangeFormat;
 import io.opentraffic.engine.data.seralizers.OffMapTraceSerializer;
 import io.opentraffic.engine.data.seralizers.StreetSegmentSerializer;
 import io.opentraffic.engine.data.seralizers.TripLineSerializer;
+import io.opentraffic.engine.data.stats.SegmentStatistics;
+import io.opentraffic.engine.data.stats.SummaryStatistics;
 import io.opentraffic.engine.data.stores.*;
-import io.opentraffic.engine.geom.Jumper;
+import io.opentraffic.engine.data.tiles.VectorTileCache;
 import io.opentraffic.engine.geom.OffMapTrace;
+import io.opentraffic.engine.routing.RoutingEngine;
+import io.opentraffic.engine.routing.SegmentSpeeds;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
 import com.google.common.io.ByteStreams;
@@ -32,6 +41,7 @@ import com.conveyal.osmlib.OSM;
 import com.conveyal.osmlib.Way;
 import io.opentraffic.engine.data.SpeedSample;
 import com.vividsolutions.jts.linearref.LengthIndexedLine;
+import org.mapdb.Atomic;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 import org.mapdb.Fun;
@@ -53,6 +63,12 @@ public class OSMDataStore {
 	// triplines would be placed out of order.
 	public static final double MIN_SEGMENT_LEN = INTERSECTION_MARGIN_METERS*3;
 
+	// Deserialized item cache budgets, in coordinates. Triplines are always two points, so their budget buys many
+	// more items than the same budget spent on street geometries.
+	public static final long STREET_CACHE_WEIGHT = 4_000_000;
+	public static final long TRIPLINE_CACHE_WEIGHT = 2_000_000;
+	public static final long OFF_MAP_TRACE_CACHE_WEIGHT = 250_000;
+
 	static GeodeticCalculator gc = new GeodeticCalculator();	
 
 	//====STREET DATA=====
@@ -63,6 +79,9 @@ public class OSMDataStore {
 	public SpatialDataStore offMapTraces;
 	public JumperDataStore jumperDataStore;
 	public StatsDataStore statsDataStore;
+	public VectorTileCache vectorTiles;
+	public RoadGraph roadGraph;
+	public RoutingEngine routingEngine;
 
 	DB db;
 	IdStore osmAreaIds, osmClusterIds;
@@ -111,11 +130,22 @@ public class OSMDataStore {
 		DB.BTreeMapMaker makerClusters = db.createTreeMap("osmClusters");
 		osmClusters = makerClusters.makeOrGet();
 
-		triplines = new SpatialDataStore(this.dataPath, "tripLines", new TripLineSerializer(), cacheSize);
-		streetSegments = new StreetDataStore(this.dataPath, "streets", new StreetSegmentSerializer(), cacheSize);
-		offMapTraces = new SpatialDataStore(this.dataPath, "offMapTraces", new OffMapTraceSerializer(), cacheSize);
-		statsDataStore = new StatsDataStore(this.dataPath);
+		triplines = new SpatialDataStore(this.dataPath, "tripLines", new TripLineSerializer(), cacheSize, TRIPLINE_CACHE_WEIGHT);
+		streetSegments = new StreetDataStore(this.dataPath, "streets", new StreetSegmentSerializer(), cacheSize, STREET_CACHE_WEIGHT);
+		offMapTraces = new SpatialDataStore(this.dataPath, "offMapTraces", new OffMapTraceSerializer(), cacheSize, OFF_MAP_TRACE_CACHE_WEIGHT);
+		// area rollups read segment areas from the attributes, so missing ones are filled in first
+		assignSegmentAreas();
+		statsDataStore = new StatsDataStore(this.dataPath, streetSegments.attributes);
 		jumperDataStore = new JumperDataStore(this.dataPath);
+		roadGraph = new RoadGraph(streetSegments.attributes);
+
+		vectorTiles = new VectorTileCache(this);
+		statsDataStore.addUpdateListener(vectorTiles);
+
+		SegmentSpeeds segmentSpeeds = new SegmentSpeeds(streetSegments.attributes, statsDataStore);
+		statsDataStore.addUpdateListener(segmentSpeeds);
+		segmentSpeeds.load();
+		routingEngine = new RoutingEngine(roadGraph, streetSegments.attributes, segmentSpeeds);
 
 		osmAreaIds = new IdStore(this.dataPath, "osmAreaIds");
 		osmClusterIds = new IdStore(this.dataPath, "osmClusterIds");
@@ -123,12 +153,13 @@ public class OSMDataStore {
 		log.log(Level.INFO, "OSM Tiles Loaded: " + osmAreas.size());
 		log.log(Level.INFO, "streetSegments: " + streetSegments.size());
 		log.log(Level.INFO, "triplines: " + triplines.size());
+		log.log(Level.INFO, "roadGraph nodes: " + roadGraph.getNodeCount());
 		log.log(Level.INFO, "statsDataStore: " + statsDataStore.size());
 	}
 
 	private Geometry createOffsetGeom(long id) {
 		SpatialDataItem segment = streetSegments.getById(id);
-		Geometry geom = streetSegments.getById(id).getGeometry();
+		Geometry geom = segment.getGeometry();
 		if(!((StreetSegment)segment).oneway) {
 			Coordinate[] offsetCoords = ocb.getOffsetCurve(geom.getCoordinates(), -0.000025);
 			geom = geometryFactory.createLineString(offsetCoords);
@@ -140,6 +171,13 @@ public class OSMDataStore {
 		return geometryCache.get(id);
 	}
 
+	/**
+	 * Mapbox Vector Tile of street segments with speed attributes, served from the rendered tile cache.
+	 */
+	public byte[] getVectorTile(int z, int x, int y) {
+		return vectorTiles.getTile(z, x, y);
+	}
+
 	public boolean isLoadingOSM() {
 		return loadingOSM;
 	}
@@ -148,8 +186,13 @@ public class OSMDataStore {
 
 		log.log(Level.INFO, "Cache Statistics");
 		log.log(Level.INFO,streetSegments.getStatistics());
+		log.log(Level.INFO,streetSegments.getCacheStatistics());
 		log.log(Level.INFO,triplines.getStatistics());
+		log.log(Level.INFO,triplines.getCacheStatistics());
+		log.log(Level.INFO,offMapTraces.getCacheStatistics());
 		log.log(Level.INFO,statsDataStore.getStatistics());
+		log.log(Level.INFO,statsDataStore.getCacheStatistics());
+		log.log(Level.INFO,vectorTiles.getCacheStatistics());
 
 	}
 
@@ -159,6 +202,64 @@ public class OSMDataStore {
 	}
 
 
+	/**
+	 * Stats for the given street types (all types when empty) across a cluster's areas, read from the area rollups
+	 * unless normalized.
+	 */
+	public SummaryStatistics collectClusterSummaryStatistics(Long clusterId, Set<Integer> streetTypes, Boolean normalize, Set<Integer> weeks, Set<Integer> hours) {
+		Set<Long> areaIds = new HashSet<>();
+
+		OSMCluster cluster = osmClusters.get(clusterId);
+		if(cluster != null) {
+			for(OSMArea area : cluster.osmAreas) {
+				areaIds.add(area.id);
+			}
+		}
+
+		return statsDataStore.collectAreaSummaryStatistics(areaIds, streetTypes, normalize, weeks, hours);
+	}
+
+	/**
+	 * Segments loaded before the area column existed are assigned to the area of the tile their start point (or end
+	 * point, when the start tile was never loaded) falls in. Runs once, a marker in the area db records that it's done.
+	 */
+	private void assignSegmentAreas() {
+		Atomic.Boolean assigned = db.getAtomicBoolean("segmentAreasAssigned");
+		if(assigned.get())
+			return;
+
+		StreetAttributeStore attributes = streetSegments.attributes;
+
+		log.log(Level.INFO, "Assigning areas to street segments");
+
+		int count = 0;
+		for(int ordinal = 0; ordinal < attributes.getOrdinalCapacity(); ordinal++) {
+			if(!attributes.containsOrdinal(ordinal) || attributes.getAreaIdByOrdinal(ordinal) != 0)
+				continue;
+
+			long segmentId = StreetAttributeStore.getSegmentId(ordinal);
+			SpatialDataItem segment = streetSegments.getById(segmentId);
+			if(segment == null || segment.lats.length == 0)
+				continue;
+
+			int last = segment.lats.length - 1;
+			OSMArea area = osmAreas.get(getOsmId(segment.lats[0], segment.lons[0]));
+			if(area == null)
+				area = osmAreas.get(getOsmId(segment.lats[last], segment.lons[last]));
+
+			if(area != null) {
+				attributes.setAreaId(segmentId, area.id);
+				count++;
+			}
+		}
+		attributes.flush();
+
+		assigned.set(true);
+		db.commit();
+
+		log.log(Level.INFO, "Assigned areas to " + count + " street segments");
+	}
+
 	public List<OSMCluster> getOSMClusters() {
 
 		if(osmAreaClusterMap.keySet().size() < osmAreas.keySet().size()) {
@@ -372,6 +473,7 @@ public class OSMDataStore {
 
 		List<SpatialDataItem> segmentItems = new ArrayList<>();
 		List<SpatialDataItem> triplineItems = new ArrayList<>();
+		LongArrayList shortSegmentIds = new LongArrayList();
 
 		for(StreetSegment segment : segments) {
 
@@ -394,7 +496,7 @@ public class OSMDataStore {
 				}
 			}
 			else {
-				jumperDataStore.addJumper(new Jumper(segment));
+				shortSegmentIds.add(segment.id);
 			}
 			
 			if(!keepCompleteGeometries)
@@ -404,14 +506,39 @@ public class OSMDataStore {
 
 		}
 
-		streetSegments.save(segmentItems);
-		jumperDataStore.save();
+		// segments built twice (way, start and end node already stored) are skipped, so only the saved ones go on
+		List<SpatialDataItem> savedSegments = streetSegments.saveSegments(segmentItems);
 
+		LongHashSet savedIds = new LongHashSet(savedSegments.size());
+		for(SpatialDataItem segment : savedSegments) {
+			savedIds.add(segment.id);
+		}
+
+		long areaId = osmAreaIds.getNextId();
+
+		for(SpatialDataItem segment : savedSegments) {
+			streetSegments.attributes.setAreaId(segment.id, areaId);
+			roadGraph.addSegment(segment.id);
+		}
+		streetSegments.attributes.flush();
+		roadGraph.build();
+
+		LongArrayList savedShortSegmentIds = new LongArrayList();
+		for(LongCursor cursor : shortSegmentIds) {
+			if(savedIds.contains(cursor.value))
+				savedShortSegmentIds.add(cursor.value);
+		}
+
+		// jumpers are found on the updated graph so chains can continue into previously loaded areas
+		JumperBuilder jumperBuilder = new JumperBuilder(roadGraph.getTopology(), streetSegments.attributes);
+		jumperDataStore.addJumpers(jumperBuilder.build(savedShortSegmentIds));
+
+		triplineItems.removeIf(tripLine -> !savedIds.contains(((TripLine)tripLine).segmentId));
 		triplines.save(triplineItems);
 
 		long zoneOffset =  timeZoneConverter.getOffsetForCoord(env.centre());
 
-		OSMArea osmArea = new OSMArea(osmAreaIds.getNextId(), tile.a, tile.b, Z_INDEX, placeName, placePop, zoneOffset, env);
+		OSMArea osmArea = new OSMArea(areaId, tile.a, tile.b, Z_INDEX, placeName, placePop, zoneOffset, env);
 
 		osmAreas.put(tile, osmArea);
 		db.commit();
@@ -423,6 +550,18 @@ public class OSMDataStore {
 		return osmArea;
 	}
 
+	/**
+	 * Removes street segments from the store and the road graph.
+	 */
+	public void deleteStreetSegments(List<SpatialDataItem> segments) {
+		streetSegments.delete(segments);
+
+		for(SpatialDataItem segment : segments) {
+			roadGraph.removeSegment(segment.id);
+		}
+		roadGraph.build();
+	}
+
 	public List<Long> getStreetSegmentIds(Envelope env) {
 		return streetSegments.getIdsByEnvelope(env);
 	}
@@ -431,6 +570,10 @@ public class OSMDataStore {
 		return streetSegments.getByEnvelope(env);
 	}
 
+	public Stream<SpatialDataItem> streamStreetSegments(Envelope env) {
+		return streetSegments.streamByEnvelope(env);
+	}
+
 	public List<SpatialDataItem> getOffMapTraces(Envelope env) {
 		return offMapTraces.getByEnvelope(env);
 	}
@@ -439,24 +582,34 @@ public class OSMDataStore {
 		return triplines.getByEnvelope(env);
 	}
 
+	public Stream<SpatialDataItem> streamTripLines(Envelope env) {
+		return triplines.streamByEnvelope(env);
+	}
+
+	/**
+	 * Writes a baseline tile with the all-time average, quartiles and hour of week values for each segment in the
+	 * envelope that has observations. Speeds are in km/h, hours without observations are NaN.
+	 */
 	public void collectStatistcs(FileOutputStream os, Envelope env) throws IOException {
 
-		/*ExchangeFormat.BaselineTile.Builder tile = ExchangeFormat.BaselineTile.newBuilder();
+		Fun.Tuple2<Integer, Integer> tileId = getOsmId(env.centre().y, env.centre().x);
+
+		ExchangeFormat.BaselineTile.Builder tile = ExchangeFormat.BaselineTile.newBuilder();
 
 		tile.setHeader(ExchangeFormat.Header.newBuilder()
 				.setCreationTimestamp(System.currentTimeMillis())
 				.setOsmCommitId(1)
-				.setTileX(1)
-				.setTileY(1)
-				.setTileZ(1));
+				.setTileX(tileId.a)
+				.setTileY(tileId.b)
+				.setTileZ(Z_INDEX));
 
 		for(SpatialDataItem sdi : getStreetSegments(env)) {
 			StreetSegment streetSegment = (StreetSegment)sdi;
 
-			SummaryStatistics baseline = statsDataStore.collectSummaryStatistics(sdi.id, null, null);
+			SummaryStatistics baseline = statsDataStore.collectSummaryStatistics(sdi.id, false, null);
 
 			// skip segments without data
-			if(Double.isNaN(baseline.getAverageSpeedMS()))
+			if(baseline.count == 0)
 				continue;
 
 			tile.addSegments(ExchangeFormat.BaselineStats.newBuilder()
@@ -464,12 +617,77 @@ public class OSMDataStore {
 							.setWayId(streetSegment.wayId)
 							.setStartNodeId(streetSegment.startNodeId)
 							.setEndNodeId(streetSegment.endNodeId))
-					.setAverageSpeed((float)baseline.getAverageSpeedKMH())
-					.addAllHourOfWeekAverages(baseline.getAllHourlySpeedsKMHFloatAL()));
+					.setAverageSpeed((float)(baseline.getMean() * 3.6))
+					.addAllHourOfWeekAverages(toKMH(baseline.getHourlyMeans()))
+					.setTopQuartile((float)(baseline.getQuantile(SummaryStatistics.TOP_QUARTILE) * 3.6))
+					.addAllHourOfWeekTopQuartile(toKMH(baseline.getHourlyQuantiles(SummaryStatistics.TOP_QUARTILE)))
+					.setBottomQuartile((float)(baseline.getQuantile(SummaryStatistics.BOTTOM_QUARTILE) * 3.6))
+					.addAllHourOfWeekBottomQuartile(toKMH(baseline.getHourlyQuantiles(SummaryStatistics.BOTTOM_QUARTILE))));
+		}
+
+		os.write(tile.build().toByteArray());
+		os.flush();
+	}
+
+	/**
+	 * Writes a current conditions tile for the segments in the envelope with samples in the last minutes. Segments
+	 * whose current speed is within percentChangeThreshold (a fraction) of their all-time mean for the hour are left
+	 * out, 0 includes every segment with samples.
+	 */
+	public void collectCurrentStatistics(OutputStream os, Envelope env, int minutes, double percentChangeThreshold) throws IOException {
+
+		CurrentConditions currentConditions = statsDataStore.getCurrentConditions();
+
+		long windowEnd = currentConditions.getLatestTime();
+		long windowStart = windowEnd - minutes * 60_000l;
+		int hour = SegmentStatistics.getHourOfWeek(windowEnd);
+
+		Fun.Tuple2<Integer, Integer> tileId = getOsmId(env.centre().y, env.centre().x);
+
+		ExchangeFormat.CurrentTile.Builder tile = ExchangeFormat.CurrentTile.newBuilder();
+
+		tile.setHeader(ExchangeFormat.Header.newBuilder()
+				.setCreationTimestamp(System.currentTimeMillis())
+				.setOsmCommitId(1)
+				.setTileX(tileId.a)
+				.setTileY(tileId.b)
+				.setTileZ(Z_INDEX));
+		tile.setPercentChangeThreshold((float)percentChangeThreshold);
+
+		for(SpatialDataItem sdi : getStreetSegments(env)) {
+			double speed = currentConditions.getSpeed(sdi.id, windowEnd, minutes);
+
+			if(Double.isNaN(speed))
+				continue;
+
+			if(percentChangeThreshold > 0) {
+				double baseline = statsDataStore.collectSummaryStatistics(sdi.id, false, null).getMean(hour);
+				if(!Double.isNaN(baseline) && Math.abs(speed - baseline) / baseline < percentChangeThreshold)
+					continue;
+			}
+
+			StreetSegment streetSegment = (StreetSegment)sdi;
+
+			tile.addSegments(ExchangeFormat.CurrentStats.newBuilder()
+					.setSegment(ExchangeFormat.SegmentDefinition.newBuilder()
+							.setWayId(streetSegment.wayId)
+							.setStartNodeId(streetSegment.startNodeId)
+							.setEndNodeId(streetSegment.endNodeId))
+					.setCurrentWindowStartTimestamp(windowStart)
+					.setCurrentWindowEndTimestamp(windowEnd)
+					.setCurrentAverageSpeed((float)(speed * 3.6)));
 		}
 
 		os.write(tile.build().toByteArray());
-		os.flush();*/
+		os.flush();
+	}
+
+	private static List<Float> toKMH(double[] speeds) {
+		List<Float> kmh = new ArrayList<>(speeds.length);
+		for(double speed : speeds) {
+			kmh.add((float)(speed * 3.6));
+		}
+		return kmh;
 	}
 
 
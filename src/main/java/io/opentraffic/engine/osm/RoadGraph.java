@@ -0,0 +1,371 @@
+package io.opentraffic.engine.osm;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntHashSet;
+import com.carrotsearch.hppc.LongIntHashMap;
+import io.opentraffic.engine.data.stores.StreetAttributeStore;
+
+import java.util.Arrays;
+
+/**
+ * Street segment connectivity as a compressed sparse row graph over OSM node ids. Nodes get dense indexes, and the
+ * outgoing and incoming segment ordinals of each node are contiguous ranges in primitive arrays, so adjacency and
+ * reachability questions are array walks.
+ *
+ * Segments are added as OSM areas load. A build merges only the segments added since the last one into the existing
+ * rows, block copying the rows in between, so loading an area doesn't re-read or re-hash the rest of the graph.
+ * Removed segments are dropped by a rebuild from the in memory tail/head arrays. Readers always work on an
+ * immutable Topology snapshot and never block a build.
+ */
+public class RoadGraph {
+
+	// new nodes are folded into the base node index once they outnumber this fraction of it
+	private static final int NODE_INDEX_MERGE_FRACTION = 4;
+	private static final int MIN_RECENT_NODES = 100_000;
+
+	final StreetAttributeStore attributes;
+
+	// node ids in order of first appearance, index is the dense node index. Entries below nodeCount never change,
+	// so snapshots share the array.
+	long[] nodeIds = new long[1024];
+	int nodeCount;
+
+	// node id -> index, split so a build only copies the nodes added since the last merge. Maps handed to a
+	// snapshot are never modified.
+	LongIntHashMap baseNodeIndex = new LongIntHashMap();
+	LongIntHashMap recentNodeIndex = new LongIntHashMap();
+
+	// node index at the start / end of each segment ordinal in the graph, -1 otherwise
+	int[] segmentTail = new int[0];
+	int[] segmentHead = new int[0];
+	int maxOrdinal;
+
+	final IntArrayList addedOrdinals = new IntArrayList();
+	boolean segmentsRemoved;
+
+	volatile Topology topology = new Topology();
+
+	public RoadGraph(StreetAttributeStore attributes) {
+		this.attributes = attributes;
+
+		for(int ordinal = 0; ordinal < attributes.getOrdinalCapacity(); ordinal++) {
+			if(attributes.containsOrdinal(ordinal))
+				addSegmentOrdinal(ordinal);
+		}
+
+		build();
+	}
+
+	public synchronized void addSegment(long segmentId) {
+		addSegmentOrdinal(StreetAttributeStore.getOrdinal(segmentId));
+	}
+
+	/**
+	 * Drops a segment from the graph at the next build.
+	 */
+	public synchronized void removeSegment(long segmentId) {
+		int ordinal = StreetAttributeStore.getOrdinal(segmentId);
+		if(ordinal < 0 || ordinal >= maxOrdinal || segmentTail[ordinal] < 0)
+			return;
+
+		segmentTail[ordinal] = -1;
+		segmentHead[ordinal] = -1;
+		segmentsRemoved = true;
+	}
+
+	private synchronized void addSegmentOrdinal(int ordinal) {
+		if(ordinal < 0 || (ordinal < maxOrdinal && segmentTail[ordinal] >= 0) || !attributes.containsOrdinal(ordinal))
+			return;
+
+		if(ordinal >= segmentTail.length) {
+			int length = Math.max(ordinal + 1, segmentTail.length + (segmentTail.length >> 1));
+			int oldLength = segmentTail.length;
+			segmentTail = Arrays.copyOf(segmentTail, length);
+			segmentHead = Arrays.copyOf(segmentHead, length);
+			Arrays.fill(segmentTail, oldLength, length, -1);
+			Arrays.fill(segmentHead, oldLength, length, -1);
+		}
+
+		segmentTail[ordinal] = getOrCreateNodeIndex(attributes.getStartNodeIdByOrdinal(ordinal));
+		segmentHead[ordinal] = getOrCreateNodeIndex(attributes.getEndNodeIdByOrdinal(ordinal));
+		maxOrdinal = Math.max(maxOrdinal, ordinal + 1);
+
+		addedOrdinals.add(ordinal);
+	}
+
+	private int getOrCreateNodeIndex(long nodeId) {
+		int index = recentNodeIndex.getOrDefault(nodeId, -1);
+		if(index < 0)
+			index = baseNodeIndex.getOrDefault(nodeId, -1);
+
+		if(index < 0) {
+			index = nodeCount;
+			if(nodeCount == nodeIds.length)
+				nodeIds = Arrays.copyOf(nodeIds, nodeIds.length * 2);
+			nodeIds[nodeCount++] = nodeId;
+			recentNodeIndex.put(nodeId, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Publishes every segment added or removed so far as the current topology.
+	 */
+	public synchronized void build() {
+		if(addedOrdinals.isEmpty() && !segmentsRemoved)
+			return;
+
+		Topology previous = topology;
+		Topology newTopology = new Topology();
+
+		newTopology.nodeCount = nodeCount;
+		newTopology.nodeIds = nodeIds;
+
+		if(recentNodeIndex.size() > Math.max(MIN_RECENT_NODES, baseNodeIndex.size() / NODE_INDEX_MERGE_FRACTION)) {
+			LongIntHashMap merged = baseNodeIndex.clone();
+			merged.putAll(recentNodeIndex);
+			baseNodeIndex = merged;
+			recentNodeIndex = new LongIntHashMap();
+		}
+		newTopology.baseNodeIndex = baseNodeIndex;
+		newTopology.recentNodeIndex = recentNodeIndex.clone();
+
+		newTopology.segmentTail = Arrays.copyOf(segmentTail, maxOrdinal);
+		newTopology.segmentHead = Arrays.copyOf(segmentHead, maxOrdinal);
+
+		if(segmentsRemoved) {
+			// rows can shrink anywhere, start from an empty graph and add every remaining segment
+			previous = new Topology();
+			addedOrdinals.clear();
+			for(int ordinal = 0; ordinal < maxOrdinal; ordinal++) {
+				if(segmentTail[ordinal] >= 0)
+					addedOrdinals.add(ordinal);
+			}
+		}
+
+		int[][] out = appendEdges(previous.outOffsets, previous.outSegments, nodeCount, segmentTail);
+		int[][] in = appendEdges(previous.inOffsets, previous.inSegments, nodeCount, segmentHead);
+
+		newTopology.outOffsets = out[0];
+		newTopology.outSegments = out[1];
+		newTopology.inOffsets = in[0];
+		newTopology.inSegments = in[1];
+		newTopology.version = topology.version + 1;
+
+		addedOrdinals.clear();
+		segmentsRemoved = false;
+
+		topology = newTopology;
+	}
+
+	/**
+	 * Copies the rows of one direction with the added ordinals appended to the rows of their nodes (the ordinal's
+	 * tail or head). Returns the new offsets and segments.
+	 */
+	private int[][] appendEdges(int[] offsets, int[] segments, int nodeCount, int[] segmentNodes) {
+		int oldNodeCount = offsets.length - 1;
+		int added = addedOrdinals.size();
+
+		// added edges sorted by node, then ordinal
+		long[] edges = new long[added];
+		for(int i = 0; i < added; i++) {
+			int ordinal = addedOrdinals.get(i);
+			edges[i] = ((long)segmentNodes[ordinal] << 32) | ordinal;
+		}
+		Arrays.sort(edges);
+
+		int[] newOffsets = new int[nodeCount + 1];
+		int[] newSegments = new int[segments.length + added];
+
+		int copied = 0;
+		int edge = 0;
+		for(int node = 0; node < nodeCount; node++) {
+			int oldEnd = offsets[Math.min(node + 1, oldNodeCount)];
+
+			// nodes without added edges are block copied with the next node that has some
+			if(edge < added && (int)(edges[edge] >>> 32) == node) {
+				System.arraycopy(segments, copied, newSegments, copied + edge, oldEnd - copied);
+				copied = oldEnd;
+
+				while(edge < added && (int)(edges[edge] >>> 32) == node) {
+					newSegments[oldEnd + edge] = (int)edges[edge];
+					edge++;
+				}
+			}
+
+			newOffsets[node + 1] = oldEnd + edge;
+		}
+		System.arraycopy(segments, copied, newSegments, copied + edge, segments.length - copied);
+
+		return new int[][] {newOffsets, newSegments};
+	}
+
+	public Topology getTopology() {
+		return topology;
+	}
+
+	public int getNodeCount() {
+		return topology.nodeCount;
+	}
+
+	public long[] getOutgoingSegmentIds(long nodeId) {
+		Topology t = topology;
+		int node = t.getNodeIndex(nodeId);
+		if(node < 0)
+			return new long[0];
+
+		long[] segmentIds = new long[t.getOutDegree(node)];
+		for(int edge = t.firstOutEdge(node); edge < t.lastOutEdge(node); edge++) {
+			segmentIds[edge - t.firstOutEdge(node)] = StreetAttributeStore.getSegmentId(t.getOutSegment(edge));
+		}
+		return segmentIds;
+	}
+
+	public long[] getIncomingSegmentIds(long nodeId) {
+		Topology t = topology;
+		int node = t.getNodeIndex(nodeId);
+		if(node < 0)
+			return new long[0];
+
+		long[] segmentIds = new long[t.getInDegree(node)];
+		for(int edge = t.firstInEdge(node); edge < t.lastInEdge(node); edge++) {
+			segmentIds[edge - t.firstInEdge(node)] = StreetAttributeStore.getSegmentId(t.getInSegment(edge));
+		}
+		return segmentIds;
+	}
+
+	/**
+	 * True if a vehicle can move directly from one segment onto the next.
+	 */
+	public boolean isConnected(long fromSegmentId, long toSegmentId) {
+		Topology t = topology;
+		int head = t.getSegmentHead(StreetAttributeStore.getOrdinal(fromSegmentId));
+		return head >= 0 && head == t.getSegmentTail(StreetAttributeStore.getOrdinal(toSegmentId));
+	}
+
+	/**
+	 * True if the start of one segment can be reached from the end of another within maxSegments intermediate
+	 * segments, following segment direction.
+	 */
+	public boolean isReachable(long fromSegmentId, long toSegmentId, int maxSegments) {
+		Topology t = topology;
+
+		int start = t.getSegmentHead(StreetAttributeStore.getOrdinal(fromSegmentId));
+		int target = t.getSegmentTail(StreetAttributeStore.getOrdinal(toSegmentId));
+
+		if(start < 0 || target < 0)
+			return false;
+
+		IntArrayList frontier = new IntArrayList();
+		IntArrayList nextFrontier = new IntArrayList();
+		IntHashSet visited = new IntHashSet();
+
+		frontier.add(start);
+		visited.add(start);
+
+		for(int depth = 0; depth <= maxSegments && !frontier.isEmpty(); depth++) {
+			for(int i = 0; i < frontier.size(); i++) {
+				int node = frontier.get(i);
+				if(node == target)
+					return true;
+
+				for(int edge = t.firstOutEdge(node); edge < t.lastOutEdge(node); edge++) {
+					int next = t.getSegmentHead(t.getOutSegment(edge));
+					if(visited.add(next))
+						nextFrontier.add(next);
+				}
+			}
+
+			IntArrayList swap = frontier;
+			frontier = nextFrontier;
+			nextFrontier = swap;
+			nextFrontier.clear();
+		}
+
+		return false;
+	}
+
+	/**
+	 * Immutable CSR arrays for one build of the graph. Edge positions run from firstOutEdge(node) (inclusive) to
+	 * lastOutEdge(node) (exclusive), and each edge holds a segment ordinal.
+	 */
+	public static class Topology {
+
+		int version;
+		int nodeCount;
+
+		long[] nodeIds = new long[0];
+		LongIntHashMap baseNodeIndex = new LongIntHashMap();
+		LongIntHashMap recentNodeIndex = new LongIntHashMap();
+
+		int[] outOffsets = new int[1];
+		int[] outSegments = new int[0];
+		int[] inOffsets = new int[1];
+		int[] inSegments = new int[0];
+
+		// node index at the start / end of each segment ordinal, -1 if the ordinal isn't in the graph
+		int[] segmentTail = new int[0];
+		int[] segmentHead = new int[0];
+
+		public int getVersion() {
+			return version;
+		}
+
+		public int getNodeCount() {
+			return nodeCount;
+		}
+
+		public int getNodeIndex(long nodeId) {
+			int index = recentNodeIndex.getOrDefault(nodeId, -1);
+			return index >= 0 ? index : baseNodeIndex.getOrDefault(nodeId, -1);
+		}
+
+		public long getNodeId(int node) {
+			return nodeIds[node];
+		}
+
+		public int getOrdinalCount() {
+			return segmentTail.length;
+		}
+
+		public int getSegmentTail(int ordinal) {
+			return ordinal >= 0 && ordinal < segmentTail.length ? segmentTail[ordinal] : -1;
+		}
+
+		public int getSegmentHead(int ordinal) {
+			return ordinal >= 0 && ordinal < segmentHead.length ? segmentHead[ordinal] : -1;
+		}
+
+		public int getOutDegree(int node) {
+			return outOffsets[node + 1] - outOffsets[node];
+		}
+
+		public int firstOutEdge(int node) {
+			return outOffsets[node];
+		}
+
+		public int lastOutEdge(int node) {
+			return outOffsets[node + 1];
+		}
+
+		public int getOutSegment(int edge) {
+			return outSegments[edge];
+		}
+
+		public int getInDegree(int node) {
+			return inOffsets[node + 1] - inOffsets[node];
+		}
+
+		public int firstInEdge(int node) {
+			return inOffsets[node];
+		}
+
+		public int lastInEdge(int node) {
+			return inOffsets[node + 1];
+		}
+
+		public int getInSegment(int edge) {
+			return inSegments[edge];
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package io.opentraffic.engine.routing;
+
+import io.opentraffic.engine.osm.RoadGraph;
+
+import java.util.Arrays;
+
+/**
+ * ALT (A*, landmarks, triangle inequality) lower bounds. Shortest times to and from a handful of landmark nodes are
+ * computed once per graph topology with every segment at its minimum travel time, and the triangle inequality over
+ * them gives an admissible, consistent A* heuristic.
+ *
+ * Since the minimum travel times only depend on segment length, observed speed changes never invalidate the
+ * bounds. Only a new topology (a newly loaded OSM area) requires a rebuild.
+ */
+public class Landmarks {
+
+	public static final int NUM_LANDMARKS = 8;
+
+	// bounds are shaved slightly so float rounding in the stored times can't make them overestimate
+	static final double BOUND_SLACK = 0.999;
+
+	final RoadGraph.Topology topology;
+
+	final int[] landmarkNodes;
+
+	// [landmark][node] shortest time from the landmark to the node, and from the node to the landmark
+	final float[][] fromLandmark;
+	final float[][] toLandmark;
+
+	public Landmarks(RoadGraph.Topology topology, SegmentSpeeds speeds) {
+		this.topology = topology;
+
+		int nodeCount = topology.getNodeCount();
+		int landmarkCount = Math.min(NUM_LANDMARKS, nodeCount);
+
+		float[] minTimes = new float[topology.getOrdinalCount()];
+		for(int ordinal = 0; ordinal < minTimes.length; ordinal++) {
+			if(topology.getSegmentTail(ordinal) >= 0)
+				minTimes[ordinal] = (float)speeds.getMinTravelTime(ordinal);
+		}
+
+		int[] selected = new int[landmarkCount];
+		float[][] from = new float[landmarkCount][];
+		float[][] to = new float[landmarkCount][];
+
+		// farthest-first selection, each landmark is the node furthest from all landmarks chosen so far
+		float[] nearestLandmark = new float[nodeCount];
+		Arrays.fill(nearestLandmark, Float.POSITIVE_INFINITY);
+
+		NodeHeap heap = new NodeHeap(nodeCount);
+		int next = 0;
+		int count = 0;
+
+		while(count < landmarkCount && next >= 0) {
+			selected[count] = next;
+			from[count] = shortestTimes(next, true, minTimes, heap);
+			to[count] = shortestTimes(next, false, minTimes, heap);
+
+			int farthest = -1;
+			float farthestTime = -1;
+			for(int node = 0; node < nodeCount; node++) {
+				float time = from[count][node];
+				if(time < nearestLandmark[node])
+					nearestLandmark[node] = time;
+
+				if(nearestLandmark[node] != Float.POSITIVE_INFINITY && nearestLandmark[node] > farthestTime) {
+					farthestTime = nearestLandmark[node];
+					farthest = node;
+				}
+			}
+
+			count++;
+			next = farthestTime > 0 ? farthest : -1;
+		}
+
+		landmarkNodes = Arrays.copyOf(selected, count);
+		fromLandmark = Arrays.copyOf(from, count);
+		toLandmark = Arrays.copyOf(to, count);
+	}
+
+	public int getVersion() {
+		return topology.getVersion();
+	}
+
+	public int getLandmarkCount() {
+		return landmarkNodes.length;
+	}
+
+	/**
+	 * Lower bound on the travel time in seconds from one node to another.
+	 */
+	public double lowerBound(int node, int target) {
+		double bound = 0;
+
+		for(int i = 0; i < landmarkNodes.length; i++) {
+			float[] from = fromLandmark[i];
+			float[] to = toLandmark[i];
+
+			// d(L, target) - d(L, node)
+			if(from[target] != Float.POSITIVE_INFINITY && from[node] != Float.POSITIVE_INFINITY)
+				bound = Math.max(bound, from[target] - from[node]);
+
+			// d(node, L) - d(target, L)
+			if(to[node] != Float.POSITIVE_INFINITY && to[target] != Float.POSITIVE_INFINITY)
+				bound = Math.max(bound, to[node] - to[target]);
+		}
+
+		return bound * BOUND_SLACK;
+	}
+
+	/**
+	 * Dijkstra from (or, following incoming segments, to) a single node.
+	 */
+	private float[] shortestTimes(int source, boolean forward, float[] minTimes, NodeHeap heap) {
+		float[] times = new float[topology.getNodeCount()];
+		Arrays.fill(times, Float.POSITIVE_INFINITY);
+
+		heap.clear();
+		times[source] = 0;
+		heap.update(source, 0);
+
+		while(!heap.isEmpty()) {
+			int node = heap.poll();
+			float time = times[node];
+
+			int first = forward ? topology.firstOutEdge(node) : topology.firstInEdge(node);
+			int last = forward ? topology.lastOutEdge(node) : topology.lastInEdge(node);
+
+			for(int edge = first; edge < last; edge++) {
+				int ordinal = forward ? topology.getOutSegment(edge) : topology.getInSegment(edge);
+				int neighbour = forward ? topology.getSegmentHead(ordinal) : topology.getSegmentTail(ordinal);
+
+				float neighbourTime = time + minTimes[ordinal];
+				if(neighbourTime < times[neighbour]) {
+					times[neighbour] = neighbourTime;
+					heap.update(neighbour, neighbourTime);
+				}
+			}
+		}
+
+		return times;
+	}
+}
@@ -0,0 +1,106 @@
+package io.opentraffic.engine.routing;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of graph node indexes keyed by a double, with decrease-key. Positions are tracked per node so a
+ * node is never queued twice.
+ */
+class NodeHeap {
+
+	private int[] nodes;
+	private double[] keys;
+
+	// position of each node in the heap, -1 if not queued
+	private int[] positions;
+
+	private int size;
+
+	NodeHeap(int nodeCount) {
+		nodes = new int[Math.max(nodeCount, 16)];
+		keys = new double[nodes.length];
+		positions = new int[Math.max(nodeCount, 16)];
+		Arrays.fill(positions, -1);
+	}
+
+	int capacity() {
+		return positions.length;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	void clear() {
+		for(int i = 0; i < size; i++) {
+			positions[nodes[i]] = -1;
+		}
+		size = 0;
+	}
+
+	/**
+	 * Queues the node, or lowers its key if it is already queued with a higher one.
+	 */
+	void update(int node, double key) {
+		int position = positions[node];
+
+		if(position < 0) {
+			if(size == nodes.length) {
+				nodes = Arrays.copyOf(nodes, size * 2);
+				keys = Arrays.copyOf(keys, size * 2);
+			}
+			position = size++;
+		}
+		else if(key >= keys[position])
+			return;
+
+		siftUp(position, node, key);
+	}
+
+	int poll() {
+		int top = nodes[0];
+		positions[top] = -1;
+
+		size--;
+		if(size > 0)
+			siftDown(0, nodes[size], keys[size]);
+
+		return top;
+	}
+
+	private void siftUp(int position, int node, double key) {
+		while(position > 0) {
+			int parent = (position - 1) >>> 1;
+			if(keys[parent] <= key)
+				break;
+
+			place(position, nodes[parent], keys[parent]);
+			position = parent;
+		}
+		place(position, node, key);
+	}
+
+	private void siftDown(int position, int node, double key) {
+		int half = size >>> 1;
+		while(position < half) {
+			int child = (position << 1) + 1;
+			int right = child + 1;
+
+			if(right < size && keys[right] < keys[child])
+				child = right;
+
+			if(key <= keys[child])
+				break;
+
+			place(position, nodes[child], keys[child]);
+			position = child;
+		}
+		place(position, node, key);
+	}
+
+	private void place(int position, int node, double key) {
+		nodes[position] = node;
+		keys[position] = key;
+		positions[node] = position;
+	}
+}
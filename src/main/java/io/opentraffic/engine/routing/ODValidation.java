@@ -0,0 +1,41 @@
+package io.opentraffic.engine.routing;
+
+import io.opentraffic.engine.data.pbf.ExchangeFormat;
+
+/**
+ * An observed origin-destination trip alongside the route the engine would predict for it.
+ */
+public class ODValidation {
+
+	public final ExchangeFormat.ODValidationPairs observed;
+
+	// null if the destination isn't reachable in the graph
+	public final Route route;
+
+	public ODValidation(ExchangeFormat.ODValidationPairs observed, Route route) {
+		this.observed = observed;
+		this.route = route;
+	}
+
+	public boolean isRouted() {
+		return route != null;
+	}
+
+	/**
+	 * Predicted minus observed travel time in seconds.
+	 */
+	public double getTravelTimeError() {
+		if(route == null)
+			return Double.NaN;
+		return route.travelTime - observed.getTravelTime();
+	}
+
+	/**
+	 * Predicted travel time as a fraction of the observed travel time.
+	 */
+	public double getTravelTimeRatio() {
+		if(route == null || observed.getTravelTime() == 0)
+			return Double.NaN;
+		return route.travelTime / observed.getTravelTime();
+	}
+}
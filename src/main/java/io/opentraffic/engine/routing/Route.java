@@ -0,0 +1,32 @@
+package io.opentraffic.engine.routing;
+
+/**
+ * Fastest path between two OSM nodes. Segments are listed in travel order, travel time is in seconds and length in
+ * meters.
+ */
+public class Route {
+
+	public final long startNodeId;
+	public final long endNodeId;
+
+	public final long[] segmentIds;
+	public final double length;
+	public final double travelTime;
+
+	public Route(long startNodeId, long endNodeId, long[] segmentIds, double length, double travelTime) {
+		this.startNodeId = startNodeId;
+		this.endNodeId = endNodeId;
+		this.segmentIds = segmentIds;
+		this.length = length;
+		this.travelTime = travelTime;
+	}
+
+	public double getAverageSpeedKMH() {
+		return travelTime > 0 ? (length / travelTime) * 3.6 : Double.NaN;
+	}
+
+	public String toString() {
+		return "[Route:" + startNodeId + "->" + endNodeId + " segments:" + segmentIds.length
+				+ " length:" + length + " travelTime:" + travelTime + "]";
+	}
+}
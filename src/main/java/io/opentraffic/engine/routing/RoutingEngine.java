@@ -0,0 +1,256 @@
+package io.opentraffic.engine.routing;
+
+import com.carrotsearch.hppc.LongArrayList;
+import io.opentraffic.engine.data.pbf.ExchangeFormat;
+import io.opentraffic.engine.data.stats.SegmentStatistics;
+import io.opentraffic.engine.data.stores.StreetAttributeStore;
+import io.opentraffic.engine.osm.RoadGraph;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Origin-destination travel time queries over the road graph, weighted by observed hourly segment speeds. Searches
+ * are A* with ALT landmark bounds. When the graph topology changes, the first query to notice starts building new
+ * landmarks in the background and queries keep using the previous landmarks and topology until they're ready.
+ * Before the first landmarks are built, queries run unbounded (plain Dijkstra) over the current topology. Speed
+ * updates take effect as SegmentSpeeds refreshes its table.
+ *
+ * Queries are thread safe, each thread keeps its own search arrays.
+ */
+public class RoutingEngine {
+
+	private static final Logger log = Logger.getLogger( RoutingEngine.class.getName());
+
+	final RoadGraph roadGraph;
+	final StreetAttributeStore attributes;
+	final SegmentSpeeds speeds;
+
+	volatile Landmarks landmarks;
+
+	// topology version landmarks are being built for, guarded by this
+	long buildingVersion = -1;
+
+	final ExecutorService landmarkExecutor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "routing-landmarks");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	final ThreadLocal<SearchState> searchState = ThreadLocal.withInitial(SearchState::new);
+
+	public RoutingEngine(RoadGraph roadGraph, StreetAttributeStore attributes, SegmentSpeeds speeds) {
+		this.roadGraph = roadGraph;
+		this.attributes = attributes;
+		this.speeds = speeds;
+	}
+
+	public SegmentSpeeds getSegmentSpeeds() {
+		return speeds;
+	}
+
+	/**
+	 * Fastest route between two nodes for a departure time (ms), or null if either node is unknown or the
+	 * destination can't be reached.
+	 */
+	public Route routeAtTime(long startNodeId, long endNodeId, long time) {
+		return routeAtHour(startNodeId, endNodeId, SegmentStatistics.getHourOfWeek(time));
+	}
+
+	/**
+	 * Fastest route using speeds for an hour of the week, or SegmentSpeeds.ALL_HOURS for overall speeds.
+	 */
+	public Route routeAtHour(long startNodeId, long endNodeId, int hour) {
+		Landmarks landmarks = getLandmarks();
+		RoadGraph.Topology topology = landmarks != null ? landmarks.topology : roadGraph.getTopology();
+
+		int source = topology.getNodeIndex(startNodeId);
+		int target = topology.getNodeIndex(endNodeId);
+
+		if(source < 0 || target < 0)
+			return null;
+
+		SearchState state = searchState.get();
+		state.reset(topology.getNodeCount());
+
+		state.visit(source, 0, -1);
+		state.heap.update(source, lowerBound(landmarks, source, target));
+
+		while(!state.heap.isEmpty()) {
+			int node = state.heap.poll();
+
+			if(node == target)
+				return buildRoute(topology, state, startNodeId, endNodeId, source, target);
+
+			double time = state.times[node];
+
+			for(int edge = topology.firstOutEdge(node); edge < topology.lastOutEdge(node); edge++) {
+				int ordinal = topology.getOutSegment(edge);
+				int neighbour = topology.getSegmentHead(ordinal);
+
+				double neighbourTime = time + speeds.getTravelTime(ordinal, hour);
+
+				if(!state.isVisited(neighbour) || neighbourTime < state.times[neighbour]) {
+					state.visit(neighbour, neighbourTime, ordinal);
+					state.heap.update(neighbour, neighbourTime + lowerBound(landmarks, neighbour, target));
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Routes an observed origin-destination trip at the hour it was made.
+	 */
+	public ODValidation validate(ExchangeFormat.ODValidationPairs pair) {
+		Route route = routeAtTime(pair.getStartNodeId(), pair.getEndNodeId(), pair.getCurrentWindowStartTimestamp());
+		return new ODValidation(pair, route);
+	}
+
+	/**
+	 * Validates a batch of trips in parallel.
+	 */
+	public List<ODValidation> validate(List<ExchangeFormat.ODValidationPairs> pairs) {
+		return pairs.parallelStream().map(this::validate).collect(Collectors.toList());
+	}
+
+	/**
+	 * Exchange format pair for a routed trip, for comparison against pairs observed elsewhere.
+	 */
+	public static ExchangeFormat.ODValidationPairs toValidationPair(Route route, long windowStartTimestamp) {
+		return ExchangeFormat.ODValidationPairs.newBuilder()
+				.setCurrentWindowStartTimestamp(windowStartTimestamp)
+				.setStartNodeId(route.startNodeId)
+				.setEndNodeId(route.endNodeId)
+				.setLength((int)Math.round(route.length))
+				.setTravelTime((int)Math.round(route.travelTime))
+				.build();
+	}
+
+	/**
+	 * Landmarks for the current topology, or the previous landmarks while new ones are built. Null until the first
+	 * landmarks are built.
+	 */
+	Landmarks getLandmarks() {
+		RoadGraph.Topology topology = roadGraph.getTopology();
+		Landmarks current = landmarks;
+
+		if(current != null && current.getVersion() == topology.getVersion())
+			return current;
+
+		synchronized (this) {
+			if(buildingVersion != topology.getVersion() && (landmarks == null || landmarks.getVersion() != topology.getVersion())) {
+				buildingVersion = topology.getVersion();
+				landmarkExecutor.execute(this::updateLandmarks);
+			}
+
+			return landmarks;
+		}
+	}
+
+	private void updateLandmarks() {
+		try {
+			Landmarks built = buildLandmarks(roadGraph.getTopology());
+			synchronized (this) {
+				if(landmarks == null || built.getVersion() > landmarks.getVersion())
+					landmarks = built;
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		finally {
+			synchronized (this) {
+				buildingVersion = -1;
+			}
+		}
+	}
+
+	private Landmarks buildLandmarks(RoadGraph.Topology topology) {
+		long start = System.currentTimeMillis();
+
+		Landmarks built = new Landmarks(topology, speeds);
+
+		log.log(Level.INFO, "Built " + built.getLandmarkCount() + " routing landmarks for "
+				+ topology.getNodeCount() + " nodes in " + (System.currentTimeMillis() - start) + "ms");
+
+		return built;
+	}
+
+	private static double lowerBound(Landmarks landmarks, int node, int target) {
+		return landmarks != null ? landmarks.lowerBound(node, target) : 0;
+	}
+
+	private Route buildRoute(RoadGraph.Topology topology, SearchState state, long startNodeId, long endNodeId, int source, int target) {
+		LongArrayList segmentIds = new LongArrayList();
+		double length = 0;
+
+		int node = target;
+		while(node != source) {
+			int ordinal = state.parentSegments[node];
+			segmentIds.add(StreetAttributeStore.getSegmentId(ordinal));
+			length += attributes.getLengthByOrdinal(ordinal);
+			node = topology.getSegmentTail(ordinal);
+		}
+
+		long[] path = segmentIds.toArray();
+		for(int i = 0, j = path.length - 1; i < j; i++, j--) {
+			long swap = path[i];
+			path[i] = path[j];
+			path[j] = swap;
+		}
+
+		return new Route(startNodeId, endNodeId, path, length, state.times[target]);
+	}
+
+	/**
+	 * Per-thread search arrays, sized to the graph and reused between queries. Stamps mark which entries belong to
+	 * the current search so nothing needs clearing. Nodes are reopened if a shorter time turns up, so the slack in
+	 * the landmark bounds can't produce a slower route.
+	 */
+	static class SearchState {
+
+		double[] times = new double[0];
+		int[] parentSegments = new int[0];
+		int[] visitedStamps = new int[0];
+		int stamp;
+
+		NodeHeap heap = new NodeHeap(0);
+
+		void reset(int nodeCount) {
+			if(times.length < nodeCount) {
+				times = new double[nodeCount];
+				parentSegments = new int[nodeCount];
+				visitedStamps = new int[nodeCount];
+				stamp = 0;
+			}
+
+			if(heap.capacity() < nodeCount)
+				heap = new NodeHeap(nodeCount);
+			else
+				heap.clear();
+
+			stamp++;
+			if(stamp == Integer.MAX_VALUE) {
+				Arrays.fill(visitedStamps, 0);
+				stamp = 1;
+			}
+		}
+
+		boolean isVisited(int node) {
+			return visitedStamps[node] == stamp;
+		}
+
+		void visit(int node, double time, int parentSegment) {
+			visitedStamps[node] = stamp;
+			times[node] = time;
+			parentSegments[node] = parentSegment;
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package io.opentraffic.engine.routing;
+
+import com.carrotsearch.hppc.LongHashSet;
+import com.carrotsearch.hppc.LongSet;
+import com.carrotsearch.hppc.cursors.LongCursor;
+import io.opentraffic.engine.data.stats.SegmentStatistics;
+import io.opentraffic.engine.data.stats.SummaryStatistics;
+import io.opentraffic.engine.data.stores.StatsDataStore;
+import io.opentraffic.engine.data.stores.StatsUpdateListener;
+import io.opentraffic.engine.data.stores.StreetAttributeStore;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Travel time weights for routing, taken from the observed per-hour mean speed of each segment. Hours with too few
+ * samples fall back to the segment's overall mean, and segments without samples to a default speed for their
+ * street type.
+ *
+ * Speeds are clamped to MAX_TRACKED_SPEED, so a segment is never cheaper than its length at that speed. Landmark
+ * bounds computed from that floor stay valid however the observed speeds change.
+ *
+ * Travel times are precomputed into float rows, one entry per hour of the week, so a search reads one array element
+ * per edge. Only segments with stats get a row, the others are computed from their street type's default speed, so
+ * the table costs 4 bytes per segment ordinal plus 676 bytes per segment with stats. Rows are loaded and, after
+ * stats commits, recomputed on a background thread, segments use their default speed until their row is in.
+ */
+public class SegmentSpeeds implements StatsUpdateListener {
+
+	private static final Logger log = Logger.getLogger( SegmentSpeeds.class.getName());
+
+	// hour used to ask for a segment's speed across all hours
+	public static final int ALL_HOURS = -1;
+
+	public static final double MAX_SPEED_MS = SegmentStatistics.MAX_TRACKED_SPEED / 3.6;
+	public static final double MIN_SPEED_MS = 5.0 / 3.6;
+
+	// samples needed before an hour's mean is trusted over the segment's overall mean
+	public static final int MIN_HOUR_SAMPLES = 3;
+
+	// km/h by street type: non-roadway, primary, secondary, tertiary, residential, other
+	static final double[] DEFAULT_SPEEDS_KMH = {20, 80, 60, 50, 30, 40};
+
+	// table entries per segment, one per hour of the week and the overall time in the last
+	static final int ROW_SIZE = SegmentStatistics.HOURS_IN_WEEK + 1;
+
+	static final int NO_ROW = -1;
+
+	final StreetAttributeStore attributes;
+	final StatsDataStore statsDataStore;
+
+	// replaced after every refresh, so searches see the rows written before it
+	volatile Table table = new Table(new int[0], new float[0], 0);
+
+	// segments updated since the last refresh, guarded by this
+	LongHashSet pendingSegments = new LongHashSet();
+	boolean refreshScheduled;
+
+	final ExecutorService refreshExecutor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "segment-speeds");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public SegmentSpeeds(StreetAttributeStore attributes, StatsDataStore statsDataStore) {
+		this.attributes = attributes;
+		this.statsDataStore = statsDataStore;
+	}
+
+	/**
+	 * Seconds to traverse the segment with the given ordinal at an hour of the week (or ALL_HOURS).
+	 */
+	public double getTravelTime(int ordinal, int hour) {
+		Table current = table;
+
+		int row = ordinal < current.rows.length ? current.rows[ordinal] : NO_ROW;
+		if(row != NO_ROW && row < current.rowCount)
+			return current.travelTimes[(row * ROW_SIZE) + (hour == ALL_HOURS ? SegmentStatistics.HOURS_IN_WEEK : hour)];
+
+		return attributes.getLengthByOrdinal(ordinal) / getDefaultSpeed(attributes.getStreetTypeByOrdinal(ordinal));
+	}
+
+	/**
+	 * Lowest possible traversal time, used for landmark bounds.
+	 */
+	public double getMinTravelTime(int ordinal) {
+		return attributes.getLengthByOrdinal(ordinal) / MAX_SPEED_MS;
+	}
+
+	public double getSpeed(int ordinal, int hour) {
+		double travelTime = getTravelTime(ordinal, hour);
+		if(travelTime <= 0)
+			return MAX_SPEED_MS;
+
+		return attributes.getLengthByOrdinal(ordinal) / travelTime;
+	}
+
+	public static double getDefaultSpeed(int streetType) {
+		if(streetType < 0 || streetType >= DEFAULT_SPEEDS_KMH.length)
+			streetType = 0;
+		return DEFAULT_SPEEDS_KMH[streetType] / 3.6;
+	}
+
+	/**
+	 * Starts loading the rows of every segment with stats in the background.
+	 */
+	public void load() {
+		LongHashSet segmentIds = new LongHashSet();
+		for(Long segmentId : statsDataStore.getSegmentIds()) {
+			segmentIds.add(segmentId);
+		}
+
+		log.log(Level.INFO, "Loading travel times for " + segmentIds.size() + " segments with stats");
+		queue(segmentIds);
+	}
+
+	/**
+	 * Queues the updated segments' rows to be recomputed. Runs on the committing writer's thread, so the stats
+	 * reads are left to the refresh thread.
+	 */
+	@Override
+	public void statsUpdated(LongSet updatedStatsKeys) {
+		LongHashSet segmentIds = new LongHashSet(updatedStatsKeys.size());
+		for(LongCursor cursor : updatedStatsKeys) {
+			segmentIds.add(StatsDataStore.getSegmentIdFromStatsKey(cursor.value));
+		}
+		queue(segmentIds);
+	}
+
+	private void queue(LongHashSet segmentIds) {
+		synchronized (this) {
+			pendingSegments.addAll(segmentIds);
+
+			if(refreshScheduled)
+				return;
+			refreshScheduled = true;
+		}
+
+		refreshExecutor.execute(this::refresh);
+	}
+
+	private void refresh() {
+		LongHashSet segmentIds;
+		synchronized (this) {
+			segmentIds = pendingSegments;
+			pendingSegments = new LongHashSet();
+			refreshScheduled = false;
+		}
+
+		Table current = table;
+		int[] rows = current.rows;
+		float[] travelTimes = current.travelTimes;
+		int rowCount = current.rowCount;
+
+		float[] row = new float[ROW_SIZE];
+		for(LongCursor cursor : segmentIds) {
+			int ordinal = StreetAttributeStore.getOrdinal(cursor.value);
+			if(!attributes.containsOrdinal(ordinal))
+				continue;
+
+			boolean hasStats = computeRow(ordinal, row);
+
+			if(ordinal >= rows.length) {
+				if(!hasStats)
+					continue;
+
+				int oldLength = rows.length;
+				rows = Arrays.copyOf(rows, Math.max(attributes.getOrdinalCapacity(), ordinal + 1));
+				Arrays.fill(rows, oldLength, rows.length, NO_ROW);
+			}
+
+			// segments without stats keep using their default speed, rather than taking up a row of it
+			if(rows[ordinal] == NO_ROW) {
+				if(!hasStats)
+					continue;
+
+				if((rowCount + 1) * ROW_SIZE > travelTimes.length)
+					travelTimes = Arrays.copyOf(travelTimes, Math.max(ROW_SIZE, travelTimes.length * 2));
+				rows[ordinal] = rowCount++;
+			}
+
+			System.arraycopy(row, 0, travelTimes, rows[ordinal] * ROW_SIZE, ROW_SIZE);
+		}
+
+		table = new Table(rows, travelTimes, rowCount);
+	}
+
+	/**
+	 * Fills a row with the segment's travel times, returns false if it has no stats and the row holds its default
+	 * speed.
+	 */
+	private boolean computeRow(int ordinal, float[] row) {
+		double length = attributes.getLengthByOrdinal(ordinal);
+
+		SummaryStatistics stats = statsDataStore.collectSummaryStatistics(StreetAttributeStore.getSegmentId(ordinal), false, (Integer)null);
+
+		if(stats.count == 0) {
+			Arrays.fill(row, (float)(length / getDefaultSpeed(attributes.getStreetTypeByOrdinal(ordinal))));
+			return false;
+		}
+
+		double mean = stats.getMean();
+		for(int hour = 0; hour < SegmentStatistics.HOURS_IN_WEEK; hour++) {
+			double speed = stats.hourCount[hour] >= MIN_HOUR_SAMPLES ? stats.getMean(hour) : mean;
+			row[hour] = (float)(length / clampSpeed(speed));
+		}
+		row[SegmentStatistics.HOURS_IN_WEEK] = (float)(length / clampSpeed(mean));
+		return true;
+	}
+
+	private static double clampSpeed(double speed) {
+		return Math.max(MIN_SPEED_MS, Math.min(MAX_SPEED_MS, speed));
+	}
+
+	/**
+	 * Row index by segment ordinal, and the rows' travel times. The refresh thread adds rows to the arrays of the
+	 * published table, rows at or past its rowCount are ignored until the next table lists them.
+	 */
+	static class Table {
+
+		final int[] rows;
+		final float[] travelTimes;
+		final int rowCount;
+
+		Table(int[] rows, float[] travelTimes, int rowCount) {
+			this.rows = rows;
+			this.travelTimes = travelTimes;
+			this.rowCount = rowCount;
+		}
+	}
+}
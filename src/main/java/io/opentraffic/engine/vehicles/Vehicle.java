@@ -1,6 +1,7 @@
 package io.opentraffic.engine.vehicles;
 
 import io.opentraffic.engine.data.SpeedSample;
+import io.opentraffic.engine.data.stores.StreetAttributeStore;
 import com.github.benmanes.caffeine.SingleConsumerQueue;
 import io.opentraffic.engine.geom.*;
 import org.mapdb.Fun;
@@ -36,7 +37,7 @@ public class Vehicle {
     public VehicleStates vehicleStates;
     public AtomicLong queueSize;
 
-    public StreetSegment lastSegment;
+    public Long lastSegmentId;
 
     public Vehicle(long vehicleId, VehicleStates vehicleStates) {
         this.vehicleId = vehicleId;
@@ -145,24 +146,25 @@ public class Vehicle {
                     continue;
                 }
 
-                StreetSegment currentSegment = vehicleStates.osmData.getStreetSegmentById(speedSample.getSegmentId());
+                long currentSegmentId = speedSample.getSegmentId();
+                boolean currentSegmentExists = vehicleStates.osmData.streetSegments.attributes.contains(currentSegmentId);
 
                 // TODO need to pin down source of missing segment ids
-//                if (currentSegment == null) {
-//                    System.out.println("missing: " + speedSample.getSegmentId());
+//                if (!currentSegmentExists) {
+//                    System.out.println("missing: " + currentSegmentId);
 //                }
 
-                if (currentSegment != null && lastSegment != null) {
-                    if (lastSegment.endNodeId != currentSegment.startNodeId) {
-                        Jumper jumper = vehicleStates.osmData.jumperDataStore.getJumper(lastSegment.endNodeId, currentSegment.startNodeId);
-                        if (jumper != null)
-                            speedSamples.addAll(jumper.getSpeedSamples(lastSegmentTime, speedSample.getTime()));
+                if (currentSegmentExists && lastSegmentId != null) {
+                    if (!vehicleStates.osmData.roadGraph.isConnected(lastSegmentId, currentSegmentId)) {
+                        StreetAttributeStore attributes = vehicleStates.osmData.streetSegments.attributes;
+                        vehicleStates.osmData.jumperDataStore.addSpeedSamples(attributes.getEndNodeId(lastSegmentId),
+                                attributes.getStartNodeId(currentSegmentId), lastSegmentTime, speedSample.getTime(), vehicleId, speedSamples);
                     }
 
                 }
 
                 lastSegmentTime = speedSample.getTime();
-                lastSegment = currentSegment;
+                lastSegmentId = currentSegmentExists ? currentSegmentId : null;
 
                 speedSamples.add(speedSample);
             }
@@ -177,12 +179,10 @@ public class Vehicle {
 
         List<Crossing> ret = new ArrayList<Crossing>();
 
-        List<?> tripLines = vehicleStates.osmData.getTripLines(gpsSegment.getEnvelope());
-
         if(vehicleStates.debug)
             vehicleStates.debugTripLines = new ArrayList<TripLine>();
 
-        for (Object tlObj : tripLines) {
+        vehicleStates.osmData.streamTripLines(gpsSegment.getEnvelope()).forEach(tlObj -> {
             TripLine tl = (TripLine) tlObj;
 
             if(vehicleStates.debug)
@@ -193,7 +193,7 @@ public class Vehicle {
             if (crossing != null) {
                 ret.add( crossing );
             }
-        }
+        });
 
         Collections.sort(ret, new Comparator<Crossing>() {
 
@@ -242,7 +242,7 @@ public class Vehicle {
             return null; // any speed sample above MAX_SPEED is assumed to be GPS junk.
         }
 
-        SpeedSample ss = new SpeedSample(lastCrossing.time, speed, lastCrossing.tripline.segmentId);
+        SpeedSample ss = new SpeedSample(lastCrossing.time, speed, lastCrossing.tripline.segmentId, vehicleId);
 
         return ss;
     }
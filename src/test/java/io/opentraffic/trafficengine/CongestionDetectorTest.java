@@ -0,0 +1,140 @@
+package io.opentraffic.trafficengine;
+
+import io.opentraffic.engine.data.SpeedSample;
+import io.opentraffic.engine.data.stats.SegmentStatistics;
+import io.opentraffic.engine.data.stats.SummaryStatisticsComparison;
+import io.opentraffic.engine.data.stores.CongestionDetector;
+import io.opentraffic.engine.data.stores.CongestionEvent;
+import io.opentraffic.engine.data.stores.StatsDataStore;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class CongestionDetectorTest extends TestCase {
+
+	static final int CURRENT_WEEK = SegmentStatistics.getWeekSinceEpoch(ZonedDateTime.of(2017, 6, 7, 12, 0, 0, 0, ZoneOffset.UTC).toInstant().toEpochMilli());
+	static final int HOUR = 32;
+	static final long SEGMENT = 1;
+
+	File directory;
+	StatsDataStore store;
+	CongestionDetector detector;
+	List<CongestionEvent> events = new ArrayList<>();
+	Random random = new Random(3);
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = Files.createTempDirectory("stats").toFile();
+		store = new StatsDataStore(directory, 1);
+
+		// four earlier weeks around 50 km/h
+		for(int week = CURRENT_WEEK - 4; week < CURRENT_WEEK; week++) {
+			for(int i = 0; i < 20; i++) {
+				store.save(new SpeedSample(getTime(week, i * 3), kmh(45 + random.nextInt(10)), SEGMENT));
+			}
+		}
+		store.flush();
+
+		detector = new CongestionDetector(store, SummaryStatisticsComparison.P_99);
+	}
+
+	@Override
+	protected void tearDown() {
+		StatsCompactorTest.delete(directory);
+	}
+
+	static long getTime(int week, int minute) {
+		return SegmentStatistics.getTimeForWeek(week) + HOUR * SegmentStatistics.HOUR_MS + minute * 60_000l;
+	}
+
+	static double kmh(double speed) {
+		return speed / 3.6;
+	}
+
+	void addSamples(long segmentId, int minute, int samples, int minSpeed) {
+		for(int i = 0; i < samples; i++) {
+			detector.add(new SpeedSample(getTime(CURRENT_WEEK, minute), kmh(minSpeed + random.nextInt(10)), segmentId));
+		}
+	}
+
+	public void testCongestedAndCleared() {
+		store.addCongestionListener(events::add);
+
+		addSamples(SEGMENT, 0, 4, 10);
+		assertTrue(events.isEmpty());
+
+		addSamples(SEGMENT, 1, 4, 10);
+		assertEquals(1, events.size());
+
+		CongestionEvent congested = events.get(0);
+		assertTrue(congested.isCongested());
+		assertEquals(SEGMENT, congested.getSegmentId());
+		assertEquals(80, congested.getBaselineCount(), 0.0);
+		assertTrue(congested.getWindowMean() < kmh(20));
+
+		// more slow samples don't repeat the event
+		addSamples(SEGMENT, 2, 10, 10);
+		assertEquals(1, events.size());
+
+		// normal speeds while the slow slot is still in the window
+		addSamples(SEGMENT, 10, 5, 45);
+		assertEquals(1, events.size());
+
+		// once the slow slot leaves the window the segment is clear
+		addSamples(SEGMENT, 15, 10, 45);
+		assertEquals(2, events.size());
+		assertFalse(events.get(1).isCongested());
+		assertFalse(Double.isNaN(events.get(1).getWindowMean()));
+		assertEquals(1, detector.getActiveSegmentCount());
+	}
+
+	public void testExpired() {
+		store.addCongestionListener(events::add);
+
+		addSamples(SEGMENT, 0, 10, 10);
+		assertEquals(1, events.size());
+
+		// another segment's samples move time on, the quiet congested segment is reported clear and dropped
+		addSamples(2, 16, 1, 45);
+		assertEquals(2, events.size());
+
+		CongestionEvent cleared = events.get(1);
+		assertFalse(cleared.isCongested());
+		assertEquals(SEGMENT, cleared.getSegmentId());
+		assertTrue(Double.isNaN(cleared.getWindowMean()));
+		assertEquals(1, detector.getActiveSegmentCount());
+	}
+
+	/**
+	 * The current week's slow samples, already written, don't drag the baseline down to the window.
+	 */
+	public void testBaselineExcludesCurrentWeek() {
+		for(int i = 0; i < 500; i++) {
+			store.save(new SpeedSample(getTime(CURRENT_WEEK, i % 5), kmh(10 + random.nextInt(5)), SEGMENT));
+		}
+		store.flush();
+		assertEquals(580, (int)store.collectSummaryStatistics(SEGMENT, false, (Integer)null).count);
+
+		store.addCongestionListener(events::add);
+
+		addSamples(SEGMENT, 5, 10, 10);
+		assertEquals(1, events.size());
+		assertTrue(events.get(0).isCongested());
+		assertEquals(80, events.get(0).getBaselineCount(), 0.0);
+		assertEquals(kmh(50), events.get(0).getBaselineMean(), 1.0);
+	}
+
+	public void testTooFewBaselineSamples() {
+		store.addCongestionListener(events::add);
+
+		addSamples(3, 0, 20, 10);
+		assertTrue(events.isEmpty());
+	}
+}
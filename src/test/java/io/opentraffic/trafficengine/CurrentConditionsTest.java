@@ -0,0 +1,101 @@
+package io.opentraffic.trafficengine;
+
+import io.opentraffic.engine.data.stores.CurrentConditions;
+import io.opentraffic.engine.data.stores.StreetAttributeStore;
+import junit.framework.TestCase;
+
+public class CurrentConditionsTest extends TestCase {
+
+	static final long NOW = 1_500_000_000_000l;
+	static final long SEGMENT = StreetAttributeStore.getSegmentId(5000);
+
+	CurrentConditions conditions = new CurrentConditions(() -> NOW);
+
+	public void testPacking() {
+		conditions.add(SEGMENT, NOW, 10.0);
+		conditions.add(SEGMENT, NOW, 20.0);
+		conditions.add(SEGMENT, NOW, 0.0);
+
+		assertEquals(3, conditions.getSampleCount(SEGMENT, 5));
+		// speeds are summed in 0.1 km/h
+		assertEquals(10.0, conditions.getSpeed(SEGMENT, 5), 0.05 / 3.6);
+
+		// speeds are clamped to what the sum can hold
+		long other = StreetAttributeStore.getSegmentId(5001);
+		conditions.add(other, NOW, 1000.0);
+		conditions.add(other, NOW, -5.0);
+		assertEquals(409.5 / 3.6 / 2, conditions.getSpeed(other, 5), 0.001);
+
+		assertTrue(Double.isNaN(conditions.getSpeed(StreetAttributeStore.getSegmentId(5002), 60)));
+	}
+
+	public void testWindow() {
+		for(int minutesAgo = 0; minutesAgo < 60; minutesAgo += 5) {
+			conditions.add(SEGMENT, NOW - minutesAgo * 60_000l, minutesAgo);
+		}
+
+		assertEquals(NOW, conditions.getLatestTime());
+		assertEquals(12, conditions.getSampleCount(SEGMENT, 60));
+		assertEquals(12, conditions.getSampleCount(SEGMENT, 600));
+		assertEquals(1, conditions.getSampleCount(SEGMENT, 1));
+		assertEquals(3, conditions.getSampleCount(SEGMENT, 15));
+	}
+
+	public void testRotation() {
+		long earlier = NOW - CurrentConditions.SLOTS * CurrentConditions.SLOT_MS;
+		CurrentConditions replay = new CurrentConditions(() -> NOW);
+
+		replay.add(SEGMENT, earlier, 10.0);
+		replay.add(SEGMENT, earlier, 10.0);
+		assertEquals(2, replay.getSampleCount(SEGMENT, 5));
+
+		// a full ring later the same slot is reused for the new period
+		replay.add(SEGMENT, NOW, 20.0);
+		assertEquals(1, replay.getSampleCount(SEGMENT, 60));
+		assertEquals(20.0, replay.getSpeed(SEGMENT, 60), 0.05 / 3.6);
+
+		// samples older than the ring are dropped and don't overwrite the slot
+		replay.add(SEGMENT, earlier, 10.0);
+		assertEquals(1, replay.getSampleCount(SEGMENT, 60));
+		assertTrue(Double.isNaN(replay.getSpeed(SEGMENT, earlier, 60)));
+	}
+
+	public void testSaturation() {
+		for(int i = 0; i < 70_000; i++) {
+			conditions.add(SEGMENT, NOW, 30.0);
+		}
+
+		assertEquals(65_535, conditions.getSampleCount(SEGMENT, 5));
+		assertEquals(30.0, conditions.getSpeed(SEGMENT, 5), 0.05 / 3.6);
+	}
+
+	public void testFutureSamplesDropped() {
+		conditions.add(SEGMENT, NOW, 10.0);
+		conditions.add(SEGMENT, NOW + 24 * 60 * 60 * 1000l, 10.0);
+
+		assertEquals(NOW, conditions.getLatestTime());
+		assertEquals(1, conditions.getSampleCount(SEGMENT, 60));
+
+		// small clock skew is fine
+		conditions.add(SEGMENT, NOW + 60_000, 10.0);
+		assertEquals(NOW + 60_000, conditions.getLatestTime());
+		assertEquals(2, conditions.getSampleCount(SEGMENT, 60));
+	}
+
+	public void testConcurrentAdds() throws InterruptedException {
+		Thread[] threads = new Thread[4];
+		for(int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				for(int i = 0; i < 10_000; i++) {
+					conditions.add(SEGMENT, NOW - (i % 3) * CurrentConditions.SLOT_MS, 10.0);
+				}
+			});
+			threads[t].start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(40_000, conditions.getSampleCount(SEGMENT, 15));
+	}
+}
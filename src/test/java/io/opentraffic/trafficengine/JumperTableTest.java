@@ -0,0 +1,68 @@
+package io.opentraffic.trafficengine;
+
+import io.opentraffic.engine.data.SpeedSample;
+import io.opentraffic.engine.data.stores.JumperDataStore;
+import io.opentraffic.engine.geom.Jumper;
+import io.opentraffic.engine.osm.OSMDataStore;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class JumperTableTest extends TestCase {
+
+	static final long TIME = 1_500_000_000_000l;
+
+	File directory;
+	JumperDataStore table;
+	Jumper jumper = new Jumper(10l, 20l, 12.0, new Long[] {101l, 102l});
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = Files.createTempDirectory("jumpers").toFile();
+		table = new JumperDataStore(directory);
+		table.addJumpers(Collections.singletonList(jumper));
+	}
+
+	@Override
+	protected void tearDown() {
+		for(File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	public void testSubSecondGap() {
+		List<SpeedSample> samples = new ArrayList<>();
+		assertTrue(table.addSpeedSamples(10l, 20l, TIME, TIME + 500, 7l, samples));
+
+		double expected = (12.0 + OSMDataStore.MIN_SEGMENT_LEN * 2) / 0.5;
+		assertEquals(2, samples.size());
+		assertEquals(expected, samples.get(0).getSpeed(), 1e-9);
+		assertEquals(102l, samples.get(1).getSegmentId());
+		assertEquals(7l, samples.get(1).getVehicleId());
+
+		assertEquals(expected, jumper.getSpeedSamples(TIME, TIME + 500).get(0).getSpeed(), 1e-9);
+	}
+
+	public void testMillisecondPrecision() {
+		List<SpeedSample> samples = new ArrayList<>();
+		table.addSpeedSamples(10l, 20l, TIME, TIME + 1_999, 7l, samples);
+
+		assertEquals((12.0 + OSMDataStore.MIN_SEGMENT_LEN * 2) / 1.999, samples.get(0).getSpeed(), 1e-9);
+	}
+
+	public void testTimesOutOfOrder() {
+		List<SpeedSample> samples = new ArrayList<>();
+		assertTrue(table.addSpeedSamples(10l, 20l, TIME, TIME, 7l, samples));
+		assertTrue(table.addSpeedSamples(10l, 20l, TIME, TIME - 1_000, 7l, samples));
+		assertTrue(samples.isEmpty());
+		assertTrue(jumper.getSpeedSamples(TIME, TIME).isEmpty());
+
+		assertFalse(table.addSpeedSamples(20l, 10l, TIME, TIME + 1_000, 7l, samples));
+	}
+}
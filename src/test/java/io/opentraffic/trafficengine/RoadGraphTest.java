@@ -0,0 +1,120 @@
+package io.opentraffic.trafficengine;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import io.opentraffic.engine.data.stores.StreetAttributeStore;
+import io.opentraffic.engine.geom.StreetSegment;
+import io.opentraffic.engine.osm.RoadGraph;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+public class RoadGraphTest extends TestCase {
+
+	static Coordinate[] coords = {new Coordinate(-77.0365, 38.8976), new Coordinate(-77.0361, 38.8979)};
+
+	File directory;
+	StreetAttributeStore attributes;
+
+	@Override
+	protected void setUp() throws Exception {
+		directory = Files.createTempDirectory("roadgraph").toFile();
+		attributes = new StreetAttributeStore(directory, "streets");
+	}
+
+	@Override
+	protected void tearDown() {
+		for(File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	long addSegment(int ordinal, long startNodeId, long endNodeId) {
+		long segmentId = StreetAttributeStore.getSegmentId(ordinal);
+		attributes.put(new StreetSegment(segmentId, StreetSegment.TYPE_PRIMARY, true, 1l, startNodeId, endNodeId, coords, 100.0));
+		return segmentId;
+	}
+
+	/**
+	 * Areas loaded one after another, each sharing nodes with the ones before, give the same rows as building the
+	 * whole graph at once.
+	 */
+	public void testIncrementalBuild() {
+		RoadGraph graph = new RoadGraph(attributes);
+		Random random = new Random(42);
+
+		int ordinal = 1;
+		for(int area = 0; area < 20; area++) {
+			for(int i = 0; i < 50; i++) {
+				long segmentId = addSegment(ordinal++, random.nextInt(200 + area * 40), random.nextInt(200 + area * 40));
+				graph.addSegment(segmentId);
+			}
+			int version = graph.getTopology().getVersion();
+			graph.build();
+			assertEquals(version + 1, graph.getTopology().getVersion());
+		}
+
+		RoadGraph rebuilt = new RoadGraph(attributes);
+		assertEquals(rebuilt.getNodeCount(), graph.getNodeCount());
+		assertSameGraph(rebuilt, graph);
+		assertEquals(1000, getEdgeCount(graph.getTopology()));
+	}
+
+	public void testRemoveSegment() {
+		long a = addSegment(1, 10, 11);
+		long b = addSegment(2, 11, 12);
+		long c = addSegment(3, 11, 13);
+
+		RoadGraph graph = new RoadGraph(attributes);
+		RoadGraph.Topology before = graph.getTopology();
+		assertTrue(graph.isConnected(a, b));
+
+		graph.removeSegment(b);
+		attributes.remove(b);
+		graph.build();
+
+		assertFalse(graph.isConnected(a, b));
+		assertTrue(graph.isConnected(a, c));
+		assertEquals(-1, graph.getTopology().getSegmentTail(StreetAttributeStore.getOrdinal(b)));
+		assertEquals(0, graph.getIncomingSegmentIds(12).length);
+		assertSameGraph(new RoadGraph(attributes), graph);
+
+		// the removed segment's end node stays, without edges
+		assertEquals(4, graph.getNodeCount());
+
+		// earlier snapshots are unchanged
+		assertEquals(2, before.getOutDegree(before.getNodeIndex(11)));
+
+		graph.addSegment(addSegment(4, 12, 10));
+		graph.build();
+		assertFalse(graph.isReachable(c, StreetAttributeStore.getSegmentId(4), 5));
+		assertTrue(graph.isConnected(StreetAttributeStore.getSegmentId(4), a));
+	}
+
+	static void assertSameGraph(RoadGraph expected, RoadGraph actual) {
+		RoadGraph.Topology t = expected.getTopology();
+
+		for(int node = 0; node < t.getNodeCount(); node++) {
+			long nodeId = t.getNodeId(node);
+			assertEquals(sorted(expected.getOutgoingSegmentIds(nodeId)), sorted(actual.getOutgoingSegmentIds(nodeId)));
+			assertEquals(sorted(expected.getIncomingSegmentIds(nodeId)), sorted(actual.getIncomingSegmentIds(nodeId)));
+		}
+	}
+
+	static int getEdgeCount(RoadGraph.Topology topology) {
+		int edges = 0;
+		for(int node = 0; node < topology.getNodeCount(); node++) {
+			edges += topology.getOutDegree(node);
+		}
+		return edges;
+	}
+
+	static String sorted(long[] values) {
+		long[] copy = values.clone();
+		Arrays.sort(copy);
+		return Arrays.toString(copy);
+	}
+}
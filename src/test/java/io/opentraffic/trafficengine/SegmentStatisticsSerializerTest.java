@@ -0,0 +1,74 @@
+package io.opentraffic.trafficengine;
+
+import io.opentraffic.engine.data.seralizers.SegmentStatisticsSerializer;
+import io.opentraffic.engine.data.stats.DenseSpeedHistogram;
+import io.opentraffic.engine.data.stats.SegmentStatistics;
+import io.opentraffic.engine.data.stats.SparseSpeedHistogram;
+import junit.framework.TestCase;
+
+import java.io.*;
+
+public class SegmentStatisticsSerializerTest extends TestCase {
+
+	public void testSparseRoundTrip() throws IOException {
+		SegmentStatistics stats = new SegmentStatistics();
+		stats.addSpeed(3, 40, 2);
+		stats.addSpeed(3, 41, 5);
+		stats.addSpeed(3, 42, 1);
+		stats.addSpeed(100, 12, 3_000_000_000l);
+
+		SegmentStatistics copy = roundTrip(stats);
+
+		assertTrue(copy.getHistogram() instanceof SparseSpeedHistogram);
+		assertHistogramsEqual(stats, copy);
+		assertEquals(3_000_000_008l, copy.getCount());
+	}
+
+	public void testDenseRoundTrip() throws IOException {
+		SegmentStatistics stats = new SegmentStatistics();
+		for(int hour = 0; hour < SegmentStatistics.HOURS_IN_WEEK; hour += 2) {
+			for(int speedBin = 10; speedBin < 30; speedBin++) {
+				stats.addSpeed(hour, speedBin, hour + speedBin);
+			}
+		}
+
+		assertTrue(stats.getHistogram() instanceof DenseSpeedHistogram);
+
+		SegmentStatistics copy = roundTrip(stats);
+
+		assertTrue(copy.getHistogram() instanceof DenseSpeedHistogram);
+		assertHistogramsEqual(stats, copy);
+		assertEquals(stats.getCount(), copy.getCount());
+	}
+
+	public void testLegacyFormat() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeShort(2);
+		out.writeShort(SegmentStatistics.getHourSpeedBin(5, 30));
+		out.writeInt(7);
+		out.writeShort(SegmentStatistics.getHourSpeedBin(167, 119));
+		out.writeInt(1);
+
+		SegmentStatistics stats = new SegmentStatisticsSerializer()
+				.deserialize(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), bytes.size());
+
+		assertEquals(2, stats.getHistogram().size());
+		assertEquals(7, stats.getHistogram().get(SegmentStatistics.getHourSpeedBin(5, 30)));
+		assertEquals(1, stats.getHistogram().get(SegmentStatistics.getHourSpeedBin(167, 119)));
+		assertEquals(8, stats.getCount());
+	}
+
+	private static SegmentStatistics roundTrip(SegmentStatistics stats) throws IOException {
+		SegmentStatisticsSerializer serializer = new SegmentStatisticsSerializer();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		serializer.serialize(new DataOutputStream(bytes), stats);
+
+		return serializer.deserialize(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), bytes.size());
+	}
+
+	private static void assertHistogramsEqual(SegmentStatistics expected, SegmentStatistics actual) {
+		assertEquals(expected.getHistogram().size(), actual.getHistogram().size());
+		expected.getHistogram().forEach((bin, count) -> assertEquals(count, actual.getHistogram().get(bin)));
+	}
+}
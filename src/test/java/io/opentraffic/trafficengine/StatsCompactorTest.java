@@ -0,0 +1,137 @@
+package io.opentraffic.trafficengine;
+
+import io.opentraffic.engine.data.SpeedSample;
+import io.opentraffic.engine.data.stats.SegmentStatistics;
+import io.opentraffic.engine.data.stats.SummaryStatistics;
+import io.opentraffic.engine.data.stores.StatsCompactor;
+import io.opentraffic.engine.data.stores.StatsDataStore;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+public class StatsCompactorTest extends TestCase {
+
+	static final int CURRENT_WEEK = SegmentStatistics.getWeekSinceEpoch(ZonedDateTime.of(2017, 6, 7, 12, 0, 0, 0, ZoneOffset.UTC).toInstant().toEpochMilli());
+
+	File directory;
+	StatsDataStore store;
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = Files.createTempDirectory("stats").toFile();
+		store = new StatsDataStore(directory, 1);
+	}
+
+	@Override
+	protected void tearDown() {
+		delete(directory);
+	}
+
+	public void testCompact() {
+		// 60 weeks of data for two segments, one sample per week at 40 km/h, sketches for segment 1
+		for(int week = CURRENT_WEEK - 59; week <= CURRENT_WEEK; week++) {
+			long time = SegmentStatistics.getTimeForWeek(week) + SegmentStatistics.HOUR_MS * 10;
+			store.save(new SpeedSample(time, 40 / 3.6, 1, 7));
+			store.save(new SpeedSample(time, 40 / 3.6, 2));
+		}
+		store.flush();
+
+		new StatsCompactor(store, 10, 40).compact(CURRENT_WEEK);
+
+		int archiveBefore = CURRENT_WEEK - 10;
+		int dropBefore = CURRENT_WEEK - 40;
+
+		for(long segmentId = 1; segmentId <= 2; segmentId++) {
+			for(int week = CURRENT_WEEK - 59; week <= CURRENT_WEEK; week++) {
+				assertEquals(week >= archiveBefore, store.collectSummaryStatistics(segmentId, false, week).count > 0);
+			}
+
+			// archived weeks are in the quarters at the archive bin's speed, dropped weeks are gone
+			SummaryStatistics archived = store.collectQuarterlySummaryStatistics(Collections.singleton(segmentId), false, getQuarters(CURRENT_WEEK - 59, CURRENT_WEEK), null);
+			assertEquals(archiveBefore - dropBefore, (int)archived.count);
+			assertEquals(SegmentStatistics.getBinMean(StatsCompactor.getArchiveSpeedBin(SegmentStatistics.getSpeedBin(40 / 3.6))), archived.getMean(), 1e-9);
+
+			// all-time records are untouched
+			assertEquals(60, (int)store.collectSummaryStatistics(segmentId, false, (Integer)null).count);
+		}
+
+		for(int week = CURRENT_WEEK - 59; week <= CURRENT_WEEK; week++) {
+			assertEquals(week >= dropBefore, store.getVehicleSketch(1l, Collections.singleton(week)).estimate((Set<Integer>)null) > 0);
+		}
+
+		for(Integer week : store.getWeekList()) {
+			assertTrue(week >= archiveBefore);
+		}
+		assertEquals(11, store.getWeekList().size());
+
+		int firstMonth = SegmentStatistics.getMonthSinceEpoch(SegmentStatistics.getTimeForWeek(CURRENT_WEEK - 59));
+		int dropMonthBefore = SegmentStatistics.getMonthSinceEpoch(SegmentStatistics.getTimeForWeek(dropBefore));
+		for(int month = firstMonth; month <= dropMonthBefore; month++) {
+			SummaryStatistics monthStats = store.collectMonthlySummaryStatistics(Collections.singleton(1l), false, Collections.singleton(month), null);
+			assertEquals(month == dropMonthBefore, monthStats.count > 0);
+		}
+	}
+
+	public void testCompactIsIdempotent() {
+		for(int week = CURRENT_WEEK - 20; week <= CURRENT_WEEK; week++) {
+			store.save(new SpeedSample(SegmentStatistics.getTimeForWeek(week), 10, 3));
+		}
+		store.flush();
+
+		StatsCompactor compactor = new StatsCompactor(store, 5, 0);
+		compactor.compact(CURRENT_WEEK);
+		compactor.compact(CURRENT_WEEK);
+
+		long total = (long)store.collectQuarterlySummaryStatistics(Collections.singleton(3l), false, getQuarters(CURRENT_WEEK - 20, CURRENT_WEEK), null).count;
+		for(int week = CURRENT_WEEK - 20; week <= CURRENT_WEEK; week++) {
+			total += store.collectSummaryStatistics(3l, false, week).count;
+		}
+		assertEquals(21, total);
+	}
+
+	public void testArchiveSpeedBin() {
+		assertEquals(2, StatsCompactor.getArchiveSpeedBin(0));
+		assertEquals(2, StatsCompactor.getArchiveSpeedBin(4));
+		assertEquals(7, StatsCompactor.getArchiveSpeedBin(5));
+		assertEquals(42, StatsCompactor.getArchiveSpeedBin(43));
+		assertEquals(SegmentStatistics.NUM_SPEED_BINS - 3, StatsCompactor.getArchiveSpeedBin(SegmentStatistics.NUM_SPEED_BINS - 1));
+	}
+
+	public void testQuarter() {
+		// quarters since 1970 by the month the week starts in, weeks start on Monday
+		assertEquals(120, StatsCompactor.getQuarter(SegmentStatistics.getWeekSinceEpoch(weekTime(2000, 1, 5))));
+		assertEquals(189, StatsCompactor.getQuarter(SegmentStatistics.getWeekSinceEpoch(weekTime(2017, 4, 5))));
+		// Saturday April 1st is in the week of Monday March 27th
+		assertEquals(188, StatsCompactor.getQuarter(SegmentStatistics.getWeekSinceEpoch(weekTime(2017, 4, 1))));
+		assertEquals(191, StatsCompactor.getQuarter(SegmentStatistics.getWeekSinceEpoch(weekTime(2017, 12, 31))));
+	}
+
+	private static Set<Integer> getQuarters(int fromWeek, int toWeek) {
+		Set<Integer> quarters = new HashSet<>();
+		for(int week = fromWeek; week <= toWeek; week++) {
+			quarters.add(StatsCompactor.getQuarter(week));
+		}
+		return quarters;
+	}
+
+	private static long weekTime(int year, int month, int day) {
+		return ZonedDateTime.of(year, month, day, 12, 0, 0, 0, ZoneOffset.UTC).toInstant().toEpochMilli();
+	}
+
+	static void delete(File file) {
+		File[] files = file.listFiles();
+		if(files != null) {
+			for(File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
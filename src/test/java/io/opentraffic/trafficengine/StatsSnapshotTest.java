@@ -0,0 +1,159 @@
+package io.opentraffic.trafficengine;
+
+import io.opentraffic.engine.data.SpeedSample;
+import io.opentraffic.engine.data.stats.SegmentStatistics;
+import io.opentraffic.engine.data.stats.SummaryStatistics;
+import io.opentraffic.engine.data.stores.StatsDataStore;
+import io.opentraffic.engine.data.stores.StatsSnapshot;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.*;
+
+public class StatsSnapshotTest extends TestCase {
+
+	static final int CURRENT_WEEK = SegmentStatistics.getWeekSinceEpoch(ZonedDateTime.of(2017, 6, 7, 12, 0, 0, 0, ZoneOffset.UTC).toInstant().toEpochMilli());
+	static final int WEEKS = 4;
+
+	File directory;
+	StatsDataStore store;
+	StatsSnapshot snapshot;
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = Files.createTempDirectory("stats").toFile();
+		store = new StatsDataStore(directory, 1);
+
+		Random random = new Random(7);
+		for(long segmentId = 1; segmentId <= 5; segmentId++) {
+			// segment 5 only has data before the snapshot's weeks
+			int fromWeek = segmentId == 5 ? CURRENT_WEEK - 10 : CURRENT_WEEK - WEEKS - 2;
+			int toWeek = segmentId == 5 ? CURRENT_WEEK - 8 : CURRENT_WEEK;
+
+			for(int week = fromWeek; week <= toWeek; week++) {
+				// segment 4 skips a week inside the range
+				if(segmentId == 4 && week == CURRENT_WEEK - 1)
+					continue;
+
+				for(int i = 0; i < 200; i++) {
+					long time = SegmentStatistics.getTimeForWeek(week) + random.nextInt(SegmentStatistics.HOURS_IN_WEEK) * SegmentStatistics.HOUR_MS;
+					store.save(new SpeedSample(time, (10 + random.nextInt(80) + segmentId * 5) / 3.6, segmentId));
+				}
+			}
+		}
+		store.flush();
+
+		snapshot = store.writeSnapshot(WEEKS);
+	}
+
+	@Override
+	protected void tearDown() {
+		StatsCompactorTest.delete(directory);
+	}
+
+	public void testRoundTrip() throws IOException {
+		assertEquals(CURRENT_WEEK - WEEKS + 1, snapshot.getFromWeek());
+		assertEquals(CURRENT_WEEK, snapshot.getToWeek());
+		assertEquals(4, snapshot.getSegmentCount());
+
+		// reopening reads the same columns
+		StatsSnapshot reopened = StatsSnapshot.open(snapshot.getDirectory());
+		assertEquals(snapshot.getRowCount(), reopened.getRowCount());
+
+		long rows = 0;
+		for(long segmentId = 1; segmentId <= 5; segmentId++) {
+			for(int week = snapshot.getFromWeek(); week <= snapshot.getToWeek(); week++) {
+				// one row per hour with observations, in hour order
+				double[] hourCounts = store.collectSummaryStatistics(segmentId, false, week).hourCount;
+
+				for(int hour = 0; hour < hourCounts.length; hour++) {
+					if(hourCounts[hour] == 0)
+						continue;
+
+					assertEquals(segmentId, reopened.getSegmentId(rows));
+					assertEquals(week, reopened.getWeek(rows));
+					assertEquals(hour, reopened.getHour(rows));
+					assertEquals((long)hourCounts[hour], reopened.getCount(rows));
+					rows++;
+				}
+			}
+		}
+		assertEquals(rows, reopened.getRowCount());
+
+		// counts are 4 byte columns
+		assertEquals(rows * 4, new File(snapshot.getDirectory(), "counts.col").length());
+	}
+
+	public void testSummaryStatistics() {
+		Set<Integer> weeks = new HashSet<>();
+		for(int week = snapshot.getFromWeek(); week <= snapshot.getToWeek(); week++) {
+			weeks.add(week);
+		}
+
+		for(Boolean normalize : new Boolean[] {false, true}) {
+			for(Set<Integer> hours : Arrays.asList(null, new HashSet<>(Arrays.asList(8, 9, 17, 100)))) {
+				for(long segmentId = 1; segmentId <= 5; segmentId++) {
+					SummaryStatistics expected = store.collectSummaryStatistics(segmentId, normalize, weeks, hours);
+					SummaryStatistics actual = snapshot.collectSummaryStatistics(segmentId, normalize, snapshot.getFromWeek(), snapshot.getToWeek(), hours);
+
+					assertSameSummary(expected, actual);
+				}
+			}
+		}
+	}
+
+	public void testScans() {
+		int fromWeek = CURRENT_WEEK - 1;
+
+		Map<Long, SummaryStatistics> expected = new HashMap<>();
+		for(long segmentId = 1; segmentId <= 5; segmentId++) {
+			SummaryStatistics summary = store.collectSummaryStatistics(segmentId, false, new HashSet<>(Arrays.asList(fromWeek, CURRENT_WEEK)), null);
+			if(summary.count > 0)
+				expected.put(segmentId, summary);
+		}
+
+		List<Long> segments = new ArrayList<>();
+		snapshot.forEachSegment(fromWeek, CURRENT_WEEK, null, (segmentId, count, meanSpeed) -> {
+			segments.add(segmentId);
+			assertEquals(expected.get(segmentId).count, count, 0.0);
+			assertEquals(expected.get(segmentId).getMean(), meanSpeed, 1e-9);
+		});
+		assertEquals(new ArrayList<>(new TreeSet<>(expected.keySet())), segments);
+
+		SummaryStatistics all = new SummaryStatistics(false, null);
+		for(SummaryStatistics summary : expected.values()) {
+			all.combine(summary);
+		}
+
+		double[] hourlyMeans = snapshot.getHourlyMeans(fromWeek, CURRENT_WEEK);
+		double[] expectedMeans = all.getHourlyMeans();
+		for(int hour = 0; hour < SegmentStatistics.HOURS_IN_WEEK; hour++) {
+			if(all.hourCount[hour] == 0)
+				assertTrue(Double.isNaN(hourlyMeans[hour]));
+			else
+				assertEquals(expectedMeans[hour], hourlyMeans[hour], 1e-9);
+		}
+	}
+
+	static void assertSameSummary(SummaryStatistics expected, SummaryStatistics actual) {
+		assertEquals(expected.count, actual.count, 1e-9);
+		if(expected.count == 0)
+			return;
+
+		assertEquals(expected.getMean(), actual.getMean(), 1e-9);
+		assertEquals(expected.getStdDev(), actual.getStdDev(), 1e-9);
+		assertEquals(expected.getQuantile(SummaryStatistics.MEDIAN), actual.getQuantile(SummaryStatistics.MEDIAN), 1e-9);
+
+		double[] expectedMeans = expected.getHourlyMeans();
+		double[] actualMeans = actual.getHourlyMeans();
+		for(int hour = 0; hour < SegmentStatistics.HOURS_IN_WEEK; hour++) {
+			assertEquals(expected.hourCount[hour], actual.hourCount[hour], 1e-9);
+			if(expected.hourCount[hour] > 0)
+				assertEquals(expectedMeans[hour], actualMeans[hour], 1e-9);
+		}
+	}
+}
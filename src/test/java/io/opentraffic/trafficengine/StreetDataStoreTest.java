@@ -0,0 +1,103 @@
+package io.opentraffic.trafficengine;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import io.opentraffic.engine.data.SpatialDataItem;
+import io.opentraffic.engine.data.seralizers.StreetSegmentSerializer;
+import io.opentraffic.engine.data.stores.StreetAttributeStore;
+import io.opentraffic.engine.data.stores.StreetDataStore;
+import io.opentraffic.engine.geom.StreetSegment;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class StreetDataStoreTest extends TestCase {
+
+	static Coordinate[] coords = {new Coordinate(-77.0365, 38.8976), new Coordinate(-77.0361, 38.8979)};
+
+	File directory;
+	StreetDataStore streets;
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = Files.createTempDirectory("streets").toFile();
+		streets = new StreetDataStore(directory, "streets", new StreetSegmentSerializer(), 1000, 10_000);
+	}
+
+	@Override
+	protected void tearDown() {
+		for(File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	static StreetSegment segment(int ordinal, long wayId, long startNodeId, long endNodeId) {
+		return new StreetSegment(StreetAttributeStore.getSegmentId(ordinal), StreetSegment.TYPE_PRIMARY, true, wayId, startNodeId, endNodeId, coords, 100.0);
+	}
+
+	/**
+	 * Two areas that both build the segments along their shared border: the second load only saves, and assigns its
+	 * area to, the segments that weren't stored yet.
+	 */
+	public void testOverlappingAreaLoads() {
+		List<SpatialDataItem> first = Arrays.asList(segment(1, 10, 1, 2), segment(2, 10, 2, 3), segment(3, 11, 3, 4));
+		assertEquals(first, streets.saveSegments(first));
+		for(SpatialDataItem segment : first) {
+			streets.attributes.setAreaId(segment.id, 1);
+		}
+
+		// the border way 11 is built again with new ids, one far past the attribute columns' capacity
+		int duplicateOrdinal = 1 << 20;
+		long duplicateId = StreetAttributeStore.getSegmentId(duplicateOrdinal);
+		List<SpatialDataItem> second = Arrays.asList(segment(duplicateOrdinal, 11, 3, 4), segment(5, 11, 4, 5), segment(6, 12, 5, 6));
+
+		List<SpatialDataItem> saved = streets.saveSegments(second);
+		assertEquals(new ArrayList<>(second.subList(1, 3)), saved);
+		for(SpatialDataItem segment : saved) {
+			streets.attributes.setAreaId(segment.id, 2);
+		}
+
+		assertFalse(streets.attributes.contains(duplicateId));
+		try {
+			// what assigning the area to every built segment ran into
+			streets.attributes.setAreaId(duplicateId, 2);
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+		}
+		assertFalse(streets.contains(duplicateId));
+		assertEquals(1, streets.attributes.getAreaId(StreetAttributeStore.getSegmentId(3)));
+		assertEquals(2, streets.attributes.getAreaId(StreetAttributeStore.getSegmentId(5)));
+		assertEquals(2, streets.attributes.getAreaId(StreetAttributeStore.getSegmentId(6)));
+		assertEquals(5, (int)streets.size());
+	}
+
+	/**
+	 * A store from before the double length column drops the rounded float column and rebuilds its lengths from the
+	 * segments themselves.
+	 */
+	public void testRebuildsDoubleLengths() throws IOException {
+		double length = 25.000001;
+		List<SpatialDataItem> segments = Arrays.asList(
+				new StreetSegment(StreetAttributeStore.getSegmentId(1), StreetSegment.TYPE_PRIMARY, true, 10, 1, 2, coords, length),
+				segment(2, 10, 2, 3));
+		streets.save(segments);
+		streets.attributes.setAreaId(segments.get(0).id, 7);
+		streets.attributes.flush();
+
+		File floatLengths = new File(directory, "streets_lengths.col");
+		Files.write(floatLengths.toPath(), new byte[8]);
+		assertTrue(new File(directory, "streets_lengths64.col").delete());
+
+		StreetDataStore reopened = new StreetDataStore(directory, "streets", new StreetSegmentSerializer(), 1000, 10_000);
+		assertFalse(floatLengths.exists());
+		assertEquals(length, reopened.getLengthById(segments.get(0).id));
+		assertEquals(100.0, reopened.getLengthById(segments.get(1).id));
+		assertEquals(7, reopened.attributes.getAreaId(segments.get(0).id));
+	}
+}
@@ -0,0 +1,91 @@
+package io.opentraffic.trafficengine;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import io.opentraffic.engine.data.seralizers.StreetSegmentSerializer;
+import io.opentraffic.engine.data.seralizers.TripLineSerializer;
+import io.opentraffic.engine.geom.StreetSegment;
+import io.opentraffic.engine.geom.TripLine;
+import junit.framework.TestCase;
+
+import java.io.*;
+
+public class StreetSegmentSerializerTest extends TestCase {
+
+	static Coordinate[] coords = {
+			new Coordinate(-77.0365298, 38.8976763),
+			new Coordinate(-77.0361002, 38.8979011),
+			new Coordinate(-77.0354417, 38.8980129),
+			new Coordinate(-77.0350006, 38.8977804)};
+
+	public void testStreetSegmentRoundTrip() throws IOException {
+		StreetSegment segment = new StreetSegment(1_000_000_042l, StreetSegment.TYPE_SECONDARY, true, 123456789l,
+				2419891221l, 2419891230l, coords, 154.2);
+
+		StreetSegmentSerializer serializer = new StreetSegmentSerializer();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		serializer.serialize(new DataOutputStream(bytes), segment);
+
+		StreetSegment copy = serializer.deserialize(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), bytes.size());
+
+		assertEquals(segment.id, copy.id);
+		assertEquals(segment.streetType, copy.streetType);
+		assertEquals(segment.oneway, copy.oneway);
+		assertEquals(segment.wayId, copy.wayId);
+		assertEquals(segment.startNodeId, copy.startNodeId);
+		assertEquals(segment.endNodeId, copy.endNodeId);
+		assertEquals(segment.length, copy.length);
+
+		assertEquals(segment.lons.length, copy.lons.length);
+		for(int i = 0; i < segment.lons.length; i++) {
+			assertEquals(segment.lons[i], copy.lons[i], 1e-7);
+			assertEquals(segment.lats[i], copy.lats[i], 1e-7);
+		}
+
+		// the legacy encoding spends 16 bytes per vertex alone
+		assertTrue(bytes.size() < segment.lons.length * 16);
+	}
+
+	public void testLegacyStreetSegment() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		out.writeLong(1_000_000_042l);
+		out.writeInt(coords.length);
+		for(Coordinate coord : coords) {
+			out.writeDouble(coord.x);
+			out.writeDouble(coord.y);
+		}
+		out.writeInt(StreetSegment.TYPE_PRIMARY);
+		out.writeBoolean(false);
+		out.writeLong(123456789l);
+		out.writeLong(2419891221l);
+		out.writeLong(2419891230l);
+		out.writeDouble(154.2);
+
+		StreetSegment segment = new StreetSegmentSerializer().deserialize(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), bytes.size());
+
+		assertEquals(1_000_000_042l, (long)segment.id);
+		assertEquals(StreetSegment.TYPE_PRIMARY, segment.streetType);
+		assertEquals(2419891230l, segment.endNodeId);
+		assertEquals(coords[3].x, segment.lons[3]);
+		assertEquals(coords[3].y, segment.lats[3]);
+	}
+
+	public void testTripLineRoundTrip() throws IOException {
+		TripLine tripLine = new TripLine(1_000_000_007l, new Coordinate[] {coords[0], coords[1]}, 1_000_000_042l, 2, 134.2);
+
+		TripLineSerializer serializer = new TripLineSerializer();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		serializer.serialize(new DataOutputStream(bytes), tripLine);
+
+		TripLine copy = serializer.deserialize(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), bytes.size());
+
+		assertEquals(tripLine.id, copy.id);
+		assertEquals(tripLine.segmentId, copy.segmentId);
+		assertEquals(tripLine.tripLineIndex, copy.tripLineIndex);
+		assertEquals(tripLine.dist, copy.dist);
+		assertEquals(tripLine.lons[1], copy.lons[1], 1e-7);
+		assertEquals(tripLine.lats[1], copy.lats[1], 1e-7);
+	}
+
+}
@@ -0,0 +1,114 @@
+package io.opentraffic.trafficengine;
+
+import io.opentraffic.engine.data.stats.SegmentStatistics;
+import io.opentraffic.engine.data.stats.SummaryStatistics;
+import junit.framework.TestCase;
+
+import java.util.*;
+
+public class SummaryStatisticsCombineTest extends TestCase {
+
+	static final double[] QUANTILES = {SummaryStatistics.P15, SummaryStatistics.BOTTOM_QUARTILE,
+			SummaryStatistics.MEDIAN, SummaryStatistics.TOP_QUARTILE, SummaryStatistics.P85};
+
+	/**
+	 * Records split across partial summaries and combined give the same summary as adding them all to one.
+	 */
+	public void testCombineMatchesAdd() {
+		Random random = new Random(11);
+
+		List<SegmentStatistics> records = new ArrayList<>();
+		for(int i = 0; i < 90; i++) {
+			SegmentStatistics stats = new SegmentStatistics();
+			int samples = 1 + random.nextInt(300);
+			for(int j = 0; j < samples; j++) {
+				stats.addSpeed(random.nextInt(SegmentStatistics.HOURS_IN_WEEK), 5 + random.nextInt(60) + i % 30, 1 + random.nextInt(3));
+			}
+			records.add(stats);
+		}
+
+		for(boolean normalize : new boolean[] {false, true}) {
+			for(Set<Integer> hours : Arrays.asList(null, new HashSet<>(Arrays.asList(7, 8, 9, 40)))) {
+				SummaryStatistics serial = new SummaryStatistics(normalize, hours);
+				List<SummaryStatistics> partials = new ArrayList<>();
+				for(int p = 0; p < 4; p++) {
+					partials.add(new SummaryStatistics(normalize, hours));
+				}
+
+				for(int i = 0; i < records.size(); i++) {
+					long segmentId = i;
+					serial.add(records.get(i), segmentId);
+					// uneven split, one partial stays empty
+					partials.get(i % 7 % 3).add(records.get(i), segmentId);
+				}
+
+				SummaryStatistics combined = new SummaryStatistics(normalize, hours);
+				for(SummaryStatistics partial : partials) {
+					combined.combine(partial);
+				}
+
+				assertSameSummary(serial, combined);
+			}
+		}
+	}
+
+	/**
+	 * Combining resets cached deviations.
+	 */
+	public void testCombineAfterStdDev() {
+		SegmentStatistics slow = new SegmentStatistics();
+		slow.addSpeed(8, 10, 5);
+		SegmentStatistics fast = new SegmentStatistics();
+		fast.addSpeed(8, 50, 5);
+
+		SummaryStatistics summary = new SummaryStatistics(false, null);
+		summary.add(slow, 1l);
+		assertEquals(0.0, summary.getStdDev(), 1e-9);
+		assertEquals(0.0, summary.getStdDev(8), 1e-9);
+
+		SummaryStatistics other = new SummaryStatistics(false, null);
+		other.add(fast, 2l);
+		summary.combine(other);
+
+		SummaryStatistics serial = new SummaryStatistics(false, null);
+		serial.add(slow, 1l);
+		serial.add(fast, 2l);
+
+		assertTrue(summary.getStdDev() > 0);
+		assertSameSummary(serial, summary);
+	}
+
+	static void assertSameSummary(SummaryStatistics expected, SummaryStatistics actual) {
+		assertClose(expected.count, actual.count, 1e-9);
+		assertClose(expected.sum, actual.sum, 1e-6);
+		assertClose(expected.getMean(), actual.getMean(), 1e-9);
+		assertClose(expected.getStdDev(), actual.getStdDev(), 1e-9);
+
+		for(double quantile : QUANTILES) {
+			assertClose(expected.getQuantile(quantile), actual.getQuantile(quantile), 1e-9);
+		}
+
+		double[] expectedMeans = expected.getHourlyMeans();
+		double[] actualMeans = actual.getHourlyMeans();
+		double[] expectedStdDevs = expected.getHourlyStdDevs();
+		double[] actualStdDevs = actual.getHourlyStdDevs();
+
+		for(int hour = 0; hour < SegmentStatistics.HOURS_IN_WEEK; hour++) {
+			assertClose(expected.hourCount[hour], actual.hourCount[hour], 1e-9);
+			assertClose(expectedMeans[hour], actualMeans[hour], 1e-9);
+			assertClose(expectedStdDevs[hour], actualStdDevs[hour], 1e-9);
+
+			for(double quantile : QUANTILES) {
+				assertClose(expected.getQuantile(hour, quantile), actual.getQuantile(hour, quantile), 1e-9);
+			}
+		}
+	}
+
+	// hours without observations are NaN in both
+	static void assertClose(double expected, double actual, double delta) {
+		if(Double.isNaN(expected))
+			assertTrue(Double.isNaN(actual));
+		else
+			assertEquals(expected, actual, delta);
+	}
+}
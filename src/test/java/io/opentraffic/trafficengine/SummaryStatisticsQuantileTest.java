@@ -0,0 +1,34 @@
+package io.opentraffic.trafficengine;
+
+import io.opentraffic.engine.data.stats.SegmentStatistics;
+import io.opentraffic.engine.data.stats.SummaryStatistics;
+import junit.framework.TestCase;
+
+public class SummaryStatisticsQuantileTest extends TestCase {
+
+	public void testQuantiles() {
+		SegmentStatistics stats = new SegmentStatistics();
+		// hour 8 has speed bins 10..19 with one observation each, hour 20 is all bin 50
+		for(int speedBin = 10; speedBin < 20; speedBin++) {
+			stats.addSpeed(8, speedBin, 1);
+		}
+		stats.addSpeed(20, 50, 10);
+
+		SummaryStatistics summary = new SummaryStatistics(false, null);
+		summary.add(stats, 1l);
+
+		assertEquals(SegmentStatistics.getBinMean(14), summary.getQuantile(8, SummaryStatistics.MEDIAN));
+		assertEquals(SegmentStatistics.getBinMean(17), summary.getQuantile(8, SummaryStatistics.TOP_QUARTILE));
+		assertEquals(SegmentStatistics.getBinMean(11), summary.getQuantile(8, SummaryStatistics.P15));
+		assertEquals(SegmentStatistics.getBinMean(50), summary.getQuantile(20, SummaryStatistics.P15));
+
+		// overall, half the observations are in bin 50
+		assertEquals(SegmentStatistics.getBinMean(19), summary.getQuantile(SummaryStatistics.MEDIAN));
+		assertEquals(SegmentStatistics.getBinMean(50), summary.getQuantile(SummaryStatistics.P85));
+
+		double[] hourly = summary.getHourlyQuantiles(SummaryStatistics.TOP_QUARTILE);
+		assertEquals(SegmentStatistics.HOURS_IN_WEEK, hourly.length);
+		assertEquals(summary.getQuantile(8, SummaryStatistics.TOP_QUARTILE), hourly[8]);
+		assertTrue(Double.isNaN(hourly[0]));
+	}
+}
@@ -0,0 +1,72 @@
+package io.opentraffic.trafficengine;
+
+import io.opentraffic.engine.data.stats.SegmentStatistics;
+import junit.framework.TestCase;
+
+import java.time.*;
+import java.time.temporal.ChronoField;
+import java.time.temporal.ChronoUnit;
+import java.util.Random;
+
+public class TimeBucketingTest extends TestCase {
+
+	static final long START = Instant.parse("2012-01-01T00:00:00Z").toEpochMilli();
+	static final long END = Instant.parse("2030-01-01T00:00:00Z").toEpochMilli();
+
+	public void testHourlyAgainstJavaTime() {
+		// every hour boundary and the millisecond either side of it
+		for(long time = START; time < END; time += SegmentStatistics.HOUR_MS) {
+			for(long t = time - 1; t <= time + 1; t++) {
+				assertEquals("hour of week at " + t, referenceHourOfWeek(t), SegmentStatistics.getHourOfWeek(t));
+				assertEquals("week at " + t, referenceWeekSinceEpoch(t), SegmentStatistics.getWeekSinceEpoch(t));
+			}
+		}
+	}
+
+	public void testRandomTimesAgainstJavaTime() {
+		Random random = new Random(42);
+		for(int i = 0; i < 200_000; i++) {
+			long time = START + (long)(random.nextDouble() * (END - START));
+
+			assertEquals(referenceHourOfWeek(time), SegmentStatistics.getHourOfWeek(time));
+			assertEquals(referenceWeekSinceEpoch(time), SegmentStatistics.getWeekSinceEpoch(time));
+
+			// timestamps in seconds are recognised and converted
+			long seconds = time / 1000;
+			assertEquals(referenceHourOfWeek(seconds), SegmentStatistics.getHourOfWeek(seconds));
+			assertEquals(referenceWeekSinceEpoch(seconds), SegmentStatistics.getWeekSinceEpoch(seconds));
+		}
+	}
+
+	public void testTimeForWeek() {
+		for(int week = 2000; week < 3000; week++) {
+			long time = SegmentStatistics.getTimeForWeek(week);
+			assertEquals(week, SegmentStatistics.getWeekSinceEpoch(time));
+			assertEquals(0, SegmentStatistics.getHourOfWeek(time));
+			assertEquals(DayOfWeek.MONDAY, Instant.ofEpochMilli(time).atZone(ZoneOffset.UTC).getDayOfWeek());
+		}
+	}
+
+	// previous java.time implementations
+
+	static int referenceHourOfWeek(long time) {
+		if(time < 15000000000l)
+			time = time * 1000;
+
+		ZonedDateTime zonedDateTime = ZonedDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.of("UTC"));
+		int dayOfWeek = zonedDateTime.get(ChronoField.DAY_OF_WEEK) - 1;
+		int hourOfDay = zonedDateTime.get(ChronoField.HOUR_OF_DAY);
+
+		return (dayOfWeek * 24) + hourOfDay;
+	}
+
+	static int referenceWeekSinceEpoch(long time) {
+		if(time < 15000000000l)
+			time = time * 1000;
+
+		LocalDateTime startDate = LocalDateTime.ofInstant(Instant.ofEpochMilli(SegmentStatistics.WEEK_OFFSET), ZoneId.of("UTC"));
+		LocalDateTime endDate = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.of("UTC"));
+
+		return (int)ChronoUnit.WEEKS.between(startDate, endDate);
+	}
+}
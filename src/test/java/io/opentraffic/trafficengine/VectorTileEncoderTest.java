@@ -0,0 +1,217 @@
+package io.opentraffic.trafficengine;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import io.opentraffic.engine.data.tiles.VectorTileEncoder;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.*;
+
+public class VectorTileEncoderTest extends TestCase {
+
+	static final int Z = 14;
+
+	static GeometryFactory geometryFactory = new GeometryFactory();
+
+	// tile holding the first coordinate
+	static final int TILE_X = (int)Math.floor((-77.0365 + 180) / 360 * (1 << Z));
+	static final int TILE_Y = (int)Math.floor(projectY(38.8976) * (1 << Z));
+
+	public void testRoundTrip() throws IOException {
+		Coordinate[] line = {
+				new Coordinate(-77.0365, 38.8976),
+				new Coordinate(-77.0361, 38.8979),
+				// same pixel as the previous vertex, dropped
+				new Coordinate(-77.0361000001, 38.8979000001),
+				new Coordinate(-77.0368, 38.8971)};
+		Coordinate[] other = {new Coordinate(-77.0350, 38.8970), new Coordinate(-77.0340, 38.8990)};
+
+		Map<String, Object> attributes = new LinkedHashMap<>();
+		attributes.put("type", "primary");
+		attributes.put("samples", 12l);
+		attributes.put("speed", 42.5f);
+		attributes.put("oneway", true);
+		attributes.put("ignored", null);
+
+		Map<String, Object> otherAttributes = new LinkedHashMap<>();
+		otherAttributes.put("type", "primary");
+		otherAttributes.put("samples", -3l);
+		otherAttributes.put("ratio", 0.25);
+
+		VectorTileEncoder encoder = new VectorTileEncoder(Z, TILE_X, TILE_Y, "segments");
+		assertTrue(encoder.addLineFeature(1_000_000_042l, geometryFactory.createLineString(line), attributes));
+		assertTrue(encoder.addLineFeature(7l, geometryFactory.createLineString(other), otherAttributes));
+		assertEquals(2, encoder.getFeatureCount());
+
+		Layer layer = decode(encoder.encode());
+
+		assertEquals(2, layer.version);
+		assertEquals("segments", layer.name);
+		assertEquals(VectorTileEncoder.EXTENT, layer.extent);
+
+		// keys and values are shared between features
+		assertEquals(Arrays.asList("type", "samples", "speed", "oneway", "ratio"), layer.keys);
+		assertEquals(Arrays.asList("primary", 12l, 42.5f, true, -3l, 0.25), layer.values);
+
+		assertEquals(2, layer.features.size());
+
+		Feature feature = layer.features.get(0);
+		assertEquals(1_000_000_042l, feature.id);
+		assertEquals(2, feature.type);
+		Map<String, Object> expected = new LinkedHashMap<>(attributes);
+		expected.remove("ignored");
+		assertEquals(expected, feature.getAttributes(layer));
+		assertEquals(Arrays.asList(project(line[0]), project(line[1]), project(line[3])), feature.decodeLine());
+
+		Feature second = layer.features.get(1);
+		assertEquals(7l, second.id);
+		assertEquals(otherAttributes, second.getAttributes(layer));
+		assertEquals(Arrays.asList(project(other[0]), project(other[1])), second.decodeLine());
+	}
+
+	public void testCollapsedLineSkipped() {
+		VectorTileEncoder encoder = new VectorTileEncoder(Z, TILE_X, TILE_Y, "segments");
+
+		Coordinate[] line = {new Coordinate(-77.0365, 38.8976), new Coordinate(-77.03650001, 38.89760001)};
+		assertFalse(encoder.addLineFeature(1l, geometryFactory.createLineString(line), new HashMap<>()));
+		assertEquals(0, encoder.getFeatureCount());
+	}
+
+	static double projectY(double lat) {
+		double latRad = Math.toRadians(lat);
+		return (1 - Math.log(Math.tan(Math.PI / 4 + latRad / 2)) / Math.PI) / 2;
+	}
+
+	static List<Integer> project(Coordinate coord) {
+		double x = (coord.x + 180) / 360 * (1 << Z);
+		double y = projectY(coord.y) * (1 << Z);
+		return Arrays.asList((int)Math.round((x - TILE_X) * VectorTileEncoder.EXTENT), (int)Math.round((y - TILE_Y) * VectorTileEncoder.EXTENT));
+	}
+
+	// minimal vector_tile.proto reader
+
+	static class Layer {
+		int version;
+		String name;
+		int extent;
+		List<String> keys = new ArrayList<>();
+		List<Object> values = new ArrayList<>();
+		List<Feature> features = new ArrayList<>();
+	}
+
+	static class Feature {
+		long id;
+		int type;
+		List<Integer> tags = new ArrayList<>();
+		List<Integer> geometry = new ArrayList<>();
+
+		Map<String, Object> getAttributes(Layer layer) {
+			Map<String, Object> attributes = new LinkedHashMap<>();
+			for(int i = 0; i < tags.size(); i += 2) {
+				attributes.put(layer.keys.get(tags.get(i)), layer.values.get(tags.get(i + 1)));
+			}
+			return attributes;
+		}
+
+		/**
+		 * Absolute tile coordinates of a single MoveTo / LineTo line.
+		 */
+		List<List<Integer>> decodeLine() {
+			List<List<Integer>> points = new ArrayList<>();
+
+			int position = 0, x = 0, y = 0;
+			while(position < geometry.size()) {
+				int command = geometry.get(position++);
+				int id = command & 0x7;
+				int count = command >>> 3;
+
+				assertEquals(points.isEmpty() ? 1 : 2, id);
+				for(int i = 0; i < count; i++) {
+					x += unZigZag(geometry.get(position++));
+					y += unZigZag(geometry.get(position++));
+					points.add(Arrays.asList(x, y));
+				}
+			}
+
+			return points;
+		}
+	}
+
+	static int unZigZag(int n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	static Layer decode(byte[] tile) throws IOException {
+		CodedInputStream in = CodedInputStream.newInstance(tile);
+
+		Layer layer = null;
+		for(int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+			assertEquals(3, WireFormat.getTagFieldNumber(tag));
+			assertNull("one layer", layer);
+			layer = decodeLayer(CodedInputStream.newInstance(in.readBytes().toByteArray()));
+		}
+
+		return layer;
+	}
+
+	static Layer decodeLayer(CodedInputStream in) throws IOException {
+		Layer layer = new Layer();
+
+		for(int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+			switch (WireFormat.getTagFieldNumber(tag)) {
+				case 1: layer.name = in.readString(); break;
+				case 2: layer.features.add(decodeFeature(CodedInputStream.newInstance(in.readBytes().toByteArray()))); break;
+				case 3: layer.keys.add(in.readString()); break;
+				case 4: layer.values.add(decodeValue(CodedInputStream.newInstance(in.readBytes().toByteArray()))); break;
+				case 5: layer.extent = in.readUInt32(); break;
+				case 15: layer.version = in.readUInt32(); break;
+				default: fail("unexpected layer field " + tag);
+			}
+		}
+
+		return layer;
+	}
+
+	static Feature decodeFeature(CodedInputStream in) throws IOException {
+		Feature feature = new Feature();
+
+		for(int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+			switch (WireFormat.getTagFieldNumber(tag)) {
+				case 1: feature.id = in.readUInt64(); break;
+				case 2: readPacked(in, feature.tags); break;
+				case 3: feature.type = in.readEnum(); break;
+				case 4: readPacked(in, feature.geometry); break;
+				default: fail("unexpected feature field " + tag);
+			}
+		}
+
+		return feature;
+	}
+
+	static Object decodeValue(CodedInputStream in) throws IOException {
+		int tag = in.readTag();
+		Object value;
+		switch (WireFormat.getTagFieldNumber(tag)) {
+			case 1: value = in.readString(); break;
+			case 2: value = in.readFloat(); break;
+			case 3: value = in.readDouble(); break;
+			case 6: value = in.readSInt64(); break;
+			case 7: value = in.readBool(); break;
+			default: throw new AssertionError("unexpected value field " + tag);
+		}
+
+		assertEquals("one value per message", 0, in.readTag());
+		return value;
+	}
+
+	static void readPacked(CodedInputStream in, List<Integer> values) throws IOException {
+		int limit = in.pushLimit(in.readRawVarint32());
+		while(in.getBytesUntilLimit() > 0) {
+			values.add(in.readUInt32());
+		}
+		in.popLimit(limit);
+	}
+}
@@ -0,0 +1,68 @@
+package io.opentraffic.trafficengine;
+
+import io.opentraffic.engine.data.seralizers.VehicleSketchSerializer;
+import io.opentraffic.engine.data.stats.VehicleSketch;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.Set;
+
+public class VehicleSketchTest extends TestCase {
+
+	public void testRepeatedVehicleCountsOnce() {
+		VehicleSketch sketch = new VehicleSketch();
+		for(int i = 0; i < 500; i++) {
+			sketch.add(8, 42);
+		}
+
+		assertEquals(1.0, sketch.estimate(8), 0.05);
+		assertEquals(0.0, sketch.estimate(9));
+	}
+
+	public void testEstimateWithinError() {
+		for(int vehicles : new int[] {10, 100, 1_000, 100_000}) {
+			VehicleSketch sketch = new VehicleSketch();
+			for(long vehicleId = 1; vehicleId <= vehicles; vehicleId++) {
+				sketch.add(20, vehicleId);
+			}
+
+			// four standard errors
+			assertEquals(vehicles, sketch.estimate(20), vehicles * 0.52);
+		}
+	}
+
+	public void testMergeDoesNotDoubleCount() {
+		VehicleSketch week1 = new VehicleSketch();
+		VehicleSketch week2 = new VehicleSketch();
+		for(long vehicleId = 1; vehicleId <= 200; vehicleId++) {
+			week1.add(3, vehicleId);
+			week2.add(3, vehicleId);
+			week2.add(4, vehicleId + 200);
+		}
+
+		double estimate = week1.estimate(3);
+		week1.merge(week2);
+
+		assertEquals(estimate, week1.estimate(3));
+		assertEquals(week2.estimate((Set<Integer>)null), week1.estimate(Collections.emptySet()));
+	}
+
+	public void testRoundTrip() throws IOException {
+		VehicleSketch sketch = new VehicleSketch();
+		for(long vehicleId = 1; vehicleId <= 300; vehicleId++) {
+			sketch.add((int)(vehicleId % 3) * 50, vehicleId);
+		}
+
+		VehicleSketchSerializer serializer = new VehicleSketchSerializer();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		serializer.serialize(new DataOutputStream(bytes), sketch);
+
+		VehicleSketch copy = serializer.deserialize(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), bytes.size());
+
+		assertEquals(3, copy.getHourCount());
+		for(int hour = 0; hour <= 100; hour += 50) {
+			assertEquals(sketch.estimate(hour), copy.estimate(hour));
+		}
+	}
+}
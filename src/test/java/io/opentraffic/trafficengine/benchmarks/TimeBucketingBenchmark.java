@@ -0,0 +1,74 @@
+package io.opentraffic.trafficengine.benchmarks;
+
+import io.opentraffic.engine.data.stats.SegmentStatistics;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.*;
+import java.time.temporal.ChronoField;
+import java.time.temporal.ChronoUnit;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the integer hour-of-week and week bucketing against the java.time versions it replaced.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=io.opentraffic.trafficengine.benchmarks.TimeBucketingBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimeBucketingBenchmark {
+
+	static final int TIMES = 1024;
+
+	long[] times = new long[TIMES];
+	int index;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		long start = Instant.parse("2015-01-01T00:00:00Z").toEpochMilli();
+		for(int i = 0; i < TIMES; i++) {
+			times[i] = start + (long)(random.nextDouble() * 5 * 365 * 24 * SegmentStatistics.HOUR_MS);
+		}
+	}
+
+	long nextTime() {
+		index = (index + 1) & (TIMES - 1);
+		return times[index];
+	}
+
+	@Benchmark
+	public int hourOfWeek() {
+		return SegmentStatistics.getHourOfWeek(nextTime());
+	}
+
+	@Benchmark
+	public int weekSinceEpoch() {
+		return SegmentStatistics.getWeekSinceEpoch(nextTime());
+	}
+
+	@Benchmark
+	public int javaTimeHourOfWeek() {
+		ZonedDateTime zonedDateTime = ZonedDateTime.ofInstant(Instant.ofEpochMilli(nextTime()), ZoneId.of("UTC"));
+		return ((zonedDateTime.get(ChronoField.DAY_OF_WEEK) - 1) * 24) + zonedDateTime.get(ChronoField.HOUR_OF_DAY);
+	}
+
+	@Benchmark
+	public int javaTimeWeekSinceEpoch() {
+		LocalDateTime startDate = LocalDateTime.ofInstant(Instant.ofEpochMilli(SegmentStatistics.WEEK_OFFSET), ZoneId.of("UTC"));
+		LocalDateTime endDate = LocalDateTime.ofInstant(Instant.ofEpochMilli(nextTime()), ZoneId.of("UTC"));
+		return (int)ChronoUnit.WEEKS.between(startDate, endDate);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(TimeBucketingBenchmark.class.getSimpleName()).build()).run();
+	}
+}